@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+
+import com.indoqa.osgi.embedded.container.ContainerConfiguration;
+import com.indoqa.osgi.embedded.container.EmbeddedOSGiContainer;
+
+/**
+ * An {@link EmbeddedOSGiContainer} in a temporary directory that can be started and stopped repeatedly.
+ */
+/*default*/ final class BenchmarkContainer {
+
+    private static final Class<?>[] SERVICE_BUNDLE_CLASSES = {CountingLongSupplier.class, CountingLongSupplierActivator.class};
+
+    private final Path directory;
+    private final boolean warmStart;
+    private EmbeddedOSGiContainer container;
+
+    public BenchmarkContainer(boolean warmStart) {
+        this.warmStart = warmStart;
+
+        try {
+            this.directory = Files.createTempDirectory("embedded-osgi-benchmark");
+            Files.createDirectories(this.directory.resolve("bundles"));
+            Files.createDirectories(this.directory.resolve("storage"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Create a bundle that registers a {@link CountingLongSupplier} as {@link java.util.function.LongSupplier} service. The bundle
+     * contains its own copy of the service class, so that it is loaded by the bundle class loader.
+     */
+    public static byte[] createServiceBundle(String symbolicName) {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+        attributes.putValue(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+        attributes.putValue(Constants.BUNDLE_VERSION, "1.0.0");
+        attributes.putValue(Constants.BUNDLE_ACTIVATOR, CountingLongSupplierActivator.class.getName());
+        attributes.putValue(Constants.IMPORT_PACKAGE, "org.osgi.framework");
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (JarOutputStream jarOutputStream = new JarOutputStream(outputStream, manifest)) {
+            for (Class<?> eachClass : SERVICE_BUNDLE_CLASSES) {
+                String entryName = eachClass.getName().replace('.', '/') + ".class";
+                jarOutputStream.putNextEntry(new JarEntry(entryName));
+                try (InputStream classInputStream = eachClass.getClassLoader().getResourceAsStream(entryName)) {
+                    copy(classInputStream, jarOutputStream);
+                }
+                jarOutputStream.closeEntry();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static void copy(InputStream inputStream, JarOutputStream outputStream) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+        }
+    }
+
+    public void delete() {
+        try (Stream<Path> paths = Files.walk(this.directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public EmbeddedOSGiContainer getContainer() {
+        return this.container;
+    }
+
+    public BundleContext getSystemBundleContext() {
+        for (Bundle bundle : this.container.getInstalledBundles()) {
+            if (bundle.getBundleId() == 0) {
+                return bundle.getBundleContext();
+            }
+        }
+        throw new IllegalStateException("The system bundle is not available.");
+    }
+
+    public Bundle installServiceBundle(String symbolicName) {
+        return this.container.startBundle("benchmark:" + symbolicName, new ByteArrayInputStream(createServiceBundle(symbolicName)));
+    }
+
+    /**
+     * Create a new container without initializing it.
+     */
+    public EmbeddedOSGiContainer prepare() {
+        ContainerConfiguration containerConfiguration = new ContainerConfiguration()
+            .setFrameworkStorage(this.directory.resolve("storage"))
+            .addFileInstallDir(this.directory.resolve("bundles"))
+            .setWarmStart(this.warmStart);
+
+        this.container = new EmbeddedOSGiContainer();
+        this.container.setContainerConfiguration(containerConfiguration);
+        return this.container;
+    }
+
+    public void start() {
+        this.prepare().initialize();
+    }
+
+    public void stop() {
+        this.container.destroy();
+        this.container = null;
+    }
+}
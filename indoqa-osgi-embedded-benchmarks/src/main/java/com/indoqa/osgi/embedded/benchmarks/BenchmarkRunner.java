@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like the JMH main class does, but writes the results as JSON to <code>jmh-result.json</code> unless another
+ * result format or file is passed on the command line (<code>-rf</code>, <code>-rff</code>). This makes it possible to track the
+ * results between releases.
+ */
+public final class BenchmarkRunner {
+
+    private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    private BenchmarkRunner() {
+        // hide utility class constructor
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+
+        if (commandLineOptions.shouldHelp()) {
+            commandLineOptions.showHelp();
+            return;
+        }
+
+        Runner runner = new Runner(createOptions(commandLineOptions).build());
+        if (commandLineOptions.shouldList()) {
+            runner.list();
+            return;
+        }
+
+        runner.run();
+    }
+
+    private static ChainedOptionsBuilder createOptions(CommandLineOptions commandLineOptions) {
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLineOptions);
+
+        if (!commandLineOptions.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!commandLineOptions.getResult().hasValue()) {
+            options.result(DEFAULT_RESULT_FILE);
+        }
+
+        return options;
+    }
+}
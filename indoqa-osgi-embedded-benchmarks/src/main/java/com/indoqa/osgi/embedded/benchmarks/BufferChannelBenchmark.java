@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.benchmarks;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.indoqa.osgi.embedded.services.buffers.BufferPool;
+import com.indoqa.osgi.embedded.services.buffers.PooledBuffer;
+import com.indoqa.osgi.embedded.services.buffers.SpscRing;
+
+/**
+ * Compares the cost of handing a payload of longs from a producer to a consumer: written into a {@link PooledBuffer} and passed
+ * through a {@link SpscRing} versus serialized into a byte array and deserialized again, which is what host applications and bundles
+ * do when they only share interfaces. Producer and consumer run on the same thread, so the numbers are the per-message costs
+ * without the thread handoff.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BufferChannelBenchmark {
+
+    private static final int RING_CAPACITY = 64;
+
+    @Param({"1024", "65536", "1048576"})
+    private int payloadSize;
+
+    private BufferPool bufferPool;
+    private SpscRing<PooledBuffer> ring;
+
+    private static long readPayload(ByteBuffer buffer) {
+        long sum = 0;
+        while (buffer.remaining() >= Long.BYTES) {
+            sum += buffer.getLong();
+        }
+        return sum;
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long pooledBuffer() {
+        PooledBuffer pooledBuffer = this.bufferPool.acquire(this.payloadSize);
+        ByteBuffer buffer = pooledBuffer.buffer();
+        for (int i = 0; i < this.payloadSize / Long.BYTES; i++) {
+            buffer.putLong(i);
+        }
+        ((Buffer) buffer).flip();
+
+        if (!this.ring.offer(pooledBuffer)) {
+            throw new IllegalStateException("The ring is full.");
+        }
+
+        PooledBuffer receivedBuffer = this.ring.poll();
+        try {
+            return readPayload(receivedBuffer.buffer());
+        } finally {
+            receivedBuffer.release();
+        }
+    }
+
+    @Benchmark
+    public long serialized() throws IOException, ClassNotFoundException {
+        long[] payload = new long[this.payloadSize / Long.BYTES];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = i;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(this.payloadSize + 64);
+        try (ObjectOutputStream outputStream = new ObjectOutputStream(bytes)) {
+            outputStream.writeObject(payload);
+        }
+
+        try (ObjectInputStream inputStream = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return sum((long[]) inputStream.readObject());
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.bufferPool = new BufferPool();
+        this.ring = new SpscRing<>(RING_CAPACITY);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.benchmarks;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.indoqa.osgi.embedded.container.EmbeddedOSGiContainer;
+
+/**
+ * Measures {@link EmbeddedOSGiContainer#initialize()} with a clean framework storage (cold) and with a framework storage that can
+ * be reused because of {@link com.indoqa.osgi.embedded.container.ContainerConfiguration#setWarmStart(boolean)} (warm).
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContainerStartupBenchmark {
+
+    @Param({"false", "true"})
+    public boolean warmStart;
+
+    private BenchmarkContainer benchmarkContainer;
+    private EmbeddedOSGiContainer container;
+
+    @Benchmark
+    public EmbeddedOSGiContainer initialize() {
+        this.container.initialize();
+        return this.container;
+    }
+
+    @Setup(Level.Iteration)
+    public void prepareContainer() {
+        this.container = this.benchmarkContainer.prepare();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.benchmarkContainer = new BenchmarkContainer(this.warmStart);
+
+        // populate the framework storage so that even the first iteration can do a warm start
+        this.benchmarkContainer.start();
+        this.benchmarkContainer.stop();
+    }
+
+    @TearDown(Level.Iteration)
+    public void stopContainer() {
+        this.benchmarkContainer.stop();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.benchmarkContainer.delete();
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.benchmarks;
+
+import java.util.function.LongSupplier;
+
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+
+/**
+ * The activator of the benchmark bundle, see {@link BenchmarkContainer#createServiceBundle(String)}.
+ */
+public class CountingLongSupplierActivator implements BundleActivator {
+
+    @Override
+    public void start(BundleContext context) {
+        context.registerService(LongSupplier.class, new CountingLongSupplier(), null);
+    }
+
+    @Override
+    public void stop(BundleContext context) {
+        // the service is unregistered by the framework
+    }
+}
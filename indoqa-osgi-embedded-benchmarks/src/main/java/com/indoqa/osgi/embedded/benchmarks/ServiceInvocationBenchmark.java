@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.benchmarks;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.indoqa.osgi.embedded.services.ServiceInvocationMetrics;
+import com.indoqa.osgi.embedded.services.TrackedServices;
+
+/**
+ * Measures the cost of invoking a service whose implementation was loaded by a bundle class loader compared to an instance of the
+ * same class loaded by the application class loader. The instrumented variant adds the timing proxy of
+ * {@link ServiceInvocationMetrics}, the proxy variant calls the service through {@link TrackedServices#createProxy()}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServiceInvocationBenchmark {
+
+    private BenchmarkContainer benchmarkContainer;
+    private TrackedServices<LongSupplier> trackedServices;
+    private TrackedServices<LongSupplier> instrumentedServices;
+
+    private LongSupplier localService;
+    private LongSupplier bundleService;
+    private LongSupplier instrumentedBundleService;
+    private LongSupplier proxiedBundleService;
+
+    @Benchmark
+    public long bundleClassLoader() {
+        return this.bundleService.getAsLong();
+    }
+
+    @Benchmark
+    public long bundleClassLoaderInstrumented() {
+        return this.instrumentedBundleService.getAsLong();
+    }
+
+    @Benchmark
+    public long bundleClassLoaderProxy() {
+        return this.proxiedBundleService.getAsLong();
+    }
+
+    @Benchmark
+    public long localClassLoader() {
+        return this.localService.getAsLong();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.benchmarkContainer = new BenchmarkContainer(false);
+        this.benchmarkContainer.start();
+        this.benchmarkContainer.installServiceBundle("com.indoqa.osgi.embedded.benchmarks.invocation");
+
+        this.trackedServices = new TrackedServices<>(this.benchmarkContainer.getSystemBundleContext(), LongSupplier.class);
+        this.trackedServices.open();
+        this.instrumentedServices = new TrackedServices<>(this.benchmarkContainer.getSystemBundleContext(), LongSupplier.class)
+            .setInvocationMetrics(new ServiceInvocationMetrics());
+        this.instrumentedServices.open();
+
+        this.localService = new CountingLongSupplier();
+        this.bundleService = this.trackedServices.getService();
+        this.instrumentedBundleService = this.instrumentedServices.getService();
+        this.proxiedBundleService = this.trackedServices.createProxy();
+
+        if (this.bundleService.getClass().getClassLoader() == CountingLongSupplier.class.getClassLoader()) {
+            throw new IllegalStateException("The bundle service has to be loaded by the bundle class loader.");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.instrumentedServices.close();
+        this.trackedServices.close();
+        this.benchmarkContainer.stop();
+        this.benchmarkContainer.delete();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.benchmarks;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.*;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
+
+import com.indoqa.osgi.embedded.services.TrackedServices;
+
+/**
+ * Compares the cost of looking up a service on every call: directly from the service registry, through a {@link ServiceTracker},
+ * through {@link TrackedServices} and from a plain field as baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServiceLookupBenchmark {
+
+    private BenchmarkContainer benchmarkContainer;
+    private BundleContext bundleContext;
+    private ServiceTracker<LongSupplier, LongSupplier> serviceTracker;
+    private TrackedServices<LongSupplier> trackedServices;
+    private LongSupplier cachedService;
+
+    @Benchmark
+    public LongSupplier cachedField() {
+        return this.cachedService;
+    }
+
+    @Benchmark
+    public LongSupplier serviceRegistry() {
+        ServiceReference<LongSupplier> reference = this.bundleContext.getServiceReference(LongSupplier.class);
+        try {
+            return this.bundleContext.getService(reference);
+        } finally {
+            this.bundleContext.ungetService(reference);
+        }
+    }
+
+    @Benchmark
+    public LongSupplier serviceTracker() {
+        return this.serviceTracker.getService();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.benchmarkContainer = new BenchmarkContainer(false);
+        this.benchmarkContainer.start();
+        this.benchmarkContainer.installServiceBundle("com.indoqa.osgi.embedded.benchmarks.lookup");
+        this.bundleContext = this.benchmarkContainer.getSystemBundleContext();
+
+        this.serviceTracker = new ServiceTracker<>(this.bundleContext, LongSupplier.class, null);
+        this.serviceTracker.open();
+
+        this.trackedServices = new TrackedServices<>(this.bundleContext, LongSupplier.class);
+        this.trackedServices.open();
+
+        this.cachedService = this.trackedServices.getService();
+        if (this.cachedService == null || this.serviceTracker.getService() == null) {
+            throw new IllegalStateException("The benchmark service is not available.");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.trackedServices.close();
+        this.serviceTracker.close();
+        this.benchmarkContainer.stop();
+        this.benchmarkContainer.delete();
+    }
+
+    @Benchmark
+    public LongSupplier trackedServices() {
+        return this.trackedServices.getService();
+    }
+}
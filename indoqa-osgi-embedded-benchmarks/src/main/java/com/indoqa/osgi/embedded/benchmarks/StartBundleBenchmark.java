@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.benchmarks;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.ByteArrayInputStream;
+
+import org.openjdk.jmh.annotations.*;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+
+import com.indoqa.osgi.embedded.container.EmbeddedOSGiContainer;
+
+/**
+ * Measures {@link EmbeddedOSGiContainer#startBundle(String, java.io.InputStream)} with a small bundle that registers a single
+ * service. Each operation installs and starts the bundle and uninstalls it afterwards so that the framework doesn't grow during
+ * the measurement.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StartBundleBenchmark {
+
+    private BenchmarkContainer benchmarkContainer;
+    private byte[] bundle;
+    private long counter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.benchmarkContainer = new BenchmarkContainer(false);
+        this.benchmarkContainer.start();
+        this.bundle = BenchmarkContainer.createServiceBundle("com.indoqa.osgi.embedded.benchmarks.start-bundle");
+    }
+
+    @Benchmark
+    public Bundle startBundle() throws BundleException {
+        Bundle startedBundle = this.benchmarkContainer
+            .getContainer()
+            .startBundle("benchmark:start-bundle-" + this.counter++, new ByteArrayInputStream(this.bundle));
+        startedBundle.uninstall();
+        return startedBundle;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.benchmarkContainer.stop();
+        this.benchmarkContainer.delete();
+    }
+}
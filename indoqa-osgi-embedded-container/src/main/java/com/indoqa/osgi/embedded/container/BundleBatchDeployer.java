@@ -0,0 +1,504 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.resource.Namespace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.indoqa.osgi.embedded.container.BundleDeploymentResult.Status;
+import com.indoqa.osgi.embedded.container.StartupReport.Category;
+
+/**
+ * Deploys a set of bundles in three phases: all bundles are installed in parallel, resolved together with a single
+ * {@link FrameworkWiring#resolveBundles(Collection)} call and finally started in dependency order, i.e. a bundle is started after
+ * all bundles of the same batch it is wired to. {@link #deployAtomically(Collection)} additionally uninstalls the whole batch if a
+ * single bundle can't be installed or resolved. Bundles with a start level above the current start level of the framework are only
+ * marked to be started, the framework starts them once it reaches their start level.
+ */
+/*default*/ final class BundleBatchDeployer {
+
+    private static final String THREAD_NAME_PREFIX = "embedded-osgi-bundle-installer";
+    private static final long REFRESH_TIMEOUT_SECONDS = 60;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final BundleContext bundleContext;
+    private final StartupRecorder startupRecorder;
+
+    public BundleBatchDeployer(BundleContext bundleContext, StartupRecorder startupRecorder) {
+        this.bundleContext = bundleContext;
+        this.startupRecorder = startupRecorder;
+    }
+
+    static boolean isFragment(Bundle bundle) {
+        BundleRevision revision = bundle.adapt(BundleRevision.class);
+        return revision != null && (revision.getTypes() & BundleRevision.TYPE_FRAGMENT) != 0;
+    }
+
+    /**
+     * @return <code>true</code> if the given bundle was started, but stays resolved until the framework reaches its start level.
+     */
+    static boolean isStartDeferred(Bundle bundle) {
+        int state = bundle.getState();
+        return !isFragment(bundle) && (state == Bundle.INSTALLED || state == Bundle.RESOLVED);
+    }
+
+    /**
+     * Set the start level of the given bundle unless it is 0, i.e. the default start level of the framework.
+     */
+    static void setStartLevel(Bundle bundle, int startLevel) {
+        if (startLevel > 0) {
+            bundle.adapt(BundleStartLevel.class).setStartLevel(startLevel);
+        }
+    }
+
+    static List<Bundle> sortByDependencies(List<Bundle> bundles) {
+        Set<Bundle> batch = new HashSet<>(bundles);
+        Set<Bundle> visited = new HashSet<>();
+        List<Bundle> result = new ArrayList<>(bundles.size());
+
+        for (Bundle bundle : bundles) {
+            visit(bundle, batch, visited, result);
+        }
+
+        return result;
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private static Throwable getInstallationError(Future<Bundle> future) {
+        try {
+            future.get();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return e;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    private static String getRequirementDescription(BundleRequirement requirement) {
+        String filter = requirement.getDirectives().get(Namespace.REQUIREMENT_FILTER_DIRECTIVE);
+        if (filter == null) {
+            return requirement.getNamespace();
+        }
+        return requirement.getNamespace() + "; " + filter;
+    }
+
+    private static boolean isMandatory(BundleRequirement requirement) {
+        String resolution = requirement.getDirectives().get(Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE);
+        return resolution == null || Namespace.RESOLUTION_MANDATORY.equals(resolution);
+    }
+
+    private static void visit(Bundle bundle, Set<Bundle> batch, Set<Bundle> visited, List<Bundle> result) {
+        if (!visited.add(bundle)) {
+            return;
+        }
+
+        BundleWiring wiring = bundle.adapt(BundleWiring.class);
+        if (wiring != null) {
+            for (BundleWire wire : wiring.getRequiredWires(null)) {
+                Bundle provider = wire.getProviderWiring().getBundle();
+                if (batch.contains(provider)) {
+                    visit(provider, batch, visited, result);
+                }
+            }
+        }
+
+        result.add(bundle);
+    }
+
+    public List<Bundle> deploy(Collection<BundleSource> sources) {
+        if (sources.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        long installStart = System.nanoTime();
+        List<Bundle> bundles = new ArrayList<>(sources.size());
+        Iterator<Future<Bundle>> futureIterator = this.installAll(sources).iterator();
+        for (BundleSource source : sources) {
+            bundles.add(this.waitForInstallation(source, futureIterator.next()));
+        }
+        long installMillis = elapsedMillis(installStart);
+
+        long resolveStart = System.nanoTime();
+        this.resolveAll(bundles);
+        long resolveMillis = elapsedMillis(resolveStart);
+
+        long startStart = System.nanoTime();
+        this.startAll(bundles);
+        long startMillis = elapsedMillis(startStart);
+
+        this.logger.info(
+            "Deployed " + bundles.size() + " bundle(s): install-ms=" + installMillis + ", resolve-ms=" + resolveMillis
+                + ", start-ms=" + startMillis);
+
+        return bundles;
+    }
+
+    /**
+     * Install, resolve and start the given bundles. If a bundle can't be installed or resolved, all bundles of the batch are
+     * uninstalled again. Bundles that fail to start don't affect the others. All locations must not be installed yet. Nothing is
+     * started before all bundles are resolved.
+     */
+    public List<BundleDeploymentResult> deployAtomically(Collection<BundleSource> sources) {
+        if (sources.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Map<BundleSource, Throwable> errors = this.validateLocations(sources);
+        if (!errors.isEmpty()) {
+            return this.rollback(sources, Collections.emptyMap(), errors);
+        }
+
+        long installStart = System.nanoTime();
+        List<Future<Bundle>> futures = this.installAll(sources);
+        Map<BundleSource, Bundle> bundles = new LinkedHashMap<>();
+        Iterator<Future<Bundle>> futureIterator = futures.iterator();
+        for (BundleSource source : sources) {
+            Future<Bundle> future = futureIterator.next();
+            Throwable error = getInstallationError(future);
+            if (error == null) {
+                bundles.put(source, this.waitForInstallation(source, future));
+            } else {
+                errors.put(source, error);
+            }
+        }
+        long installMillis = elapsedMillis(installStart);
+
+        if (!errors.isEmpty()) {
+            return this.rollback(sources, bundles, errors);
+        }
+
+        long resolveStart = System.nanoTime();
+        List<Bundle> installedBundles = new ArrayList<>(bundles.values());
+        this.resolveAll(installedBundles);
+        for (Entry<BundleSource, Bundle> entry : bundles.entrySet()) {
+            if (entry.getValue().getState() == Bundle.INSTALLED) {
+                errors.put(entry.getKey(), this.diagnoseResolution(entry.getValue()));
+            }
+        }
+        long resolveMillis = elapsedMillis(resolveStart);
+
+        if (!errors.isEmpty()) {
+            return this.rollback(sources, bundles, errors);
+        }
+
+        long startStart = System.nanoTime();
+        Map<Bundle, BundleException> startErrors = this.startAllIndependently(installedBundles);
+        long startMillis = elapsedMillis(startStart);
+
+        List<BundleDeploymentResult> results = new ArrayList<>(sources.size());
+        int deferredStarts = 0;
+        for (Entry<BundleSource, Bundle> entry : bundles.entrySet()) {
+            Bundle bundle = entry.getValue();
+            BundleException startError = startErrors.get(bundle);
+
+            if (startError != null) {
+                results.add(new BundleDeploymentResult(entry.getKey(), bundle, Status.FAILED, startError));
+            } else if (isFragment(bundle)) {
+                results.add(new BundleDeploymentResult(entry.getKey(), bundle, Status.RESOLVED, null));
+            } else if (isStartDeferred(bundle)) {
+                results.add(new BundleDeploymentResult(entry.getKey(), bundle, Status.DEFERRED, null));
+                deferredStarts++;
+            } else {
+                results.add(new BundleDeploymentResult(entry.getKey(), bundle, Status.STARTED, null));
+            }
+        }
+
+        this.logger.info(
+            "Deployed " + bundles.size() + " bundle(s) atomically: install-ms=" + installMillis + ", resolve-ms=" + resolveMillis
+                + ", start-ms=" + startMillis + ", start-failures=" + startErrors.size() + ", deferred-starts=" + deferredStarts);
+
+        return results;
+    }
+
+    /**
+     * Refresh the given bundles and wait until the framework has finished refreshing them.
+     */
+    public void refresh(Collection<Bundle> bundles) {
+        if (bundles.isEmpty()) {
+            return;
+        }
+
+        CountDownLatch refreshed = new CountDownLatch(1);
+        this.getFrameworkWiring().refreshBundles(bundles, event -> refreshed.countDown());
+
+        try {
+            if (!refreshed.await(REFRESH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                this.logger.warn("Refreshing " + bundles.size() + " bundle(s) didn't finish within " + REFRESH_TIMEOUT_SECONDS + "s.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EmbeddedOSGiContainerInitializationException("Interrupted while refreshing bundles.", e);
+        }
+    }
+
+    /**
+     * Resolve and start already installed bundles in dependency order.
+     */
+    public void start(List<Bundle> bundles) {
+        this.resolveAll(bundles);
+        this.startAll(bundles);
+    }
+
+    private void closeBundleInputStream(String location, InputStream inputStream) {
+        if (inputStream == null) {
+            return;
+        }
+
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            this.logger.warn("Can't close the input stream of bundle '" + location + "'.", e);
+        }
+    }
+
+    /**
+     * Bundles that can't be resolved don't tell why, so the resolver is asked again for this bundle alone and the mandatory
+     * requirements without any provider are reported. Nothing is started.
+     */
+    private Throwable diagnoseResolution(Bundle bundle) {
+        if (isFragment(bundle)) {
+            return new BundleException("The host of the fragment '" + bundle.getLocation() + "' is not available.");
+        }
+
+        FrameworkWiring frameworkWiring = this.getFrameworkWiring();
+        if (frameworkWiring.resolveBundles(Collections.singleton(bundle))) {
+            return new BundleException("The bundle '" + bundle.getLocation() + "' could not be resolved together with its batch.");
+        }
+
+        List<String> missingRequirements = new ArrayList<>();
+        BundleRevision revision = bundle.adapt(BundleRevision.class);
+        for (BundleRequirement requirement : revision.getDeclaredRequirements(null)) {
+            if (isMandatory(requirement) && frameworkWiring.findProviders(requirement).isEmpty()) {
+                missingRequirements.add(getRequirementDescription(requirement));
+            }
+        }
+
+        if (missingRequirements.isEmpty()) {
+            return new BundleException(
+                "The bundle '" + bundle.getLocation() + "' could not be resolved because of conflicting requirements.",
+                BundleException.RESOLVE_ERROR);
+        }
+        return new BundleException(
+            "The bundle '" + bundle.getLocation() + "' could not be resolved. Missing requirements: " + missingRequirements,
+            BundleException.RESOLVE_ERROR);
+    }
+
+    private FrameworkWiring getFrameworkWiring() {
+        return this.bundleContext.getBundle(Constants.SYSTEM_BUNDLE_LOCATION).adapt(FrameworkWiring.class);
+    }
+
+    /**
+     * Errors aren't logged here because {@link #deploy(Collection)} reports them as initialization errors and
+     * {@link #deployAtomically(Collection)} returns them as part of the results.
+     */
+    private Bundle install(BundleSource source) throws IOException, BundleException {
+        String location = source.getLocation();
+        long start = System.nanoTime();
+        InputStream inputStream = null;
+        try {
+            if (!source.isReference()) {
+                inputStream = source.openStream();
+            }
+            Bundle bundle = this.bundleContext.installBundle(location, inputStream);
+            setStartLevel(bundle, source.getStartLevel());
+            this.startupRecorder.record(Category.BUNDLE_INSTALL, location, start);
+            return bundle;
+        } finally {
+            this.closeBundleInputStream(location, inputStream);
+        }
+    }
+
+    /**
+     * @return The completed installations in the order of the sources.
+     */
+    private List<Future<Bundle>> installAll(Collection<BundleSource> sources) {
+        int threads = Math.min(sources.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executorService = Executors.newFixedThreadPool(threads, new NamedThreadFactory(THREAD_NAME_PREFIX));
+
+        try {
+            List<Future<Bundle>> futures = new ArrayList<>(sources.size());
+            for (BundleSource source : sources) {
+                futures.add(executorService.submit(() -> this.install(source)));
+            }
+
+            for (Future<Bundle> future : futures) {
+                getInstallationError(future);
+            }
+            return futures;
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private void resolveAll(List<Bundle> bundles) {
+        if (bundles.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean resolved = this.getFrameworkWiring().resolveBundles(bundles);
+        this.startupRecorder.record(Category.BUNDLE_RESOLVE, bundles.size() + "-bundles", start);
+        if (resolved) {
+            return;
+        }
+
+        for (Bundle bundle : bundles) {
+            if (bundle.getState() == Bundle.INSTALLED) {
+                this.logger.warn("Bundle '" + bundle.getLocation() + "' could not be resolved.");
+            }
+        }
+    }
+
+    private List<BundleDeploymentResult> rollback(Collection<BundleSource> sources, Map<BundleSource, Bundle> bundles,
+            Map<BundleSource, Throwable> errors) {
+        List<Bundle> uninstalledBundles = new ArrayList<>();
+        for (Bundle bundle : bundles.values()) {
+            try {
+                bundle.uninstall();
+                uninstalledBundles.add(bundle);
+            } catch (BundleException e) {
+                this.logger.error("Can't uninstall bundle '" + bundle.getLocation() + "' while rolling back a deployment.", e);
+            }
+        }
+        this.refresh(uninstalledBundles);
+
+        List<BundleDeploymentResult> results = new ArrayList<>(sources.size());
+        for (BundleSource source : sources) {
+            Throwable error = errors.get(source);
+            Status status = error == null ? Status.ROLLED_BACK : Status.FAILED;
+            results.add(new BundleDeploymentResult(source, bundles.get(source), status, error));
+        }
+
+        this.logger.warn(
+            "Rolled back the deployment of " + sources.size() + " bundle(s) because " + errors.size()
+                + " of them couldn't be installed or resolved: " + errors.keySet());
+
+        return results;
+    }
+
+    private void startAll(List<Bundle> bundles) {
+        for (Bundle bundle : sortByDependencies(bundles)) {
+            if (isFragment(bundle)) {
+                continue;
+            }
+
+            try {
+                this.startBundle(bundle);
+            } catch (BundleException e) {
+                String msg = "Can't initialize bundle '" + bundle.getLocation() + "'.";
+                this.logger.error(msg, e);
+                throw new EmbeddedOSGiContainerInitializationException(msg, e);
+            }
+        }
+    }
+
+    private void startBundle(Bundle bundle) throws BundleException {
+        long start = System.nanoTime();
+        bundle.start();
+
+        if (isStartDeferred(bundle)) {
+            this.logger.info(
+                "Bundle will be started at its start level: location=" + bundle.getLocation() + "; start-level="
+                    + bundle.adapt(BundleStartLevel.class).getStartLevel());
+            return;
+        }
+
+        this.startupRecorder.record(Category.BUNDLE_START, bundle.getLocation(), start);
+        this.logger.info("Started bundle: " + bundle.getLocation());
+    }
+
+    private Map<Bundle, BundleException> startAllIndependently(List<Bundle> bundles) {
+        Map<Bundle, BundleException> errors = new HashMap<>();
+
+        for (Bundle bundle : sortByDependencies(bundles)) {
+            if (isFragment(bundle)) {
+                continue;
+            }
+
+            try {
+                this.startBundle(bundle);
+            } catch (BundleException e) {
+                this.logger.error("Can't start bundle '" + bundle.getLocation() + "'.", e);
+                errors.put(bundle, e);
+            }
+        }
+
+        return errors;
+    }
+
+    private Map<BundleSource, Throwable> validateLocations(Collection<BundleSource> sources) {
+        Map<BundleSource, Throwable> errors = new LinkedHashMap<>();
+        Set<String> locations = new HashSet<>();
+
+        for (BundleSource source : sources) {
+            String location = source.getLocation();
+            if (!locations.add(location)) {
+                errors.put(source, new BundleException("The location '" + location + "' is part of the deployment more than once."));
+            } else if (this.bundleContext.getBundle(location) != null) {
+                errors.put(source, new BundleException("A bundle with the location '" + location + "' is already installed."));
+            }
+        }
+
+        return errors;
+    }
+
+    private Bundle waitForInstallation(BundleSource source, Future<Bundle> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EmbeddedOSGiContainerInitializationException("Interrupted while installing bundles.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            String msg = "Can't initialize bundle '" + source.getLocation() + "'.";
+            this.logger.error(msg, e.getCause());
+            throw new EmbeddedOSGiContainerInitializationException(msg, e.getCause());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * The outcome of deploying a single {@link BundleSource} with {@link EmbeddedOSGiContainer#deployBundles(java.util.Collection)}.
+ */
+public final class BundleDeploymentResult {
+
+    private final BundleSource source;
+    private final Bundle bundle;
+    private final Status status;
+    private final Throwable error;
+
+    /*default*/ BundleDeploymentResult(BundleSource source, Bundle bundle, Status status, Throwable error) {
+        this.source = source;
+        this.bundle = bundle;
+        this.status = status;
+        this.error = error;
+    }
+
+    /**
+     * @return The installed bundle or <code>null</code> if the installation failed. Rolled back bundles are already uninstalled.
+     */
+    public Bundle getBundle() {
+        return this.bundle;
+    }
+
+    /**
+     * @return The cause of the failure or <code>null</code> if the bundle was deployed successfully or rolled back because of another
+     *         bundle.
+     */
+    public Throwable getError() {
+        return this.error;
+    }
+
+    public String getLocation() {
+        return this.source.getLocation();
+    }
+
+    public BundleSource getSource() {
+        return this.source;
+    }
+
+    public Status getStatus() {
+        return this.status;
+    }
+
+    public boolean isSuccessful() {
+        return this.status == Status.STARTED || this.status == Status.DEFERRED || this.status == Status.RESOLVED;
+    }
+
+    @Override
+    public String toString() {
+        return "location=" + this.getLocation() + "; status=" + this.status + (this.error == null ? "" : "; error=" + this.error);
+    }
+
+    public enum Status {
+
+        /** The bundle was installed or updated and started. */
+        STARTED,
+
+        /**
+         * The bundle was installed or updated and resolved, but its start level is above the current start level of the framework.
+         * The framework starts it as soon as it reaches that start level.
+         */
+        DEFERRED,
+
+        /** The bundle is a fragment that was installed or updated and attached to its host. */
+        RESOLVED,
+
+        /** The bundle couldn't be installed, updated, resolved or started, see {@link BundleDeploymentResult#getError()}. */
+        FAILED,
+
+        /** The bundle was uninstalled again because another bundle of the same deployment failed. */
+        ROLLED_BACK
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent index of the SHA-256 digests of all bundles that were installed by the container, keyed by the bundle location. It
+ * is stored in the framework storage directory and used to reuse unchanged bundles from the framework cache on a warm start.
+ */
+/*default*/ final class BundleDigestIndex {
+
+    private static final String FILE_NAME = "embedded-osgi-bundle-digests.properties";
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final Path file;
+    private final Properties digests = new Properties();
+
+    private BundleDigestIndex(Path file) {
+        this.file = file;
+    }
+
+    public static String digest(byte[] bytes) {
+        return toHex(createMessageDigest().digest(bytes));
+    }
+
+    public static String digest(Path path) throws IOException {
+        MessageDigest messageDigest = createMessageDigest();
+
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, read);
+            }
+        }
+
+        return toHex(messageDigest.digest());
+    }
+
+    public static BundleDigestIndex load(Path frameworkStorage) {
+        BundleDigestIndex index = new BundleDigestIndex(frameworkStorage.resolve(FILE_NAME));
+
+        if (Files.exists(index.file)) {
+            try (InputStream inputStream = Files.newInputStream(index.file)) {
+                index.digests.load(inputStream);
+            } catch (IOException e) {
+                index.logger.warn("Can't read the bundle digest index '" + index.file + "'. All bundles will be reinstalled.", e);
+                index.digests.clear();
+            }
+        }
+
+        return index;
+    }
+
+    private static MessageDigest createMessageDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new EmbeddedOSGiContainerInitializationException("The digest algorithm " + DIGEST_ALGORITHM + " is not available.", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte eachByte : bytes) {
+            result.append(Character.forDigit((eachByte >> 4) & 0xF, 16));
+            result.append(Character.forDigit(eachByte & 0xF, 16));
+        }
+        return result.toString();
+    }
+
+    public synchronized boolean matches(String location, String digest) {
+        return digest.equals(this.digests.getProperty(location));
+    }
+
+    public synchronized void put(String location, String digest) {
+        this.digests.setProperty(location, digest);
+    }
+
+    public synchronized void remove(String location) {
+        this.digests.remove(location);
+    }
+
+    public synchronized void store() {
+        try {
+            Path tempFile = this.file.resolveSibling(FILE_NAME + ".tmp");
+            try (OutputStream outputStream = Files.newOutputStream(tempFile)) {
+                this.digests.store(outputStream, "Digests of the bundles installed by the embedded OSGi container");
+            }
+            Files.move(tempFile, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            this.logger.warn("Can't write the bundle digest index '" + this.file + "'.", e);
+        }
+    }
+}
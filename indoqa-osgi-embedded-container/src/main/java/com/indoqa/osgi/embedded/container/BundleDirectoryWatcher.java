@@ -0,0 +1,725 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.regex.Pattern;
+import java.util.zip.ZipFile;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.indoqa.osgi.embedded.container.StartupReport.Category;
+import com.indoqa.osgi.embedded.services.TrackedServices;
+
+/**
+ * An alternative to the Felix FileInstall bundle that uses a {@link WatchService} instead of polling in order to deploy the bundles
+ * of a set of directories:
+ * <ul>
+ * <li>Changes are only applied after a file has been left untouched for a quiet period. This debounces partially written jars and
+ * coalesces bursts of changes into a single batch.</li>
+ * <li>New files are installed and started, changed files are updated and deleted files are uninstalled. Updated and uninstalled
+ * bundles are refreshed together at the end of each batch, see
+ * {@link ContainerConfiguration#setPackageRefreshQuietPeriod(long)}.</li>
+ * <li>Optionally, changed bundles are hot-swapped: the new version is installed side by side and the old version is only
+ * uninstalled once the new one provides the same services and has warmed up. If it isn't ready in time, the new version is
+ * uninstalled again and the old one is kept, see {@link ContainerConfiguration#setBundleDirectoryWatcherHotSwap(boolean)}.</li>
+ * <li>New bundles get the start level of their directory, see {@link ContainerConfiguration#addFileInstallDir(Path, int)}.</li>
+ * <li>A periodic full rescan catches file system events that got lost, e.g. because of an overflow of the watch service.</li>
+ * <li>If a {@link BundleDigestIndex} is available, bundles that were installed by a previous run are only updated if their content
+ * has changed.</li>
+ * </ul>
+ */
+/*default*/ final class BundleDirectoryWatcher implements Runnable {
+
+    private static final String THREAD_NAME = "embedded-osgi-bundle-directory-watcher";
+    private static final String DEFAULT_FILE_SUFFIX = ".jar";
+    private static final String REFERENCE_PROTOCOL = "reference:";
+    private static final String HOT_SWAP_LOCATION_SUFFIX = "#hot-swap";
+    private static final long STOP_TIMEOUT_MILLIS = 5_000;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final BundleContext bundleContext;
+    private final Set<Path> directories;
+    private final Map<Path, Integer> startLevels = new HashMap<>();
+    private final Pattern filter;
+    private final boolean startNewBundles;
+    private final boolean referenceInstall;
+    private final boolean hotSwap;
+    private final long hotSwapTimeoutNanos;
+    private final long quietPeriodNanos;
+    private final long rescanIntervalNanos;
+    private final BundleDigestIndex digestIndex;
+    private final StartupRecorder startupRecorder;
+    private final PackageRefreshCoalescer packageRefreshCoalescer;
+
+    private final Map<Path, FileState> deployedFiles = new HashMap<>();
+    private final Map<Path, PendingChange> pendingChanges = new HashMap<>();
+
+    private WatchService watchService;
+    private Thread thread;
+    private volatile boolean running;
+    private long nextRescan;
+
+    public BundleDirectoryWatcher(BundleContext bundleContext, ContainerConfiguration containerConfiguration,
+            BundleDigestIndex digestIndex, StartupRecorder startupRecorder, PackageRefreshCoalescer packageRefreshCoalescer) {
+        this.bundleContext = bundleContext;
+        this.digestIndex = digestIndex;
+        this.startupRecorder = startupRecorder;
+        this.packageRefreshCoalescer = packageRefreshCoalescer;
+        this.directories = new HashSet<>();
+        for (Path directory : containerConfiguration.getFileInstallDirs()) {
+            Path normalizedDirectory = directory.toAbsolutePath().normalize();
+            this.directories.add(normalizedDirectory);
+            this.startLevels.put(normalizedDirectory, containerConfiguration.getFileInstallDirStartLevel(directory));
+        }
+
+        String fileInstallFilter = containerConfiguration.getFileInstallFilter();
+        this.filter = fileInstallFilter == null ? null : Pattern.compile(fileInstallFilter);
+        this.startNewBundles = containerConfiguration.isFileInstallNewStart();
+        this.referenceInstall = containerConfiguration.isBundleDirectoryWatcherReferenceInstall();
+        this.hotSwap = containerConfiguration.isBundleDirectoryWatcherHotSwap() && !this.referenceInstall;
+        this.hotSwapTimeoutNanos = MILLISECONDS.toNanos(containerConfiguration.getBundleDirectoryWatcherHotSwapTimeout());
+        if (containerConfiguration.isBundleDirectoryWatcherHotSwap() && this.referenceInstall) {
+            this.logger.warn("Hot swaps are disabled because bundles are installed by reference.");
+        }
+        this.quietPeriodNanos = MILLISECONDS.toNanos(containerConfiguration.getBundleDirectoryWatcherQuietPeriod());
+        this.rescanIntervalNanos = MILLISECONDS.toNanos(containerConfiguration.getBundleDirectoryWatcherRescanInterval());
+    }
+
+    private static boolean isReadableArchive(Path path) {
+        try (ZipFile zipFile = new ZipFile(path.toFile())) {
+            return zipFile.getEntry("META-INF/MANIFEST.MF") != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static Set<String> getServiceTypes(Bundle bundle) {
+        Set<String> serviceTypes = new HashSet<>();
+
+        ServiceReference<?>[] serviceReferences = bundle.getRegisteredServices();
+        if (serviceReferences != null) {
+            for (ServiceReference<?> serviceReference : serviceReferences) {
+                serviceTypes.addAll(Arrays.asList((String[]) serviceReference.getProperty(Constants.OBJECTCLASS)));
+            }
+        }
+
+        return serviceTypes;
+    }
+
+    private static boolean isReady(HotSwap hotSwap) {
+        return hotSwap.newBundle.getState() == Bundle.ACTIVE && getServiceTypes(hotSwap.newBundle).containsAll(hotSwap.serviceTypes)
+            && !isWarming(hotSwap.newBundle);
+    }
+
+    private static boolean isWarming(Bundle bundle) {
+        ServiceReference<?>[] serviceReferences = bundle.getRegisteredServices();
+        if (serviceReferences == null) {
+            return false;
+        }
+
+        for (ServiceReference<?> serviceReference : serviceReferences) {
+            if (TrackedServices.isWarming(serviceReference)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isWiredTo(Bundle bundle, Bundle provider) {
+        BundleWiring wiring = bundle.adapt(BundleWiring.class);
+        if (wiring == null) {
+            return false;
+        }
+
+        for (BundleWire wire : wiring.getRequiredWires(null)) {
+            if (wire.getProviderWiring().getBundle().equals(provider)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Path toPath(String location) throws URISyntaxException {
+        String uri = location;
+        if (uri.endsWith(HOT_SWAP_LOCATION_SUFFIX)) {
+            uri = uri.substring(0, uri.length() - HOT_SWAP_LOCATION_SUFFIX.length());
+        }
+        if (uri.startsWith(REFERENCE_PROTOCOL)) {
+            uri = uri.substring(REFERENCE_PROTOCOL.length());
+        }
+        return Paths.get(new URI(uri));
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            try {
+                WatchKey watchKey = this.watchService.poll(this.getPollTimeoutMillis(), MILLISECONDS);
+                while (watchKey != null) {
+                    this.collectEvents(watchKey);
+                    watchKey = this.watchService.poll();
+                }
+
+                if (System.nanoTime() - this.nextRescan >= 0) {
+                    this.rescan();
+                }
+
+                this.deployPendingChanges(false);
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                this.logger.error("Error while watching the bundle directories " + this.directories + ".", e);
+            }
+        }
+    }
+
+    /**
+     * Deploy all bundles that are currently available in the watched directories and start watching them for changes.
+     */
+    public void start() {
+        try {
+            this.watchService = FileSystems.getDefault().newWatchService();
+            for (Path directory : this.directories) {
+                directory.register(this.watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            }
+        } catch (IOException e) {
+            throw new EmbeddedOSGiContainerInitializationException("Can't watch the bundle directories " + this.directories + ".", e);
+        }
+
+        this.uninstallOrphanedBundles();
+        this.rescan();
+        this.deployPendingChanges(true);
+
+        if (this.digestIndex != null) {
+            this.digestIndex.store();
+        }
+
+        this.running = true;
+        this.thread = new Thread(this, THREAD_NAME);
+        this.thread.setDaemon(true);
+        this.thread.start();
+
+        this.logger.info("Started watching the bundle directories " + this.directories + ".");
+    }
+
+    public void stop() {
+        this.running = false;
+
+        if (this.thread != null) {
+            this.thread.interrupt();
+            try {
+                this.thread.join(STOP_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (this.watchService != null) {
+            try {
+                this.watchService.close();
+            } catch (IOException e) {
+                this.logger.warn("Error while closing the watch service of the bundle directories " + this.directories + ".", e);
+            }
+        }
+    }
+
+    /**
+     * Wait until the new versions of all given hot swaps are ready or the hot swap timeout has elapsed. All hot swaps of a batch
+     * share the same deadline.
+     */
+    private void awaitHotSwaps(List<HotSwap> hotSwaps) {
+        long deadline = System.nanoTime() + this.hotSwapTimeoutNanos;
+        Object monitor = new Object();
+        ServiceListener serviceListener = event -> {
+            synchronized (monitor) {
+                monitor.notifyAll();
+            }
+        };
+
+        this.bundleContext.addServiceListener(serviceListener);
+        try {
+            synchronized (monitor) {
+                while (!hotSwaps.stream().allMatch(BundleDirectoryWatcher::isReady)) {
+                    long remainingNanos = deadline - System.nanoTime();
+                    if (remainingNanos <= 0) {
+                        return;
+                    }
+                    NANOSECONDS.timedWait(monitor, remainingNanos);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.bundleContext.removeServiceListener(serviceListener);
+        }
+    }
+
+    /**
+     * Install the new version of the given bundle side by side and start it. The hot swap is completed by
+     * {@link #completeHotSwaps(List, List)} once all new versions of the batch are ready. If the new version can't be started, e.g.
+     * because it is a singleton, the old version is updated in place instead. The same applies if the new version is wired to the
+     * old one, e.g. because it imports the packages it exports: refreshing the old version would restart the new one as well.
+     */
+    private void beginHotSwap(Bundle oldBundle, Path path, List<Bundle> refresh, List<HotSwap> hotSwaps)
+            throws IOException, BundleException {
+        String oldLocation = oldBundle.getLocation();
+        String location = this.toLocation(path);
+        if (oldLocation.equals(location)) {
+            location += HOT_SWAP_LOCATION_SUFFIX;
+        }
+
+        Set<String> serviceTypes = getServiceTypes(oldBundle);
+        Bundle newBundle = this.install(location, path);
+        this.getFrameworkWiring().resolveBundles(Collections.singleton(newBundle));
+        if (isWiredTo(newBundle, oldBundle)) {
+            this.logger.info("The new version of bundle '" + oldLocation + "' is wired to the old one, updating it in place.");
+            this.updateInsteadOfHotSwap(oldBundle, newBundle, path);
+            refresh.add(oldBundle);
+            return;
+        }
+
+        try {
+            newBundle.start();
+        } catch (BundleException e) {
+            this.logger.warn("Can't start the new version of bundle '" + oldLocation + "' side by side, updating it in place.", e);
+            this.updateInsteadOfHotSwap(oldBundle, newBundle, path);
+            refresh.add(oldBundle);
+            return;
+        }
+
+        hotSwaps.add(new HotSwap(oldBundle, newBundle, path, serviceTypes));
+    }
+
+    private void collectEvents(WatchKey watchKey) {
+        Path directory = (Path) watchKey.watchable();
+
+        for (WatchEvent<?> event : watchKey.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                this.nextRescan = System.nanoTime();
+                continue;
+            }
+
+            Path path = directory.resolve((Path) event.context());
+            if (this.isBundleFile(path)) {
+                this.schedule(path);
+            }
+        }
+
+        watchKey.reset();
+    }
+
+    /**
+     * Uninstall the old version of each hot swap whose new version is ready. The new versions that aren't ready are uninstalled
+     * instead, so the old versions keep serving until the next change of their files.
+     */
+    private void completeHotSwaps(List<HotSwap> hotSwaps, List<Bundle> refresh) {
+        if (hotSwaps.isEmpty()) {
+            return;
+        }
+
+        this.awaitHotSwaps(hotSwaps);
+
+        for (HotSwap hotSwap : hotSwaps) {
+            String oldLocation = hotSwap.oldBundle.getLocation();
+            String location = hotSwap.newBundle.getLocation();
+
+            try {
+                if (isReady(hotSwap)) {
+                    hotSwap.oldBundle.uninstall();
+                    refresh.add(hotSwap.oldBundle);
+                    this.removeDigest(oldLocation);
+                    this.updateDigest(location, hotSwap.path);
+                    this.logger.info("Hot-swapped bundle: previous-location=" + oldLocation + "; location=" + location);
+                } else {
+                    hotSwap.newBundle.uninstall();
+                    refresh.add(hotSwap.newBundle);
+                    this.logger.warn(
+                        "The new version of a hot-swapped bundle wasn't ready in time, keeping the previous version: "
+                            + "previous-location=" + oldLocation + "; location=" + location + "; service-types="
+                            + hotSwap.serviceTypes);
+                }
+            } catch (BundleException | IOException e) {
+                this.logger.error("Can't complete the hot swap of bundle '" + oldLocation + "'.", e);
+            }
+        }
+    }
+
+    private void deploy(Path path, FileState fileState, List<Bundle> installed, List<Bundle> refresh, List<HotSwap> hotSwaps) {
+        String location = this.toLocation(path);
+        Bundle bundle = this.getDeployedBundle(path);
+
+        try {
+            if (fileState == null) {
+                this.deployedFiles.remove(path);
+                if (bundle != null) {
+                    bundle.uninstall();
+                    refresh.add(bundle);
+                    this.removeDigest(bundle.getLocation());
+                    this.logger.info("Uninstalled bundle: " + bundle.getLocation());
+                }
+                return;
+            }
+
+            if (bundle == null) {
+                installed.add(this.install(location, path));
+                this.updateDigest(location, path);
+                this.logger.info("Installed bundle: " + location);
+            } else if (this.isChanged(path, fileState, bundle)) {
+                if (this.hotSwap && bundle.getState() == Bundle.ACTIVE) {
+                    this.beginHotSwap(bundle, path, refresh, hotSwaps);
+                } else {
+                    this.update(bundle, path);
+                    refresh.add(bundle);
+                    this.updateDigest(bundle.getLocation(), path);
+                    this.logger.info("Updated bundle: " + bundle.getLocation());
+                }
+            }
+
+            this.deployedFiles.put(path, fileState);
+        } catch (BundleException | IOException e) {
+            this.logger.error("Can't deploy bundle '" + location + "'.", e);
+        }
+    }
+
+    private void deployPendingChanges(boolean ignoreQuietPeriod) {
+        long now = System.nanoTime();
+        List<Bundle> installed = new ArrayList<>();
+        List<Bundle> refresh = new ArrayList<>();
+        List<HotSwap> hotSwaps = new ArrayList<>();
+
+        for (Iterator<Entry<Path, PendingChange>> iterator = this.pendingChanges.entrySet().iterator(); iterator.hasNext();) {
+            Entry<Path, PendingChange> entry = iterator.next();
+            Path path = entry.getKey();
+            PendingChange pendingChange = entry.getValue();
+
+            if (!ignoreQuietPeriod && now - pendingChange.lastEvent < this.quietPeriodNanos) {
+                continue;
+            }
+
+            FileState fileState = FileState.of(path);
+            if (!ignoreQuietPeriod && !Objects.equals(fileState, pendingChange.fileState)) {
+                // the file is still being written
+                pendingChange.fileState = fileState;
+                pendingChange.lastEvent = now;
+                continue;
+            }
+
+            if (fileState != null && !isReadableArchive(path)) {
+                // keep the change pending until the archive can be read
+                if (!pendingChange.unreadable) {
+                    this.logger.warn("Deferring bundle file '" + path + "' because it isn't a readable archive (yet).");
+                    pendingChange.unreadable = true;
+                }
+                pendingChange.fileState = fileState;
+                pendingChange.lastEvent = now;
+                continue;
+            }
+
+            iterator.remove();
+            this.deploy(path, fileState, installed, refresh, hotSwaps);
+        }
+
+        this.startBundles(installed);
+        this.completeHotSwaps(hotSwaps, refresh);
+        this.packageRefreshCoalescer.request(refresh, true);
+
+        if (this.digestIndex != null && (!installed.isEmpty() || !refresh.isEmpty() || !hotSwaps.isEmpty())) {
+            this.digestIndex.store();
+        }
+    }
+
+    private long getPollTimeoutMillis() {
+        long now = System.nanoTime();
+        long timeout = this.nextRescan - now;
+
+        for (PendingChange pendingChange : this.pendingChanges.values()) {
+            timeout = Math.min(timeout, pendingChange.lastEvent + this.quietPeriodNanos - now);
+        }
+
+        return Math.max(1, NANOSECONDS.toMillis(timeout));
+    }
+
+    /**
+     * @return The bundle of the given file, which alternates between two locations if the file is hot-swapped.
+     */
+    private Bundle getDeployedBundle(Path path) {
+        String location = this.toLocation(path);
+
+        Bundle bundle = this.bundleContext.getBundle(location);
+        if (bundle == null) {
+            bundle = this.bundleContext.getBundle(location + HOT_SWAP_LOCATION_SUFFIX);
+        }
+        return bundle;
+    }
+
+    private FrameworkWiring getFrameworkWiring() {
+        return this.bundleContext.getBundle(Constants.SYSTEM_BUNDLE_LOCATION).adapt(FrameworkWiring.class);
+    }
+
+    private Bundle install(String location, Path path) throws IOException, BundleException {
+        long start = System.nanoTime();
+        Bundle bundle;
+        if (this.referenceInstall) {
+            bundle = this.bundleContext.installBundle(location);
+        } else {
+            try (InputStream inputStream = Files.newInputStream(path)) {
+                bundle = this.bundleContext.installBundle(location, inputStream);
+            }
+        }
+
+        BundleBatchDeployer.setStartLevel(bundle, this.startLevels.get(path.getParent()));
+        this.startupRecorder.record(Category.BUNDLE_INSTALL, location, start);
+        return bundle;
+    }
+
+    private boolean isBundleFile(Path path) {
+        String fileName = path.getFileName().toString();
+
+        if (this.filter != null) {
+            return this.filter.matcher(fileName).matches();
+        }
+
+        return fileName.endsWith(DEFAULT_FILE_SUFFIX);
+    }
+
+    private boolean isChanged(Path path, FileState fileState, Bundle bundle) throws IOException {
+        FileState deployedFileState = this.deployedFiles.get(path);
+        if (deployedFileState != null) {
+            return !fileState.equals(deployedFileState);
+        }
+
+        // the bundle was installed by a previous run of the container
+        if (this.digestIndex != null) {
+            return !this.digestIndex.matches(bundle.getLocation(), BundleDigestIndex.digest(path));
+        }
+        return fileState.lastModified > bundle.getLastModified();
+    }
+
+    private boolean isWatchedLocation(String location) {
+        try {
+            return this.directories.contains(toPath(location).getParent());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void removeDigest(String location) {
+        if (this.digestIndex != null) {
+            this.digestIndex.remove(location);
+        }
+    }
+
+    private void rescan() {
+        Set<Path> files = new HashSet<>();
+
+        for (Path directory : this.directories) {
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)) {
+                for (Path path : directoryStream) {
+                    if (Files.isRegularFile(path) && this.isBundleFile(path)) {
+                        files.add(path);
+                    }
+                }
+            } catch (IOException e) {
+                this.logger.error("Can't scan the bundle directory '" + directory + "'.", e);
+            }
+        }
+
+        for (Path path : files) {
+            if (!Objects.equals(FileState.of(path), this.deployedFiles.get(path))) {
+                this.schedule(path);
+            }
+        }
+
+        for (Path path : this.deployedFiles.keySet()) {
+            if (!files.contains(path)) {
+                this.schedule(path);
+            }
+        }
+
+        this.nextRescan = System.nanoTime() + this.rescanIntervalNanos;
+    }
+
+    private void schedule(Path path) {
+        PendingChange pendingChange = this.pendingChanges.computeIfAbsent(path, key -> new PendingChange());
+        pendingChange.lastEvent = System.nanoTime();
+        pendingChange.fileState = FileState.of(path);
+    }
+
+    private void startBundles(List<Bundle> bundles) {
+        if (bundles.isEmpty() || !this.startNewBundles) {
+            return;
+        }
+
+        long resolveStart = System.nanoTime();
+        this.getFrameworkWiring().resolveBundles(bundles);
+        this.startupRecorder.record(Category.BUNDLE_RESOLVE, bundles.size() + "-bundles", resolveStart);
+
+        for (Bundle bundle : BundleBatchDeployer.sortByDependencies(bundles)) {
+            if (BundleBatchDeployer.isFragment(bundle)) {
+                continue;
+            }
+
+            try {
+                long start = System.nanoTime();
+                bundle.start();
+                if (BundleBatchDeployer.isStartDeferred(bundle)) {
+                    this.logger.info(
+                        "Bundle will be started at its start level: location=" + bundle.getLocation() + "; start-level="
+                            + bundle.adapt(BundleStartLevel.class).getStartLevel());
+                    continue;
+                }
+                this.startupRecorder.record(Category.BUNDLE_START, bundle.getLocation(), start);
+                this.logger.info("Started bundle: " + bundle.getLocation());
+            } catch (BundleException e) {
+                this.logger.error("Can't start bundle '" + bundle.getLocation() + "'.", e);
+            }
+        }
+    }
+
+    private String toLocation(Path path) {
+        if (this.referenceInstall) {
+            return BundleSource.toReferenceLocation(path);
+        }
+        return path.toUri().toString();
+    }
+
+    private void uninstallOrphanedBundles() {
+        for (Bundle bundle : this.bundleContext.getBundles()) {
+            String location = bundle.getLocation();
+            if (!this.isWatchedLocation(location)) {
+                continue;
+            }
+
+            try {
+                // bundles of a previous run that used the other install mode are replaced as well
+                Path path = toPath(location);
+                if (!Files.exists(path) || this.getDeployedBundle(path) != bundle) {
+                    bundle.uninstall();
+                    this.removeDigest(location);
+                    this.logger.info("Uninstalled bundle: " + location);
+                }
+            } catch (BundleException | URISyntaxException | IllegalArgumentException e) {
+                this.logger.error("Can't uninstall bundle '" + location + "'.", e);
+            }
+        }
+    }
+
+    private void update(Bundle bundle, Path path) throws IOException, BundleException {
+        if (this.referenceInstall) {
+            bundle.update();
+            return;
+        }
+
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            bundle.update(inputStream);
+        }
+    }
+
+    private void updateDigest(String location, Path path) throws IOException {
+        if (this.digestIndex != null) {
+            this.digestIndex.put(location, BundleDigestIndex.digest(path));
+        }
+    }
+
+    private void updateInsteadOfHotSwap(Bundle oldBundle, Bundle newBundle, Path path) throws IOException, BundleException {
+        newBundle.uninstall();
+        this.update(oldBundle, path);
+        this.updateDigest(oldBundle.getLocation(), path);
+    }
+
+    private static final class FileState {
+
+        private final long size;
+        private final long lastModified;
+
+        private FileState(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public static FileState of(Path path) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                return new FileState(attributes.size(), attributes.lastModifiedTime().toMillis());
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FileState)) {
+                return false;
+            }
+
+            FileState other = (FileState) obj;
+            return this.size == other.size && this.lastModified == other.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.size, this.lastModified);
+        }
+    }
+
+    private static final class HotSwap {
+
+        private final Bundle oldBundle;
+        private final Bundle newBundle;
+        private final Path path;
+        private final Set<String> serviceTypes;
+
+        public HotSwap(Bundle oldBundle, Bundle newBundle, Path path, Set<String> serviceTypes) {
+            this.oldBundle = oldBundle;
+            this.newBundle = newBundle;
+            this.path = path;
+            this.serviceTypes = serviceTypes;
+        }
+    }
+
+    private static final class PendingChange {
+
+        private long lastEvent;
+        private FileState fileState;
+        private boolean unreadable;
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.indoqa.osgi.embedded.services.BundleResourceAccounting;
+import com.indoqa.osgi.embedded.services.ManagedExecutorService;
+
+/**
+ * The view of a single bundle on the {@link ManagedExecutor}. Tasks are queued per bundle and dispatched to the shared worker
+ * executor as long as fewer than the concurrency limit of tasks of the bundle are running. Delayed and periodic tasks are triggered
+ * by the shared scheduler and then queued like any other task. All pending and running tasks are tracked, so they can be cancelled
+ * when the bundle stops. A task is tracked before the executor checks whether it has been shut down, so a task that is submitted
+ * concurrently with {@link #shutdownNow()} is either rejected or cancelled, but never runs after the executor has been stopped.
+ */
+/*default*/ final class BundleExecutorService extends AbstractExecutorService implements ManagedExecutorService {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Bundle bundle;
+    private final Executor workerExecutor;
+    private final ScheduledExecutorService scheduler;
+    private final BundleResourceAccounting resourceAccounting;
+    private final int concurrencyLimit;
+
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final Set<TrackedTask<?>> tasks = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final Object termination = new Object();
+    private volatile boolean shutdown;
+    private volatile boolean stopped;
+
+    public BundleExecutorService(Bundle bundle, Executor workerExecutor, ScheduledExecutorService scheduler,
+            BundleResourceAccounting resourceAccounting, int concurrencyLimit) {
+        this.bundle = bundle;
+        this.workerExecutor = workerExecutor;
+        this.scheduler = scheduler;
+        this.resourceAccounting = resourceAccounting;
+        this.concurrencyLimit = concurrencyLimit;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        synchronized (this.termination) {
+            while (!this.isTerminated()) {
+                long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                NANOSECONDS.timedWait(this.termination, remainingNanos);
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        TrackedTask<?> task;
+        if (command instanceof TrackedTask) {
+            task = (TrackedTask<?>) command;
+        } else {
+            task = new TrackedTask<>(Executors.callable(command, null), true);
+        }
+
+        this.track(task);
+        this.enqueue(task);
+    }
+
+    @Override
+    public int getActiveCount() {
+        return this.activeCount.get();
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        return this.concurrencyLimit;
+    }
+
+    @Override
+    public int getQueueSize() {
+        return this.queue.size();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return this.shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return this.shutdown && this.tasks.isEmpty();
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return this.schedule(new ScheduledTask<>(callable, System.nanoTime() + unit.toNanos(delay), 0));
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return this.schedule(Executors.callable(command, null), delay, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("The period has to be positive: period=" + period);
+        }
+        long time = System.nanoTime() + unit.toNanos(initialDelay);
+        return this.schedule(new ScheduledTask<>(Executors.callable(command, null), time, unit.toNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("The delay has to be positive: delay=" + delay);
+        }
+        long time = System.nanoTime() + unit.toNanos(initialDelay);
+        return this.schedule(new ScheduledTask<>(Executors.callable(command, null), time, -unit.toNanos(delay)));
+    }
+
+    /**
+     * Reject new tasks. Pending one-shot tasks still run, periodic tasks are cancelled.
+     */
+    @Override
+    public void shutdown() {
+        this.shutdown = true;
+
+        for (TrackedTask<?> task : this.tasks) {
+            if (task instanceof ScheduledTask && ((ScheduledTask<?>) task).isPeriodic()) {
+                task.cancel(false);
+            }
+        }
+
+        this.signalTermination();
+    }
+
+    /**
+     * Reject new tasks and cancel all pending and running tasks, running tasks are interrupted.
+     *
+     * @return The tasks that were waiting for a free slot.
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        this.shutdown = true;
+        this.stopped = true;
+
+        List<Runnable> pendingTasks = new ArrayList<>();
+        for (Runnable task = this.queue.poll(); task != null; task = this.queue.poll()) {
+            pendingTasks.add(task);
+        }
+
+        for (TrackedTask<?> task : this.tasks) {
+            task.cancel(true);
+        }
+
+        this.signalTermination();
+        return pendingTasks;
+    }
+
+    @Override
+    public String toString() {
+        return "bundle=" + this.bundle.getSymbolicName() + "; active-tasks=" + this.getActiveCount() + "; queued-tasks="
+            + this.getQueueSize() + "; concurrency-limit=" + this.concurrencyLimit;
+    }
+
+    /**
+     * @return The number of tasks that haven't completed yet.
+     */
+    int getTaskCount() {
+        return this.tasks.size();
+    }
+
+    @Override
+    protected <V> RunnableFuture<V> newTaskFor(Callable<V> callable) {
+        return new TrackedTask<>(callable, false);
+    }
+
+    @Override
+    protected <V> RunnableFuture<V> newTaskFor(Runnable runnable, V value) {
+        return new TrackedTask<>(Executors.callable(runnable, value), false);
+    }
+
+    /**
+     * Dispatch queued tasks to the worker executor until the concurrency limit has been reached or the queue is empty. Once the
+     * executor has been stopped by {@link #shutdownNow()}, queued tasks are cancelled instead.
+     */
+    private void drain() {
+        while (!this.queue.isEmpty()) {
+            int active = this.activeCount.get();
+            if (active >= this.concurrencyLimit) {
+                return;
+            }
+            if (!this.activeCount.compareAndSet(active, active + 1)) {
+                continue;
+            }
+
+            Runnable task = this.queue.poll();
+            if (task == null) {
+                this.activeCount.decrementAndGet();
+                continue;
+            }
+
+            if (this.stopped) {
+                this.activeCount.decrementAndGet();
+                ((Future<?>) task).cancel(false);
+                continue;
+            }
+
+            try {
+                this.workerExecutor.execute(() -> this.runTask(task));
+            } catch (RejectedExecutionException e) {
+                this.activeCount.decrementAndGet();
+                ((Future<?>) task).cancel(false);
+            }
+        }
+    }
+
+    private void enqueue(Runnable task) {
+        this.queue.add(task);
+        this.drain();
+    }
+
+    private RejectedExecutionException rejected() {
+        return new RejectedExecutionException("The executor of bundle '" + this.bundle.getSymbolicName() + "' has been shut down.");
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            if (this.resourceAccounting == null) {
+                task.run();
+            } else {
+                this.resourceAccounting.run(this.bundle, task);
+            }
+        } finally {
+            this.activeCount.decrementAndGet();
+            this.drain();
+        }
+    }
+
+    private <V> ScheduledFuture<V> schedule(ScheduledTask<V> task) {
+        this.track(task);
+        task.trigger();
+        return task;
+    }
+
+    private void signalTermination() {
+        synchronized (this.termination) {
+            this.termination.notifyAll();
+        }
+    }
+
+    private void track(TrackedTask<?> task) {
+        if (this.shutdown) {
+            throw this.rejected();
+        }
+
+        // shutdownNow sets the flag before it cancels the tracked tasks, so either it sees this task or this check sees the flag
+        this.tasks.add(task);
+        if (this.shutdown) {
+            // cancelling removes the task from the tracked tasks
+            task.cancel(false);
+            throw this.rejected();
+        }
+    }
+
+    private class ScheduledTask<V> extends TrackedTask<V> implements ScheduledFuture<V> {
+
+        /**
+         * Positive for fixed-rate tasks, negative for fixed-delay tasks and 0 for one-shot tasks.
+         */
+        private final long period;
+        private volatile long time;
+        private volatile Future<?> trigger;
+
+        public ScheduledTask(Callable<V> callable, long time, long period) {
+            super(callable, period != 0);
+            this.time = time;
+            this.period = period;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+
+            Future<?> currentTrigger = this.trigger;
+            if (currentTrigger != null) {
+                currentTrigger.cancel(false);
+            }
+
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(this.getDelay(NANOSECONDS), other.getDelay(NANOSECONDS));
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(this.time - System.nanoTime(), NANOSECONDS);
+        }
+
+        public boolean isPeriodic() {
+            return this.period != 0;
+        }
+
+        @Override
+        public void run() {
+            if (!this.isPeriodic()) {
+                super.run();
+                return;
+            }
+
+            if (!this.runAndReset()) {
+                return;
+            }
+
+            if (BundleExecutorService.this.shutdown) {
+                this.cancel(false);
+                return;
+            }
+
+            this.time = this.period > 0 ? this.time + this.period : System.nanoTime() - this.period;
+            try {
+                this.trigger();
+            } catch (RejectedExecutionException e) {
+                // the container is shutting down and the task has been cancelled
+            }
+        }
+
+        public void trigger() {
+            try {
+                this.trigger = BundleExecutorService.this.scheduler.schedule(
+                    () -> BundleExecutorService.this.enqueue(this),
+                    this.time - System.nanoTime(),
+                    NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                this.cancel(false);
+                throw e;
+            }
+
+            if (this.isCancelled()) {
+                this.trigger.cancel(false);
+            }
+        }
+    }
+
+    private class TrackedTask<V> extends FutureTask<V> {
+
+        private final boolean logFailure;
+
+        public TrackedTask(Callable<V> callable, boolean logFailure) {
+            super(callable);
+            this.logFailure = logFailure;
+        }
+
+        @Override
+        protected void done() {
+            BundleExecutorService.this.tasks.remove(this);
+            BundleExecutorService.this.signalTermination();
+
+            if (!this.logFailure || this.isCancelled()) {
+                return;
+            }
+
+            try {
+                this.get();
+            } catch (ExecutionException e) {
+                BundleExecutorService.this.logger.error(
+                    "Task of bundle '" + BundleExecutorService.this.bundle.getSymbolicName() + "' failed.",
+                    e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.*;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops all bundles of a framework within a deadline before the framework itself is stopped:
+ * <ul>
+ * <li>Bundles are stopped by descending start level. Within a start level they are stopped in waves in reverse dependency order,
+ * i.e. a bundle is stopped after all bundles that are wired to it. The bundles of a wave are stopped in parallel.</li>
+ * <li>Bundles are stopped transiently, so a warm start starts them again.</li>
+ * <li>Slow bundles are reported. If the deadline passes, the stack traces of the bundles that are still stopping are logged and the
+ * remaining bundles are left to the framework.</li>
+ * </ul>
+ */
+/*default*/ final class BundleShutdown {
+
+    private static final String THREAD_NAME_PREFIX = "embedded-osgi-bundle-shutdown";
+    private static final long SLOW_BUNDLE_MILLIS = 1_000;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final BundleContext bundleContext;
+
+    private final Map<Bundle, Long> durations = new ConcurrentHashMap<>();
+    private final Map<Bundle, Thread> stoppingBundles = new ConcurrentHashMap<>();
+
+    public BundleShutdown(BundleContext bundleContext) {
+        this.bundleContext = bundleContext;
+    }
+
+    static List<List<Bundle>> createWaves(Collection<Bundle> bundles) {
+        SortedMap<Integer, List<Bundle>> bundlesByStartLevel = new TreeMap<>(Comparator.reverseOrder());
+        for (Bundle bundle : bundles) {
+            int startLevel = bundle.adapt(BundleStartLevel.class).getStartLevel();
+            bundlesByStartLevel.computeIfAbsent(startLevel, key -> new ArrayList<>()).add(bundle);
+        }
+
+        List<List<Bundle>> waves = new ArrayList<>();
+        for (List<Bundle> startLevelBundles : bundlesByStartLevel.values()) {
+            Set<Bundle> remaining = new LinkedHashSet<>(startLevelBundles);
+
+            while (!remaining.isEmpty()) {
+                List<Bundle> wave = new ArrayList<>();
+                for (Bundle bundle : remaining) {
+                    if (!isRequiredByAny(bundle, remaining)) {
+                        wave.add(bundle);
+                    }
+                }
+
+                // bundles that depend on each other are stopped together
+                if (wave.isEmpty()) {
+                    wave.addAll(remaining);
+                }
+
+                waves.add(wave);
+                remaining.removeAll(wave);
+            }
+        }
+
+        return waves;
+    }
+
+    private static boolean isRequiredByAny(Bundle bundle, Set<Bundle> bundles) {
+        BundleWiring wiring = bundle.adapt(BundleWiring.class);
+        if (wiring == null) {
+            return false;
+        }
+
+        for (BundleWire wire : wiring.getProvidedWires(null)) {
+            Bundle requirer = wire.getRequirerWiring().getBundle();
+            if (requirer != bundle && bundles.contains(requirer)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return <code>true</code> if all bundles have been stopped before the deadline.
+     */
+    public boolean stopBundles(long deadlineNanos) {
+        List<Bundle> bundles = this.getActiveBundles();
+        if (bundles.isEmpty()) {
+            return true;
+        }
+
+        int threads = Math.min(bundles.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executorService = Executors.newFixedThreadPool(threads, new NamedThreadFactory(THREAD_NAME_PREFIX));
+        long start = System.nanoTime();
+
+        try {
+            for (List<Bundle> wave : createWaves(bundles)) {
+                List<Future<?>> futures = new ArrayList<>(wave.size());
+                for (Bundle bundle : wave) {
+                    futures.add(executorService.submit(() -> this.stop(bundle)));
+                }
+
+                if (!this.awaitWave(futures, deadlineNanos)) {
+                    this.reportStoppingBundles();
+                    return false;
+                }
+            }
+
+            return true;
+        } finally {
+            executorService.shutdownNow();
+            this.reportDurations(bundles.size(), start);
+        }
+    }
+
+    private boolean awaitWave(List<Future<?>> futures, long deadlineNanos) {
+        try {
+            for (Future<?> future : futures) {
+                long remainingNanos = deadlineNanos - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                future.get(remainingNanos, NANOSECONDS);
+            }
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unexpected error while stopping bundles.", e.getCause());
+        }
+    }
+
+    private List<Bundle> getActiveBundles() {
+        List<Bundle> bundles = new ArrayList<>();
+
+        for (Bundle bundle : this.bundleContext.getBundles()) {
+            if (bundle.getBundleId() != 0 && (bundle.getState() == Bundle.ACTIVE || bundle.getState() == Bundle.STARTING)) {
+                bundles.add(bundle);
+            }
+        }
+
+        return bundles;
+    }
+
+    private void reportDurations(int bundleCount, long start) {
+        List<Entry<Bundle, Long>> sortedDurations = new ArrayList<>(this.durations.entrySet());
+        sortedDurations.sort(Entry.<Bundle, Long> comparingByValue().reversed());
+
+        for (Entry<Bundle, Long> duration : sortedDurations) {
+            long durationMillis = NANOSECONDS.toMillis(duration.getValue());
+            if (durationMillis < SLOW_BUNDLE_MILLIS) {
+                break;
+            }
+            this.logger.warn("Slow bundle stop: location=" + duration.getKey().getLocation() + "; duration-ms=" + durationMillis);
+        }
+
+        String slowest = sortedDurations.isEmpty() ? "-" : sortedDurations.get(0).getKey().getLocation();
+        this.logger.info(
+            "Stopped bundles: bundles=" + bundleCount + "; stopped=" + this.durations.size() + "; duration-ms="
+                + NANOSECONDS.toMillis(System.nanoTime() - start) + "; slowest=" + slowest);
+    }
+
+    private void reportStoppingBundles() {
+        for (Entry<Bundle, Thread> stoppingBundle : this.stoppingBundles.entrySet()) {
+            Exception stackTrace = new Exception("Stack trace of " + stoppingBundle.getValue().getName());
+            stackTrace.setStackTrace(stoppingBundle.getValue().getStackTrace());
+            this.logger.warn(
+                "Bundle didn't stop before the shutdown deadline: location=" + stoppingBundle.getKey().getLocation(),
+                stackTrace);
+        }
+    }
+
+    private void stop(Bundle bundle) {
+        this.stoppingBundles.put(bundle, Thread.currentThread());
+        long start = System.nanoTime();
+
+        try {
+            bundle.stop(Bundle.STOP_TRANSIENT);
+        } catch (BundleException | IllegalStateException e) {
+            this.logger.warn("Can't stop bundle '" + bundle.getLocation() + "'.", e);
+        } finally {
+            this.stoppingBundles.remove(bundle);
+            this.durations.put(bundle, System.nanoTime() - start);
+        }
+    }
+}
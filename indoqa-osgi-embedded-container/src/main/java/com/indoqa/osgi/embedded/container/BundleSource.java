@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * The location and the content of a bundle to be deployed with {@link EmbeddedOSGiContainer#deployBundles(java.util.Collection)}.
+ */
+public final class BundleSource {
+
+    private static final String REFERENCE_PROTOCOL = "reference:";
+
+    private final String location;
+    private final InputStreamSupplier inputStreamSupplier;
+    private final boolean reference;
+    private final int startLevel;
+
+    private BundleSource(String location, InputStreamSupplier inputStreamSupplier, boolean reference, int startLevel) {
+        this.location = Objects.requireNonNull(location);
+        this.inputStreamSupplier = Objects.requireNonNull(inputStreamSupplier);
+        this.reference = reference;
+        this.startLevel = startLevel;
+    }
+
+    public static BundleSource of(Path path) {
+        return new BundleSource(path.toAbsolutePath().normalize().toUri().toString(), () -> Files.newInputStream(path), false, 0);
+    }
+
+    public static BundleSource of(String location, byte[] content) {
+        return new BundleSource(location, () -> new ByteArrayInputStream(content), false, 0);
+    }
+
+    /**
+     * @param inputStreamSupplier Opens a new stream of the bundle content each time it is called. The stream is closed by the
+     *            container.
+     */
+    public static BundleSource of(String location, InputStreamSupplier inputStreamSupplier) {
+        return new BundleSource(location, inputStreamSupplier, false, 0);
+    }
+
+    /**
+     * Install the bundle in place: the framework reads the jar file or the exploded bundle directory directly instead of copying
+     * it into the framework storage. The file must not be modified while the bundle is installed; replace it with an atomic move
+     * and update the bundle afterwards.
+     */
+    public static BundleSource reference(Path path) {
+        return new BundleSource(toReferenceLocation(path), () -> Files.newInputStream(path), true, 0);
+    }
+
+    static String toReferenceLocation(Path path) {
+        return REFERENCE_PROTOCOL + path.toAbsolutePath().normalize().toFile().toURI();
+    }
+
+    public String getLocation() {
+        return this.location;
+    }
+
+    /**
+     * @return The start level of the bundle or 0 if the bundle uses the default start level of the framework.
+     */
+    public int getStartLevel() {
+        return this.startLevel;
+    }
+
+    /**
+     * @return <code>true</code> if the bundle is installed in place and {@link #getLocation()} points to its content.
+     */
+    public boolean isReference() {
+        return this.reference;
+    }
+
+    public InputStream openStream() throws IOException {
+        InputStream inputStream = this.inputStreamSupplier.open();
+        if (inputStream == null) {
+            throw new IOException("The content of the bundle '" + this.location + "' is not available.");
+        }
+        return inputStream;
+    }
+
+    /**
+     * @return A copy of this source whose bundle is started once the framework has reached the given start level.
+     */
+    public BundleSource withStartLevel(int bundleStartLevel) {
+        return new BundleSource(this.location, this.inputStreamSupplier, this.reference, bundleStartLevel);
+    }
+
+    @Override
+    public String toString() {
+        return this.location;
+    }
+
+    @FunctionalInterface
+    public interface InputStreamSupplier {
+
+        InputStream open() throws IOException;
+    }
+}
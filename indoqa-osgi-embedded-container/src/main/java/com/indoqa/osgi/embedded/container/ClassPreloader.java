@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.osgi.framework.*;
+import org.osgi.framework.hooks.weaving.WeavingHook;
+import org.osgi.framework.hooks.weaving.WovenClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the classes each bundle loads and preloads them on later starts, so the first requests after a restart don't pay for
+ * class loading through the bundle class loaders:
+ * <ul>
+ * <li>While recording, a {@link WeavingHook} collects the names of all classes that are defined by bundle class loaders. The hook
+ * is registered before the framework starts the bundles of a warm start, so their activators are recorded as well. The lists are
+ * stored in the framework storage directory when the container is destroyed.</li>
+ * <li>While preloading, the recorded classes of a bundle are loaded in parallel in the background as soon as the bundle is
+ * ACTIVE. Classes are only loaded, not initialized, so no static initializers run earlier than they would otherwise.</li>
+ * </ul>
+ * The lists are keyed by bundle symbolic name and version. The file is read before the framework starts because the framework may
+ * clean its storage directory on startup.
+ */
+/*default*/ final class ClassPreloader implements WeavingHook, BundleListener {
+
+    private static final String FILE_NAME = "embedded-osgi-class-preload.properties";
+    private static final String THREAD_NAME = "embedded-osgi-class-preload";
+    private static final String CLASS_NAME_SEPARATOR = ",";
+    private static final int CHUNK_SIZE = 64;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Path file;
+    private final boolean recording;
+    private final boolean preloading;
+    private final int parallelism;
+    private final Map<String, List<String>> preloadLists = new HashMap<>();
+    private final Map<String, Set<String>> recordedClasses = new ConcurrentHashMap<>();
+
+    private BundleContext bundleContext;
+    private ServiceRegistration<WeavingHook> weavingHookRegistration;
+    private ExecutorService executorService;
+
+    private ClassPreloader(Path file, ContainerConfiguration containerConfiguration) {
+        this.file = file;
+        this.recording = containerConfiguration.isClassPreloadRecording();
+        this.preloading = containerConfiguration.isClassPreloading();
+        this.parallelism = containerConfiguration.getClassPreloadParallelism();
+    }
+
+    public static ClassPreloader load(ContainerConfiguration containerConfiguration) {
+        Path file = containerConfiguration.getFrameworkStorage().resolve(FILE_NAME);
+        ClassPreloader classPreloader = new ClassPreloader(file, containerConfiguration);
+
+        if (Files.exists(file)) {
+            Properties properties = new Properties();
+            try (InputStream inputStream = Files.newInputStream(file)) {
+                properties.load(inputStream);
+            } catch (IOException e) {
+                classPreloader.logger.warn("Can't read the recorded classes '" + file + "'. No classes will be preloaded.", e);
+                properties.clear();
+            }
+
+            for (String key : properties.stringPropertyNames()) {
+                String classNames = properties.getProperty(key);
+                classPreloader.preloadLists.put(key, Arrays.asList(classNames.split(CLASS_NAME_SEPARATOR)));
+            }
+        }
+
+        return classPreloader;
+    }
+
+    private static String getKey(Bundle bundle) {
+        return bundle.getSymbolicName() + ";" + bundle.getVersion();
+    }
+
+    @Override
+    public void bundleChanged(BundleEvent event) {
+        if (event.getType() == BundleEvent.STARTED) {
+            this.preload(event.getBundle());
+        }
+    }
+
+    public void start(BundleContext systemBundleContext) {
+        this.bundleContext = systemBundleContext;
+
+        if (this.recording) {
+            this.weavingHookRegistration = systemBundleContext.registerService(WeavingHook.class, this, null);
+        }
+
+        if (this.preloading && !this.preloadLists.isEmpty()) {
+            this.executorService = Executors.newFixedThreadPool(this.parallelism, new NamedThreadFactory(THREAD_NAME));
+            systemBundleContext.addBundleListener(this);
+
+            for (Bundle bundle : systemBundleContext.getBundles()) {
+                if (bundle.getState() == Bundle.ACTIVE) {
+                    this.preload(bundle);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop recording and preloading and store the class lists. Without recording, the previously recorded lists are stored again.
+     */
+    public void stop() {
+        if (this.weavingHookRegistration != null) {
+            this.weavingHookRegistration.unregister();
+            this.weavingHookRegistration = null;
+        }
+
+        if (this.executorService != null) {
+            this.bundleContext.removeBundleListener(this);
+            this.executorService.shutdownNow();
+            this.executorService = null;
+        }
+
+        if (this.recording || !this.preloadLists.isEmpty()) {
+            this.store();
+        }
+    }
+
+    @Override
+    public void weave(WovenClass wovenClass) {
+        Bundle bundle = wovenClass.getBundleWiring().getBundle();
+        if (bundle.getBundleId() == 0 || bundle.getSymbolicName() == null) {
+            return;
+        }
+
+        this.recordedClasses.computeIfAbsent(getKey(bundle), key -> ConcurrentHashMap.newKeySet()).add(wovenClass.getClassName());
+    }
+
+    /**
+     * @return <code>true</code> if the class could be loaded.
+     */
+    private boolean loadClass(Bundle bundle, String className) {
+        try {
+            bundle.loadClass(className);
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    private void loadClasses(Bundle bundle, List<String> classNames, AtomicInteger failures) {
+        for (String className : classNames) {
+            if (bundle.getState() != Bundle.ACTIVE) {
+                return;
+            }
+            if (!this.loadClass(bundle, className)) {
+                failures.incrementAndGet();
+            }
+        }
+    }
+
+    private void preload(Bundle bundle) {
+        List<String> classNames = this.preloadLists.get(getKey(bundle));
+        if (classNames == null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        AtomicInteger failures = new AtomicInteger();
+        List<CompletableFuture<Void>> chunks = new ArrayList<>();
+        for (int i = 0; i < classNames.size(); i += CHUNK_SIZE) {
+            List<String> chunk = classNames.subList(i, Math.min(i + CHUNK_SIZE, classNames.size()));
+            try {
+                chunks.add(CompletableFuture.runAsync(() -> this.loadClasses(bundle, chunk, failures), this.executorService));
+            } catch (RejectedExecutionException e) {
+                // the container is shutting down
+                return;
+            }
+        }
+
+        CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[chunks.size()])).whenComplete((result, error) -> {
+            if (error != null) {
+                return;
+            }
+            this.logger.info(
+                "Preloaded classes: bundle=" + bundle.getSymbolicName() + "; classes=" + classNames.size() + "; failures="
+                    + failures.get() + "; duration-ms=" + NANOSECONDS.toMillis(System.nanoTime() - start));
+        });
+    }
+
+    private void store() {
+        Properties properties = new Properties();
+        if (this.recording) {
+            for (Map.Entry<String, Set<String>> entry : this.recordedClasses.entrySet()) {
+                properties.setProperty(entry.getKey(), String.join(CLASS_NAME_SEPARATOR, new TreeSet<>(entry.getValue())));
+            }
+        } else {
+            for (Map.Entry<String, List<String>> entry : this.preloadLists.entrySet()) {
+                properties.setProperty(entry.getKey(), String.join(CLASS_NAME_SEPARATOR, entry.getValue()));
+            }
+        }
+
+        try {
+            Path tempFile = this.file.resolveSibling(FILE_NAME + ".tmp");
+            try (OutputStream outputStream = Files.newOutputStream(tempFile)) {
+                properties.store(outputStream, "Classes loaded by the bundles of the embedded OSGi container");
+            }
+            Files.move(tempFile, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.logger.info("Stored the classes to be preloaded: file=" + this.file + "; bundles=" + properties.size());
+        } catch (IOException e) {
+            this.logger.warn("Can't write the recorded classes '" + this.file + "'.", e);
+        }
+    }
+}
@@ -19,13 +19,14 @@ package com.indoqa.osgi.embedded.container;
 import static com.indoqa.osgi.embedded.container.DirectoryValidator.checkDirectory;
 
 import java.nio.file.Path;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 
+import org.osgi.framework.Constants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.indoqa.osgi.embedded.services.buffers.BufferPool;
+
 @SuppressWarnings("unused")
 public final class ContainerConfiguration {
 
@@ -49,11 +50,20 @@ public final class ContainerConfiguration {
     private static final String PROPERTY_OSGI_STORAGE_DIR = "org.osgi.framework.storage";
     private static final String PROPERTY_OSGI_STORAGE_CLEAN = "org.osgi.framework.storage.clean";
     private static final String DEFAULT_OSGI_STORAGE_CLEAN = "onFirstInit";
+    private static final String WARM_START_OSGI_STORAGE_CLEAN = "none";
+
+    private static final long DEFAULT_BUNDLE_DIRECTORY_WATCHER_QUIET_PERIOD = 100;
+    private static final long DEFAULT_BUNDLE_DIRECTORY_WATCHER_RESCAN_INTERVAL = 60_000;
+    private static final long DEFAULT_BUNDLE_DIRECTORY_WATCHER_HOT_SWAP_TIMEOUT = 10_000;
+
+    private static final int DEFAULT_FILE_INSTALL_START_LEVEL = 1;
 
     private static final String PROPERTY_REMOTE_SHELL_PORT = "osgi.shell.telnet.port";
     private static final String DEFAULT_REMOTE_SHELL_PORT = "6666";
 
     private final Set<Path> fileInstallDirs = new HashSet<>();
+    private final Map<Path, Integer> fileInstallDirStartLevels = new HashMap<>();
+    private final Map<InitialBundleType, Integer> initialBundleStartLevels = new EnumMap<>(InitialBundleType.class);
     private Integer fileInstallPoll;
     private Integer fileInstallLogLevel = DEFAULT_FILEINSTALL_LOG_LEVEL;
     private Boolean fileInstallNewStart;
@@ -67,8 +77,33 @@ public final class ContainerConfiguration {
     private Boolean fileInstallEnableConfigSave;
     private Boolean fileInstallUpdateWithListeners;
 
+    private boolean bundleDirectoryWatcherEnabled = false;
+    private long bundleDirectoryWatcherQuietPeriod = DEFAULT_BUNDLE_DIRECTORY_WATCHER_QUIET_PERIOD;
+    private long bundleDirectoryWatcherRescanInterval = DEFAULT_BUNDLE_DIRECTORY_WATCHER_RESCAN_INTERVAL;
+    private boolean bundleDirectoryWatcherReferenceInstall = false;
+    private boolean bundleDirectoryWatcherHotSwap = false;
+    private long bundleDirectoryWatcherHotSwapTimeout = DEFAULT_BUNDLE_DIRECTORY_WATCHER_HOT_SWAP_TIMEOUT;
+
+    private int serviceProviderParallelism = 1;
+    private long serviceProviderTimeout = 0;
+    private long shutdownTimeout = 0;
+    private long packageRefreshQuietPeriod = 0;
+
+    private boolean managedExecutorEnabled = false;
+    private int managedExecutorConcurrencyLimit = Runtime.getRuntime().availableProcessors();
+    private int managedExecutorThreads = 2 * Runtime.getRuntime().availableProcessors();
+    private boolean managedExecutorVirtualThreads = true;
+
+    private boolean classPreloadRecording = false;
+    private boolean classPreloading = false;
+    private int classPreloadParallelism = Runtime.getRuntime().availableProcessors();
+
+    private boolean bufferPoolEnabled = false;
+    private int bufferPoolArenaSize = BufferPool.DEFAULT_ARENA_SIZE;
+
     private Path frameworkStorage;
     private String frameworkStorageClean = DEFAULT_OSGI_STORAGE_CLEAN;
+    private boolean warmStart = false;
 
     private String remoteShellPort = DEFAULT_REMOTE_SHELL_PORT;
 
@@ -80,6 +115,126 @@ public final class ContainerConfiguration {
         return this;
     }
 
+    /**
+     * Add a file install directory whose bundles are started at the given start level. Per directory start levels are only
+     * supported by the bundle directory watcher, Felix FileInstall starts the bundles of all directories at
+     * {@link #setFileInstallStartLevel(Integer)}.
+     */
+    public ContainerConfiguration addFileInstallDir(Path dir, int startLevel) {
+        this.fileInstallDirs.add(dir);
+        this.fileInstallDirStartLevels.put(normalize(dir), startLevel);
+        return this;
+    }
+
+    /**
+     * The size in bytes of the memory blocks the buffers of the shared {@link BufferPool} are sliced from. It is also the largest
+     * buffer that is pooled. The default is {@link BufferPool#DEFAULT_ARENA_SIZE}.
+     */
+    public ContainerConfiguration setBufferPoolArenaSize(int arenaSize) {
+        this.bufferPoolArenaSize = arenaSize;
+        return this;
+    }
+
+    /**
+     * Register a {@link BufferPool} of direct buffers as OSGi service and export the package
+     * <code>com.indoqa.osgi.embedded.services.buffers</code> as system package, so the host application and the bundles can
+     * exchange bulk data through pooled buffers and {@link com.indoqa.osgi.embedded.services.buffers.SpscRing}s without copying
+     * it. The default is <code>false</code>.
+     */
+    public ContainerConfiguration setBufferPoolEnabled(boolean enabled) {
+        this.bufferPoolEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * Use the bundle directory watcher instead of the Felix FileInstall bundle to deploy the bundles of all file install
+     * directories. The watcher reacts on file system events instead of polling the directories.
+     */
+    public ContainerConfiguration setBundleDirectoryWatcherEnabled(boolean enabled) {
+        this.bundleDirectoryWatcherEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * Let the bundle directory watcher replace changed bundles without downtime: the new version is installed side by side with the
+     * old one and started. Once it has registered the same service types as the old version and none of its services is marked
+     * as {@link com.indoqa.osgi.embedded.services.TrackedServices#SERVICE_WARMING warming} anymore, the old version is uninstalled.
+     * If the new version isn't ready within {@link #setBundleDirectoryWatcherHotSwapTimeout(long)}, it is uninstalled again and
+     * the old version is kept until its file changes the next time. Service consumers have to use
+     * {@link com.indoqa.osgi.embedded.services.TrackedServices#setHotSwap(boolean)} in order to switch to the new services as soon
+     * as they are available. Hot swaps can't be combined with reference installs.
+     * <p/>
+     * Hot swaps are meant for plugins that don't share packages. A new version that is wired to the old one, e.g. because it
+     * imports the packages it exports (the default of bnd), is updated in place instead, because the refresh of the old version
+     * would restart it anyway. Other bundles that import packages of a hot-swapped bundle are restarted by that refresh.
+     */
+    public ContainerConfiguration setBundleDirectoryWatcherHotSwap(boolean hotSwap) {
+        this.bundleDirectoryWatcherHotSwap = hotSwap;
+        return this;
+    }
+
+    /**
+     * The time in milliseconds the bundle directory watcher waits for the new versions of hot-swapped bundles to be ready before it
+     * keeps their old versions, defaults to 10000. All hot swaps of a batch are waited for together.
+     */
+    public ContainerConfiguration setBundleDirectoryWatcherHotSwapTimeout(long hotSwapTimeout) {
+        this.bundleDirectoryWatcherHotSwapTimeout = hotSwapTimeout;
+        return this;
+    }
+
+    /**
+     * The time in milliseconds a bundle file has to remain unchanged before the bundle directory watcher deploys it.
+     */
+    public ContainerConfiguration setBundleDirectoryWatcherQuietPeriod(long quietPeriod) {
+        this.bundleDirectoryWatcherQuietPeriod = quietPeriod;
+        return this;
+    }
+
+    /**
+     * Let the bundle directory watcher install bundles in place by their <code>reference:</code> URL instead of copying them into
+     * the framework storage. Bundle files must then be replaced with an atomic move instead of being overwritten.
+     */
+    public ContainerConfiguration setBundleDirectoryWatcherReferenceInstall(boolean referenceInstall) {
+        this.bundleDirectoryWatcherReferenceInstall = referenceInstall;
+        return this;
+    }
+
+    /**
+     * The interval in milliseconds of the full rescan that the bundle directory watcher runs in order to catch lost file system
+     * events.
+     */
+    public ContainerConfiguration setBundleDirectoryWatcherRescanInterval(long rescanInterval) {
+        this.bundleDirectoryWatcherRescanInterval = rescanInterval;
+        return this;
+    }
+
+    /**
+     * The number of threads that preload classes in the background. The default is the number of available processors.
+     */
+    public ContainerConfiguration setClassPreloadParallelism(int parallelism) {
+        this.classPreloadParallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Record the classes each bundle loads while the container is running and store them in the framework storage directory when
+     * the container is destroyed. This is meant for a profiling run, e.g. a load test, whose classes are preloaded on later starts,
+     * see {@link #setClassPreloading(boolean)}. The default is <code>false</code>.
+     */
+    public ContainerConfiguration setClassPreloadRecording(boolean recording) {
+        this.classPreloadRecording = recording;
+        return this;
+    }
+
+    /**
+     * Load the classes that were recorded by a previous run in the background as soon as their bundle is active, so the first
+     * requests don't pay for class loading. The default is <code>false</code>.
+     */
+    public ContainerConfiguration setClassPreloading(boolean preloading) {
+        this.classPreloading = preloading;
+        return this;
+    }
+
     public ContainerConfiguration setEnableRemoteShell(boolean enabled) {
         this.remoteShellBundlesEnabled = enabled;
         return this;
@@ -125,6 +280,10 @@ public final class ContainerConfiguration {
         return this;
     }
 
+    /**
+     * The start level of the bundles of all file install directories without an own start level. The default is 1, the initial
+     * bundle start level of the framework, i.e. the bundles are started together with the mandatory initial bundles.
+     */
     public ContainerConfiguration setFileInstallStartLevel(Integer startLevel) {
         this.fileInstallStartLevel = startLevel;
         return this;
@@ -155,16 +314,117 @@ public final class ContainerConfiguration {
         return this;
     }
 
+    /**
+     * The start level of a group of initial bundles, see {@link InitialBundleType#getDefaultStartLevel()} for the defaults. The
+     * container raises the framework start level stage by stage up to the highest start level in use, so bundles with a lower start
+     * level are running before the others are started.
+     */
+    public ContainerConfiguration setInitialBundleStartLevel(InitialBundleType type, int startLevel) {
+        this.initialBundleStartLevels.put(type, startLevel);
+        return this;
+    }
+
+    /**
+     * The maximum number of tasks of a single bundle that the managed executor runs at the same time. Further tasks of the bundle
+     * are queued. The default is the number of available processors.
+     */
+    public ContainerConfiguration setManagedExecutorConcurrencyLimit(int concurrencyLimit) {
+        this.managedExecutorConcurrencyLimit = concurrencyLimit;
+        return this;
+    }
+
+    /**
+     * Register a {@link com.indoqa.osgi.embedded.services.ManagedExecutorService} that is shared by all bundles instead of each
+     * bundle creating its own thread pool. The package <code>com.indoqa.osgi.embedded.services</code> is exported as system package
+     * in this case. The default is <code>false</code>.
+     */
+    public ContainerConfiguration setManagedExecutorEnabled(boolean enabled) {
+        this.managedExecutorEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * The number of platform threads of the managed executor, which is only used if virtual threads aren't available. The default is
+     * twice the number of available processors.
+     */
+    public ContainerConfiguration setManagedExecutorThreads(int threads) {
+        this.managedExecutorThreads = threads;
+        return this;
+    }
+
+    /**
+     * Run the tasks of the managed executor on virtual threads if the runtime supports them (Java 21 and later). The default is
+     * <code>true</code>. The JVM doesn't measure the CPU time and allocations of virtual threads, so the tasks aren't accounted by
+     * {@link EmbeddedOSGiContainer#getResourceAccounting()} in this case. Set it to <code>false</code> if the accounting matters.
+     */
+    public ContainerConfiguration setManagedExecutorVirtualThreads(boolean virtualThreads) {
+        this.managedExecutorVirtualThreads = virtualThreads;
+        return this;
+    }
+
+    /**
+     * The time in milliseconds the container waits for further package refresh requests before it refreshes the updated and
+     * uninstalled bundles of the bundle directory watcher and of {@link EmbeddedOSGiContainer#refreshBundles(java.util.Collection)}.
+     * All bundles requested within this window are refreshed by a single call, so their dependents are restarted only once. The
+     * default is 0, i.e. the refresh of each batch of changes starts right away. In any case, refreshes are performed
+     * asynchronously by a background thread, so the bundle directory watcher doesn't wait for them. Refreshes performed by Felix
+     * FileInstall aren't affected.
+     */
+    public ContainerConfiguration setPackageRefreshQuietPeriod(long quietPeriod) {
+        this.packageRefreshQuietPeriod = quietPeriod;
+        return this;
+    }
+
     public ContainerConfiguration setRemoteShellPort(String remoteShellPort) {
         this.remoteShellPort = remoteShellPort;
         return this;
     }
 
+    /**
+     * The number of threads that are used to initialize and destroy the service providers. With more than one thread, providers are
+     * visited in parallel, respecting the dependencies declared by
+     * {@link com.indoqa.osgi.embedded.services.DependentEmbeddedOSGiServiceProvider}. The default is 1, i.e. one provider after the
+     * other.
+     */
+    public ContainerConfiguration setServiceProviderParallelism(int parallelism) {
+        this.serviceProviderParallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * The time in milliseconds a single service provider may take to initialize or destroy. The default is 0, i.e. no timeout.
+     */
+    public ContainerConfiguration setServiceProviderTimeout(long timeout) {
+        this.serviceProviderTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * The time in milliseconds the whole shutdown of the container may take. If set, the service providers are destroyed and the
+     * bundles are stopped within this deadline: independent bundles are stopped in parallel in reverse dependency order, slow
+     * bundles are reported and the shutdown completes once the deadline has passed, even if some bundles are still stopping. The
+     * default is 0, i.e. the container waits until the framework has stopped.
+     */
+    public ContainerConfiguration setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+        return this;
+    }
+
     public ContainerConfiguration setSlf4jBridgeActivated(boolean activated) {
         this.slf4jBridgeActivated = activated;
         return this;
     }
 
+    /**
+     * Keep the framework storage between restarts and reuse all bundles whose content is unchanged instead of installing them
+     * again. This applies to the initial bundles and to the bundles of the file install directories. The digests of the installed
+     * bundles are kept in an index file in the framework storage directory.
+     */
+    public ContainerConfiguration setWarmStart(boolean warmStart) {
+        this.warmStart = warmStart;
+        return this;
+    }
+
     void apply(Map<String, Object> config) {
         ContainerConfiguration.applyProperty(config, PROPERTY_FILEINSTALL_POLL, this.fileInstallPoll);
         ContainerConfiguration.applyProperty(config, PROPERTY_FILEINSTALL_LOG_LEVEL, this.fileInstallLogLevel);
@@ -180,11 +440,26 @@ public final class ContainerConfiguration {
         ContainerConfiguration.applyProperty(config, PROPERTY_FILEINSTALL_UPDATE_WITH_LISTENERS, this.fileInstallUpdateWithListeners);
 
         this.applyFileInstallDirProperty(config);
+        ContainerConfiguration.applyProperty(config, Constants.FRAMEWORK_BEGINNING_STARTLEVEL, this.getStartLevels().first());
+
+        if (this.bundleDirectoryWatcherEnabled && this.bundleDirectoryWatcherHotSwap) {
+            ContainerConfiguration.applyProperty(config, Constants.FRAMEWORK_BSNVERSION, Constants.FRAMEWORK_BSNVERSION_MULTIPLE);
+        }
+
+        if (!this.bundleDirectoryWatcherEnabled && !this.fileInstallDirStartLevels.isEmpty()) {
+            LOGGER.warn(
+                "Felix FileInstall doesn't support start levels per directory, all bundles are started at start level "
+                    + this.getFileInstallStartLevel() + ".");
+        }
 
         checkDirectory(this.frameworkStorage, PROPERTY_OSGI_STORAGE_DIR);
         ContainerConfiguration.applyProperty(config, PROPERTY_OSGI_STORAGE_DIR, this.frameworkStorage.toAbsolutePath().toString());
 
-        ContainerConfiguration.applyProperty(config, PROPERTY_OSGI_STORAGE_CLEAN, this.frameworkStorageClean);
+        if (this.warmStart) {
+            ContainerConfiguration.applyProperty(config, PROPERTY_OSGI_STORAGE_CLEAN, WARM_START_OSGI_STORAGE_CLEAN);
+        } else {
+            ContainerConfiguration.applyProperty(config, PROPERTY_OSGI_STORAGE_CLEAN, this.frameworkStorageClean);
+        }
 
         if (this.areRemoteShellBundlesEnabled()) {
             applyProperty(config, PROPERTY_REMOTE_SHELL_PORT, this.remoteShellPort);
@@ -211,14 +486,165 @@ public final class ContainerConfiguration {
         return this.remoteShellBundlesEnabled;
     }
 
+    int getBufferPoolArenaSize() {
+        return this.bufferPoolArenaSize;
+    }
+
+    long getBundleDirectoryWatcherHotSwapTimeout() {
+        return this.bundleDirectoryWatcherHotSwapTimeout;
+    }
+
+    long getBundleDirectoryWatcherQuietPeriod() {
+        return this.bundleDirectoryWatcherQuietPeriod;
+    }
+
+    long getBundleDirectoryWatcherRescanInterval() {
+        return this.bundleDirectoryWatcherRescanInterval;
+    }
+
+    int getClassPreloadParallelism() {
+        return this.classPreloadParallelism;
+    }
+
+    Set<Path> getFileInstallDirs() {
+        return Collections.unmodifiableSet(this.fileInstallDirs);
+    }
+
+    int getFileInstallDirStartLevel(Path dir) {
+        Integer startLevel = this.fileInstallDirStartLevels.get(normalize(dir));
+        if (startLevel == null) {
+            return this.getFileInstallStartLevel();
+        }
+        return startLevel;
+    }
+
+    String getFileInstallFilter() {
+        return this.fileInstallFilter;
+    }
+
+    Path getFrameworkStorage() {
+        return this.frameworkStorage;
+    }
+
+    int getInitialBundleStartLevel(InitialBundleType type) {
+        Integer startLevel = this.initialBundleStartLevels.get(type);
+        if (startLevel == null) {
+            return type.getDefaultStartLevel();
+        }
+        return startLevel;
+    }
+
+    int getManagedExecutorConcurrencyLimit() {
+        return this.managedExecutorConcurrencyLimit;
+    }
+
+    int getManagedExecutorThreads() {
+        return this.managedExecutorThreads;
+    }
+
+    long getPackageRefreshQuietPeriod() {
+        return this.packageRefreshQuietPeriod;
+    }
+
+    int getServiceProviderParallelism() {
+        return this.serviceProviderParallelism;
+    }
+
+    long getServiceProviderTimeout() {
+        return this.serviceProviderTimeout;
+    }
+
+    long getShutdownTimeout() {
+        return this.shutdownTimeout;
+    }
+
+    /**
+     * @return The start levels of all initial bundles and file install directories that are in use, i.e. the stages of the startup.
+     */
+    SortedSet<Integer> getStartLevels() {
+        SortedSet<Integer> startLevels = new TreeSet<>();
+        startLevels.add(this.getInitialBundleStartLevel(InitialBundleType.MANDATORY_BUNDLE));
+
+        if (this.slf4jBridgeActivated) {
+            startLevels.add(this.getInitialBundleStartLevel(InitialBundleType.SLF4J_BRIDGE));
+        }
+
+        if (this.remoteShellBundlesEnabled) {
+            startLevels.add(this.getInitialBundleStartLevel(InitialBundleType.LOCAL_SHELL_BUNDLE));
+            startLevels.add(this.getInitialBundleStartLevel(InitialBundleType.REMOTE_SHELL_BUNDLE));
+        }
+
+        if (this.bundleDirectoryWatcherEnabled) {
+            for (Path fileInstallDir : this.fileInstallDirs) {
+                startLevels.add(this.getFileInstallDirStartLevel(fileInstallDir));
+            }
+        } else {
+            startLevels.add(this.getInitialBundleStartLevel(InitialBundleType.FILE_INSTALL_BUNDLE));
+            startLevels.add(this.getFileInstallStartLevel());
+        }
+
+        return startLevels;
+    }
+
+    boolean isBufferPoolEnabled() {
+        return this.bufferPoolEnabled;
+    }
+
+    boolean isBundleDirectoryWatcherEnabled() {
+        return this.bundleDirectoryWatcherEnabled;
+    }
+
+    boolean isBundleDirectoryWatcherHotSwap() {
+        return this.bundleDirectoryWatcherHotSwap;
+    }
+
+    boolean isBundleDirectoryWatcherReferenceInstall() {
+        return this.bundleDirectoryWatcherReferenceInstall;
+    }
+
+    boolean isClassPreloading() {
+        return this.classPreloading;
+    }
+
+    boolean isClassPreloadRecording() {
+        return this.classPreloadRecording;
+    }
+
+    boolean isFileInstallNewStart() {
+        return this.fileInstallNewStart == null || this.fileInstallNewStart;
+    }
+
+    boolean isManagedExecutorEnabled() {
+        return this.managedExecutorEnabled;
+    }
+
+    boolean isManagedExecutorVirtualThreads() {
+        return this.managedExecutorVirtualThreads;
+    }
+
     boolean isSlf4jBridgeActivated() {
         return this.slf4jBridgeActivated;
     }
 
+    boolean isWarmStart() {
+        return this.warmStart;
+    }
+
+    private int getFileInstallStartLevel() {
+        if (this.fileInstallStartLevel == null) {
+            return DEFAULT_FILE_INSTALL_START_LEVEL;
+        }
+        return this.fileInstallStartLevel;
+    }
+
     private static void applyProperty(Map<String, Object> config, String name, Object value) {
         if (value != null) {
             config.put(name, String.valueOf(value));
             LOGGER.info("Setting property '" + name + "': " + value);
         }
     }
+
+    private static Path normalize(Path dir) {
+        return dir.toAbsolutePath().normalize();
+    }
 }
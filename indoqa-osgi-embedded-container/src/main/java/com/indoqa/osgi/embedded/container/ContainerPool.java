@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates isolated {@link EmbeddedOSGiContainer}s for many tenants within the same JVM. Each tenant gets its own framework storage
+ * in <code>tenants/&lt;tenant-id&gt;</code> of the pool directory, while the bundle jars are kept once in the immutable,
+ * content-addressed cache <code>bundle-cache</code>:
+ * <ul>
+ * <li>The initial bundles are read and digested once per pool and installed by reference, so they are not copied into the
+ * framework storage of each tenant.</li>
+ * <li>Further bundles can be shared with {@link #getSharedBundle(Path)} and deployed with
+ * {@link EmbeddedOSGiContainer#deployBundles(java.util.Collection)}.</li>
+ * </ul>
+ * The cached jars are never modified or deleted by the pool. A changed bundle gets a new digest and therefore a new location.
+ */
+public final class ContainerPool {
+
+    private static final String BUNDLE_CACHE_DIRECTORY = "bundle-cache";
+    private static final String TENANTS_DIRECTORY = "tenants";
+    private static final Pattern TENANT_ID_PATTERN = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._-]*");
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final Path tenantsDirectory;
+    private final SharedBundleCache sharedBundleCache;
+    private final ConcurrentMap<String, EmbeddedOSGiContainer> containers = new ConcurrentHashMap<>();
+
+    public ContainerPool(Path directory) {
+        Path poolDirectory = directory.toAbsolutePath().normalize();
+        this.tenantsDirectory = poolDirectory.resolve(TENANTS_DIRECTORY);
+        this.sharedBundleCache = new SharedBundleCache(poolDirectory.resolve(BUNDLE_CACHE_DIRECTORY));
+    }
+
+    private static void checkTenantId(String tenantId) {
+        if (tenantId == null || !TENANT_ID_PATTERN.matcher(tenantId).matches()) {
+            throw new EmbeddedOSGiContainerInitializationException(
+                "The tenant id '" + tenantId + "' is invalid. It has to match " + TENANT_ID_PATTERN + ".");
+        }
+    }
+
+    /**
+     * Create the container of a tenant. The framework storage of the configuration is set to the tenant directory of this pool;
+     * the container still has to be initialized.
+     *
+     * @param configurationSupplier Creates the configuration of the tenant. Configurations are mutable, so each tenant needs its
+     *            own instance, e.g. <code>() -&gt; new ContainerConfiguration().addFileInstallDir(...)</code>.
+     */
+    public EmbeddedOSGiContainer createContainer(String tenantId, Supplier<ContainerConfiguration> configurationSupplier) {
+        checkTenantId(tenantId);
+
+        Path frameworkStorage = this.tenantsDirectory.resolve(tenantId);
+        ContainerConfiguration containerConfiguration = configurationSupplier.get();
+        Path currentFrameworkStorage = containerConfiguration.getFrameworkStorage();
+        if (currentFrameworkStorage != null && currentFrameworkStorage.startsWith(this.tenantsDirectory)
+            && !currentFrameworkStorage.equals(frameworkStorage)) {
+            throw new EmbeddedOSGiContainerInitializationException(
+                "The configuration of the tenant '" + tenantId + "' is already used by another tenant. "
+                    + "The supplier has to create a new configuration for each tenant.");
+        }
+
+        try {
+            Files.createDirectories(frameworkStorage);
+        } catch (IOException e) {
+            throw new EmbeddedOSGiContainerInitializationException(
+                "Can't create the framework storage '" + frameworkStorage + "' of the tenant '" + tenantId + "'.", e);
+        }
+
+        EmbeddedOSGiContainer container = new EmbeddedOSGiContainer();
+        container.setContainerConfiguration(containerConfiguration.setFrameworkStorage(frameworkStorage));
+        container.setSharedBundleCache(this.sharedBundleCache);
+
+        if (this.containers.putIfAbsent(tenantId, container) != null) {
+            throw new EmbeddedOSGiContainerInitializationException("The tenant '" + tenantId + "' already has a container.");
+        }
+
+        this.logger.info("Created container: tenant-id=" + tenantId + "; framework-storage=" + frameworkStorage);
+        return container;
+    }
+
+    /**
+     * Destroy the containers of all tenants. The shared bundle cache is kept for the next start.
+     */
+    public void destroy() {
+        for (String tenantId : this.getTenantIds()) {
+            this.destroyContainer(tenantId);
+        }
+    }
+
+    /**
+     * Destroy the container of the given tenant. Its framework storage is kept, so that it can be warm started again.
+     */
+    public void destroyContainer(String tenantId) {
+        EmbeddedOSGiContainer container = this.containers.remove(tenantId);
+        if (container == null) {
+            return;
+        }
+
+        container.destroy();
+        this.logger.info("Destroyed container: tenant-id=" + tenantId);
+    }
+
+    /**
+     * @return The container of the given tenant or <code>null</code> if the tenant has no container.
+     */
+    public EmbeddedOSGiContainer getContainer(String tenantId) {
+        return this.containers.get(tenantId);
+    }
+
+    public Path getSharedBundleCacheDirectory() {
+        return this.sharedBundleCache.getDirectory();
+    }
+
+    /**
+     * Add the jar file at the given path to the shared bundle cache. The returned source installs the cached copy by reference, so
+     * all tenants deploying it share the same file. The jar is only read again after it has been modified.
+     */
+    public BundleSource getSharedBundle(Path path) {
+        return this.sharedBundleCache.get(path).toBundleSource(0);
+    }
+
+    public Set<String> getTenantIds() {
+        return Collections.unmodifiableSet(new TreeSet<>(this.containers.keySet()));
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+/**
+ * The lifecycle states of an {@link EmbeddedOSGiContainer}.
+ */
+public enum ContainerState {
+
+    /** The container has not been initialized yet. */
+    NEW,
+
+    /** The OSGi framework and the initial bundles are being started. */
+    STARTING,
+
+    /** The OSGi framework and all initial bundles are running, the service providers are being initialized. */
+    FRAMEWORK_UP,
+
+    /** All service providers have been initialized, the container is ready to be used. */
+    PROVIDERS_READY,
+
+    /** The initialization of the container failed. */
+    FAILED,
+
+    /** The container has been destroyed. */
+    STOPPED
+}
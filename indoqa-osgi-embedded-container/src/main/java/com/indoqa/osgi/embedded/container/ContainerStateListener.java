@@ -0,0 +1,27 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+/**
+ * Gets notified whenever an {@link EmbeddedOSGiContainer} changes its {@link ContainerState}. Listeners are called synchronously by
+ * the thread that performs the state transition and must not block.
+ */
+@FunctionalInterface
+public interface ContainerStateListener {
+
+    void stateChanged(ContainerState previousState, ContainerState newState);
+}
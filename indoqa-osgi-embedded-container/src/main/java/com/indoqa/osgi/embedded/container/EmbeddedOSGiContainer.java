@@ -17,11 +17,23 @@
 package com.indoqa.osgi.embedded.container;
 
 import static java.util.Collections.emptyList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.apache.felix.framework.util.FelixConstants.SYSTEMBUNDLE_ACTIVATORS_PROP;
 import static org.osgi.framework.Constants.FRAMEWORK_SYSTEMPACKAGES_EXTRA;
 
 import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -29,11 +41,22 @@ import javax.annotation.PreDestroy;
 import org.apache.felix.framework.Felix;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.indoqa.osgi.embedded.container.StartupReport.Category;
+import com.indoqa.osgi.embedded.services.BundleResourceAccounting;
+import com.indoqa.osgi.embedded.services.CircuitBreaker;
 import com.indoqa.osgi.embedded.services.EmbeddedOSGiServiceProvider;
+import com.indoqa.osgi.embedded.services.ManagedExecutorService;
+import com.indoqa.osgi.embedded.services.ServiceAvailability;
+import com.indoqa.osgi.embedded.services.ServiceIsolation;
+import com.indoqa.osgi.embedded.services.buffers.BufferPool;
 
 /**
  * This class can be used to run an embedded OSGi container in order to provide a dynamic extension mechanism for a Java application.
@@ -43,7 +66,17 @@ import com.indoqa.osgi.embedded.services.EmbeddedOSGiServiceProvider;
  * <li>a collection of services that need access to the OSGi bundle context</li>
  * </ul>
  * Internally the container runs on Felix 5 and uses the FileInstall Bundle
- * (https://felix.apache.org/documentation/subprojects/apache-felix-file-install.html) to load the extension bundles.
+ * (https://felix.apache.org/documentation/subprojects/apache-felix-file-install.html) to load the extension bundles. Alternatively
+ * the event driven bundle directory watcher can be enabled, see
+ * {@link ContainerConfiguration#setBundleDirectoryWatcherEnabled(boolean)}.
+ * <p/>
+ * The container can either be initialized blocking ({@link #initialize()}) or in the background ({@link #initializeAsync()}). In
+ * both cases its progress is reflected by its {@link ContainerState}, see {@link #getState()} and
+ * {@link #addStateListener(ContainerStateListener)}. The timings of all startup phases, bundles and service providers are available
+ * as {@link #getStartupReport()} and logged as a single line once the initialization has finished.
+ * <p/>
+ * The bundles are started in stages: the framework begins at the lowest start level in use and is raised to the start level of each
+ * group of initial bundles and file install directories, see {@link #addStartLevelListener(StartLevelListener)}.
  * <p/>
  * This implementation allows setting following properties:
  * <ul>
@@ -55,16 +88,61 @@ import com.indoqa.osgi.embedded.services.EmbeddedOSGiServiceProvider;
 public class EmbeddedOSGiContainer {
 
     private static final String SYSTEM_PACKAGE_SEPARATOR = ",";
+    private static final long START_LEVEL_TIMEOUT_SECONDS = 60;
+    private static final String SHUTDOWN_THREAD_NAME = "embedded-osgi-container-shutdown";
 
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
     private final StringBuilder systemPackages = new StringBuilder();
+    private final AtomicReference<ContainerState> state = new AtomicReference<>(ContainerState.NEW);
+    private final List<ContainerStateListener> stateListeners = new CopyOnWriteArrayList<>();
+    private final List<StartLevelListener> startLevelListeners = new CopyOnWriteArrayList<>();
+    private final PackageRefreshMetrics packageRefreshMetrics = new PackageRefreshMetrics();
+    private final BundleResourceAccounting resourceAccounting = new BundleResourceAccounting();
+    private final ServiceIsolation serviceIsolation = new ServiceIsolation();
+    private volatile CompletableFuture<Void> startup;
+    private volatile StartupRecorder startupRecorder;
     private Felix felix;
     private ContainerConfiguration containerConfiguration = new ContainerConfiguration();
-    private HostActivator hostActivator;
+    private volatile HostActivator hostActivator;
+    private BundleDirectoryWatcher bundleDirectoryWatcher;
+    private BundleDigestIndex bundleDigestIndex;
+    private volatile PackageRefreshCoalescer packageRefreshCoalescer;
+    private ManagedExecutor managedExecutor;
+    private volatile BufferPool bufferPool;
+    private ClassPreloader classPreloader;
+    private SharedBundleCache sharedBundleCache;
     private Collection<EmbeddedOSGiServiceProvider> embeddedOSGiServiceProviders;
+    private long shutdownDeadline;
 
     public EmbeddedOSGiContainer() {
         this.embeddedOSGiServiceProviders = emptyList();
+        this.serviceIsolation.addListener(this::logCircuitBreakerStateChange);
+    }
+
+    private static void setStartLevel(FrameworkStartLevel frameworkStartLevel, int startLevel) {
+        CountDownLatch startLevelChanged = new CountDownLatch(1);
+        frameworkStartLevel.setStartLevel(startLevel, event -> startLevelChanged.countDown());
+
+        try {
+            if (!startLevelChanged.await(START_LEVEL_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new EmbeddedOSGiContainerInitializationException(
+                    "The framework didn't reach the start level " + startLevel + " within " + START_LEVEL_TIMEOUT_SECONDS + "s.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EmbeddedOSGiContainerInitializationException(
+                "Interrupted while raising the start level to " + startLevel + ".", e);
+        }
+    }
+
+    public void addStartLevelListener(StartLevelListener startLevelListener) {
+        Objects.requireNonNull(startLevelListener);
+        this.startLevelListeners.add(startLevelListener);
+    }
+
+    public void addStateListener(ContainerStateListener stateListener) {
+        Objects.requireNonNull(stateListener);
+        this.stateListeners.add(stateListener);
     }
 
     public void addSystemPackage(String additionalPackage) {
@@ -79,22 +157,191 @@ public class EmbeddedOSGiContainer {
         this.systemPackages.append(additionalPackage);
     }
 
+    /**
+     * @see ServiceAvailability#awaitBundle(BundleContext, Predicate, long)
+     */
+    public Bundle awaitBundle(Predicate<Bundle> condition, long timeout) throws InterruptedException, TimeoutException {
+        return ServiceAvailability.awaitBundle(this.getSystemBundleContext(), condition, timeout);
+    }
+
+    /**
+     * Wait until the bundle with the given symbolic name is active, e.g. after it has been copied into a bundle directory.
+     *
+     * @param timeout The maximum time to wait in milliseconds.
+     */
+    public Bundle awaitBundleActive(String symbolicName, long timeout) throws InterruptedException, TimeoutException {
+        return ServiceAvailability.awaitBundleActive(this.getSystemBundleContext(), symbolicName, timeout);
+    }
+
+    /**
+     * @see ServiceAvailability#awaitBundleUninstalled(BundleContext, String, long)
+     */
+    public void awaitBundleUninstalled(String symbolicName, long timeout) throws InterruptedException, TimeoutException {
+        ServiceAvailability.awaitBundleUninstalled(this.getSystemBundleContext(), symbolicName, timeout);
+    }
+
+    /**
+     * Wait until a service of the given type is registered. This returns as soon as the service is available, which makes it
+     * suitable for readiness checks.
+     *
+     * @param filter An additional LDAP filter the service properties have to match or <code>null</code>.
+     * @param timeout The maximum time to wait in milliseconds.
+     */
+    public <T> ServiceReference<T> awaitService(Class<T> type, String filter, long timeout)
+            throws InterruptedException, TimeoutException {
+        return ServiceAvailability.awaitService(this.getSystemBundleContext(), type, filter, timeout);
+    }
+
+    /**
+     * Deploys a set of bundles as a unit: all bundles are installed in parallel, resolved together and started in dependency order.
+     * If one of them can't be installed or resolved, none of them remains installed. None of the locations must be installed yet.
+     *
+     * @return The result of each bundle in the order of the sources.
+     */
+    public List<BundleDeploymentResult> deployBundles(Collection<BundleSource> sources) {
+        return new BundleBatchDeployer(this.getSystemBundleContext(), this.startupRecorder).deployAtomically(sources);
+    }
+
+    /**
+     * Destroys the service providers and stops the OSGi framework. If the container is still being initialized in the background,
+     * this method waits until the initialization has completed. Service providers are only destroyed if all of them had been
+     * initialized successfully. The shutdown can be bounded by {@link ContainerConfiguration#setShutdownTimeout(long)}, which
+     * includes waiting for the initialization: if it doesn't complete in time, the service providers are not destroyed and the
+     * framework is stopped right away.
+     */
     @PreDestroy
     public void destroy() {
-        this.destroyServiceProviders();
-        this.stopFelix();
+        this.shutdownDeadline = System.nanoTime() + MILLISECONDS.toNanos(this.containerConfiguration.getShutdownTimeout());
+        boolean startupCompleted = this.waitForStartup();
+
+        if (this.felix != null) {
+            if (startupCompleted && this.state.get() == ContainerState.PROVIDERS_READY) {
+                this.destroyServiceProviders();
+            }
+            this.stopBundleDirectoryWatcher();
+            this.closePackageRefreshCoalescer();
+            this.stopClassPreloader();
+            this.stopFelix();
+            this.closeManagedExecutor();
+        }
+
+        this.changeState(ContainerState.STOPPED);
+    }
+
+    /**
+     * @return The pool of direct buffers that is shared with the bundles or <code>null</code> if it isn't enabled, see
+     *         {@link ContainerConfiguration#setBufferPoolEnabled(boolean)}.
+     */
+    public BufferPool getBufferPool() {
+        return this.bufferPool;
     }
 
     public Collection<Bundle> getInstalledBundles() {
         return Arrays.asList(this.hostActivator.getBundles());
     }
 
+    public PackageRefreshMetrics getPackageRefreshMetrics() {
+        return this.packageRefreshMetrics;
+    }
+
+    /**
+     * @return The CPU time and heap allocations per bundle. Resources are attributed to bundles by the service consumers, e.g. by
+     *         handing this instance to {@link com.indoqa.osgi.embedded.services.TrackedServices#setResourceAccounting}, and by the
+     *         managed executor if it runs its tasks on platform threads.
+     */
+    public BundleResourceAccounting getResourceAccounting() {
+        return this.resourceAccounting;
+    }
+
+    /**
+     * @return The bulkheads and circuit breakers per bundle. Service invocations are isolated by the service consumers, e.g. by
+     *         handing this instance to {@link com.indoqa.osgi.embedded.services.TrackedServices#setServiceIsolation}. State
+     *         changes of the circuit breakers are logged.
+     */
+    public ServiceIsolation getServiceIsolation() {
+        return this.serviceIsolation;
+    }
+
+    /**
+     * @return The timings of the container initialization so far or <code>null</code> if the container hasn't been initialized
+     *         yet. The report is complete once the container has reached the state {@link ContainerState#PROVIDERS_READY} or
+     *         {@link ContainerState#FAILED}.
+     */
+    public StartupReport getStartupReport() {
+        StartupRecorder currentStartupRecorder = this.startupRecorder;
+        if (currentStartupRecorder == null) {
+            return null;
+        }
+
+        return currentStartupRecorder.createReport();
+    }
+
+    public ContainerState getState() {
+        return this.state.get();
+    }
+
+    /**
+     * Starts the OSGi framework, installs all bundles and initializes the service providers. This method blocks until the container
+     * is ready to be used. A container can only be initialized once.
+     */
     @PostConstruct
     public void initialize() {
-        this.createHostActivator();
-        this.exportSlf4jPackages();
-        this.startFelix();
-        this.initializeServiceProviders();
+        this.beginStartup();
+        this.startup();
+    }
+
+    /**
+     * Initializes the container on a background thread so that the host application can continue its own startup in parallel. The
+     * returned future completes when all service providers have been initialized or exceptionally if the initialization failed.
+     * Intermediate progress can be observed via {@link #addStateListener(ContainerStateListener)}. Cancelling the returned future
+     * does not interrupt the initialization.
+     */
+    public CompletableFuture<Void> initializeAsync() {
+        this.beginStartup();
+
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        this.startup = result;
+
+        Thread startupThread = new NamedThreadFactory("embedded-osgi-container-startup").newThread(() -> {
+            try {
+                this.startup();
+                result.complete(null);
+            } catch (Throwable e) {
+                this.logger.error("Asynchronous initialization of the embedded OSGi container failed.", e);
+                result.completeExceptionally(e);
+            }
+        });
+        startupThread.start();
+
+        return result;
+    }
+
+    /**
+     * Refresh the packages of the given bundles, e.g. after they have been updated or uninstalled. Requests that arrive within the
+     * quiet period of {@link ContainerConfiguration#setPackageRefreshQuietPeriod(long)} are coalesced into a single refresh, which
+     * is performed asynchronously by a background thread. All given bundles are refreshed, even if their previous revisions aren't
+     * in use anymore, e.g. to rewire a bundle after a provider of one of its optional imports has been installed.
+     *
+     * @throws IllegalStateException If the container hasn't been started yet or has already been destroyed.
+     */
+    public void refreshBundles(Collection<Bundle> bundles) {
+        PackageRefreshCoalescer currentPackageRefreshCoalescer = this.packageRefreshCoalescer;
+        if (currentPackageRefreshCoalescer == null) {
+            throw new IllegalStateException("The embedded OSGi container hasn't been started.");
+        }
+        if (currentPackageRefreshCoalescer.isClosed()) {
+            throw new IllegalStateException("The embedded OSGi container has been destroyed.");
+        }
+
+        currentPackageRefreshCoalescer.request(bundles, false);
+    }
+
+    public void removeStartLevelListener(StartLevelListener startLevelListener) {
+        this.startLevelListeners.remove(startLevelListener);
+    }
+
+    public void removeStateListener(ContainerStateListener stateListener) {
+        this.stateListeners.remove(stateListener);
     }
 
     public void setContainerConfiguration(ContainerConfiguration containerConfiguration) {
@@ -107,10 +354,25 @@ public class EmbeddedOSGiContainer {
         this.embeddedOSGiServiceProviders = providers;
     }
 
+    /**
+     * Install and start the jar file or exploded bundle directory at the given path without copying it into the framework storage.
+     * The bundle location is the <code>reference:</code> URL of the path.
+     */
+    public Bundle startBundle(Path path) {
+        return this.hostActivator.startBundle(path);
+    }
+
     public Bundle startBundle(String location, InputStream bundleInputStream) {
         return this.hostActivator.startBundle(location, bundleInputStream);
     }
 
+    /**
+     * Install the initial bundles by reference from the given cache, see {@link ContainerPool}.
+     */
+    void setSharedBundleCache(SharedBundleCache sharedBundleCache) {
+        this.sharedBundleCache = sharedBundleCache;
+    }
+
     protected void configHostActivator(Map<String, Object> config) {
         List<BundleActivator> activators = new ArrayList<>();
         activators.add(this.hostActivator);
@@ -122,12 +384,69 @@ public class EmbeddedOSGiContainer {
         this.logger.info("Setting property '" + FRAMEWORK_SYSTEMPACKAGES_EXTRA + "': " + this.systemPackages);
     }
 
+    /**
+     * Raise the framework start level stage by stage, from the beginning start level up to the highest start level in use. Each stage
+     * completes after all of its bundles have been started.
+     */
+    protected void raiseStartLevel() {
+        FrameworkStartLevel frameworkStartLevel = this.felix.adapt(FrameworkStartLevel.class);
+        SortedSet<Integer> startLevels = this.containerConfiguration.getStartLevels();
+        int finalStartLevel = startLevels.last();
+
+        for (int startLevel : startLevels) {
+            if (startLevel > frameworkStartLevel.getStartLevel()) {
+                long start = System.nanoTime();
+                setStartLevel(frameworkStartLevel, startLevel);
+                this.startupRecorder.record(Category.PHASE, "start-level-" + startLevel, start);
+            }
+
+            this.logger.info(
+                "Embedded OSGi container reached start level: start-level=" + startLevel + "; final-start-level=" + finalStartLevel);
+            this.fireStartLevelReached(startLevel, finalStartLevel);
+        }
+    }
+
+    protected void startBundleDirectoryWatcher() {
+        if (!this.containerConfiguration.isBundleDirectoryWatcherEnabled()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        this.bundleDirectoryWatcher = new BundleDirectoryWatcher(
+            this.hostActivator.getBundleContext(),
+            this.containerConfiguration,
+            this.bundleDigestIndex,
+            this.startupRecorder,
+            this.packageRefreshCoalescer);
+        this.bundleDirectoryWatcher.start();
+        this.startupRecorder.record(Category.PHASE, "bundle-directory-watcher", start);
+    }
+
     protected void startFelix() {
         try {
             this.logger.info("Going to startup embedded OSGi container.");
 
+            long frameworkStart = System.nanoTime();
             this.felix = new Felix(this.createFelixContainerConfiguration());
+            // before starting the framework, which may clean its storage directory
+            this.loadClassPreloader();
+            this.felix.init();
+            // after the host activator has been started, but before the bundles of a warm start are started with the framework
+            this.startClassPreloader();
             this.felix.start();
+            this.startupRecorder.record(Category.PHASE, "framework-start", frameworkStart);
+
+            this.packageRefreshCoalescer = new PackageRefreshCoalescer(
+                this.hostActivator.getBundleContext(),
+                this.containerConfiguration.getPackageRefreshQuietPeriod(),
+                this.packageRefreshMetrics);
+            this.registerManagedExecutor();
+            this.registerBufferPool();
+
+            long initialBundlesStart = System.nanoTime();
+            this.loadBundleDigestIndex();
+            this.hostActivator.startInitialBundles(this.bundleDigestIndex, this.startupRecorder);
+            this.startupRecorder.record(Category.PHASE, "initial-bundles", initialBundlesStart);
 
             int hashCode = System.identityHashCode(this.felix);
             this.logger.info("Embedded OSGi container has been started successfully: container-hashCode=" + hashCode);
@@ -137,10 +456,24 @@ public class EmbeddedOSGiContainer {
         }
     }
 
+    protected void stopBundleDirectoryWatcher() {
+        if (this.bundleDirectoryWatcher == null) {
+            return;
+        }
+
+        this.bundleDirectoryWatcher.stop();
+        this.bundleDirectoryWatcher = null;
+    }
+
     protected void stopFelix() {
         try {
             this.logger.info("Going to shutdown embedded OSGi container: container-hashCode=" + System.identityHashCode(this.felix));
 
+            if (this.isShutdownBounded()) {
+                this.stopFelixWithinDeadline();
+                return;
+            }
+
             this.felix.stop();
             this.felix.waitForStop(0);
 
@@ -153,6 +486,39 @@ public class EmbeddedOSGiContainer {
         }
     }
 
+    private void beginStartup() {
+        if (!this.state.compareAndSet(ContainerState.NEW, ContainerState.STARTING)) {
+            throw new EmbeddedOSGiContainerInitializationException(
+                "The embedded OSGi container can only be initialized once: state=" + this.state.get());
+        }
+        this.startupRecorder = new StartupRecorder();
+        this.fireStateChanged(ContainerState.NEW, ContainerState.STARTING);
+    }
+
+    private void changeState(ContainerState newState) {
+        ContainerState previousState = this.state.getAndSet(newState);
+        if (previousState != newState) {
+            this.fireStateChanged(previousState, newState);
+        }
+    }
+
+    private void closeManagedExecutor() {
+        if (this.managedExecutor != null) {
+            this.managedExecutor.close();
+        }
+    }
+
+    private void closePackageRefreshCoalescer() {
+        if (this.packageRefreshCoalescer != null) {
+            this.packageRefreshCoalescer.close();
+        }
+    }
+
+    private void completeStartupReport() {
+        this.startupRecorder.complete();
+        this.logger.info("Embedded OSGi container startup report: " + this.startupRecorder.createReport());
+    }
+
     private void configBundles(Map<String, Object> config) {
         this.containerConfiguration.apply(config);
     }
@@ -168,19 +534,45 @@ public class EmbeddedOSGiContainer {
     }
 
     private void createHostActivator() {
-        this.hostActivator = new HostActivator(
-            this.containerConfiguration.areRemoteShellBundlesEnabled(), this.containerConfiguration.isSlf4jBridgeActivated());
+        this.hostActivator = new HostActivator(this.containerConfiguration, this.sharedBundleCache);
+    }
+
+    private ServiceProviderLifecycle createServiceProviderLifecycle() {
+        return new ServiceProviderLifecycle(
+            this.embeddedOSGiServiceProviders,
+            this.containerConfiguration.getServiceProviderParallelism(),
+            this.containerConfiguration.getServiceProviderTimeout());
     }
 
     private void destroyServiceProviders() {
-        this.logger.info("Going to destroy " + this.embeddedOSGiServiceProviders.size() + " service provider(s).");
+        ServiceProviderLifecycle serviceProviderLifecycle = this.createServiceProviderLifecycle();
+        if (!this.isShutdownBounded()) {
+            serviceProviderLifecycle.destroy();
+            return;
+        }
 
-        for (EmbeddedOSGiServiceProvider serviceProvider : this.embeddedOSGiServiceProviders) {
-            serviceProvider.destroy();
+        Thread destruction = new NamedThreadFactory(SHUTDOWN_THREAD_NAME).newThread(serviceProviderLifecycle::destroy);
+        destruction.start();
+        try {
+            destruction.join(this.getRemainingShutdownMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
-            this.logger.info(
-                "Destroyed service provider: " + serviceProvider.getClass().getName() + "; service-provider-hashCode="
-                    + System.identityHashCode(serviceProvider));
+        if (destruction.isAlive()) {
+            this.logger.warn("The service providers weren't destroyed before the shutdown deadline, continuing with the shutdown.");
+        }
+    }
+
+    private void exportBufferPoolPackage() {
+        if (this.containerConfiguration.isBufferPoolEnabled()) {
+            this.addSystemPackage(BufferPool.class.getPackage().getName());
+        }
+    }
+
+    private void exportManagedExecutorPackage() {
+        if (this.containerConfiguration.isManagedExecutorEnabled()) {
+            this.addSystemPackage(ManagedExecutorService.class.getPackage().getName());
         }
     }
 
@@ -193,15 +585,169 @@ public class EmbeddedOSGiContainer {
         }
     }
 
+    private void fireStartLevelReached(int startLevel, int finalStartLevel) {
+        for (StartLevelListener startLevelListener : this.startLevelListeners) {
+            try {
+                startLevelListener.startLevelReached(startLevel, finalStartLevel);
+            } catch (RuntimeException e) {
+                this.logger.error("Error while notifying start level listener " + startLevelListener + ".", e);
+            }
+        }
+    }
+
+    private void fireStateChanged(ContainerState previousState, ContainerState newState) {
+        this.logger.info("Embedded OSGi container changed its state: previous-state=" + previousState + "; state=" + newState);
+
+        for (ContainerStateListener eachStateListener : this.stateListeners) {
+            try {
+                eachStateListener.stateChanged(previousState, newState);
+            } catch (RuntimeException e) {
+                this.logger.error("Error while notifying container state listener " + eachStateListener + ".", e);
+            }
+        }
+    }
+
+    private long getRemainingShutdownMillis() {
+        return Math.max(1, NANOSECONDS.toMillis(this.shutdownDeadline - System.nanoTime()));
+    }
+
+    private BundleContext getSystemBundleContext() {
+        HostActivator currentHostActivator = this.hostActivator;
+        if (currentHostActivator == null || currentHostActivator.getBundleContext() == null) {
+            throw new EmbeddedOSGiContainerInitializationException("The embedded OSGi container hasn't been started.");
+        }
+        return currentHostActivator.getBundleContext();
+    }
+
     private void initializeServiceProviders() {
-        this.logger.info("Going to initialize " + this.embeddedOSGiServiceProviders.size() + " service provider(s).");
+        long start = System.nanoTime();
+        this.createServiceProviderLifecycle().initialize(this.hostActivator.getBundleContext(), this.startupRecorder);
+        this.startupRecorder.record(Category.PHASE, "service-providers", start);
+    }
 
-        for (EmbeddedOSGiServiceProvider serviceProvider : this.embeddedOSGiServiceProviders) {
-            serviceProvider.initialize(this.hostActivator.getBundleContext());
+    private boolean isShutdownBounded() {
+        return this.containerConfiguration.getShutdownTimeout() > 0;
+    }
 
-            this.logger.info(
-                "Initialized service provider: " + serviceProvider.getClass().getName() + "; service-provider-hashCode="
-                    + System.identityHashCode(serviceProvider));
+    private void loadBundleDigestIndex() {
+        if (this.containerConfiguration.isWarmStart()) {
+            this.bundleDigestIndex = BundleDigestIndex.load(this.containerConfiguration.getFrameworkStorage());
+        }
+    }
+
+    private void loadClassPreloader() {
+        if (this.containerConfiguration.isClassPreloadRecording() || this.containerConfiguration.isClassPreloading()) {
+            this.classPreloader = ClassPreloader.load(this.containerConfiguration);
+        }
+    }
+
+    private void logCircuitBreakerStateChange(CircuitBreaker circuitBreaker, CircuitBreaker.State previousState,
+            CircuitBreaker.State newState) {
+        String message = "Circuit breaker changed its state: bundle-symbolic-name=" + circuitBreaker.getBundleSymbolicName()
+            + "; bundle-version=" + circuitBreaker.getBundleVersion() + "; previous-state=" + previousState + "; state=" + newState;
+
+        if (newState == CircuitBreaker.State.OPEN) {
+            this.logger.warn(message);
+        } else {
+            this.logger.info(message);
+        }
+    }
+
+    private void registerBufferPool() {
+        if (!this.containerConfiguration.isBufferPoolEnabled()) {
+            return;
+        }
+
+        this.bufferPool = new BufferPool(this.containerConfiguration.getBufferPoolArenaSize());
+        this.hostActivator.getBundleContext().registerService(BufferPool.class, this.bufferPool, null);
+    }
+
+    private void registerManagedExecutor() {
+        if (!this.containerConfiguration.isManagedExecutorEnabled()) {
+            return;
+        }
+
+        this.managedExecutor = new ManagedExecutor(this.containerConfiguration, this.resourceAccounting);
+        this.managedExecutor.register(this.hostActivator.getBundleContext());
+    }
+
+    private void startClassPreloader() {
+        if (this.classPreloader != null) {
+            this.classPreloader.start(this.hostActivator.getBundleContext());
+        }
+    }
+
+    private void startup() {
+        try {
+            this.createHostActivator();
+            this.exportSlf4jPackages();
+            this.exportManagedExecutorPackage();
+            this.exportBufferPoolPackage();
+            this.startFelix();
+            this.startBundleDirectoryWatcher();
+            this.raiseStartLevel();
+            this.changeState(ContainerState.FRAMEWORK_UP);
+
+            this.initializeServiceProviders();
+            this.completeStartupReport();
+            this.changeState(ContainerState.PROVIDERS_READY);
+        } catch (RuntimeException e) {
+            this.completeStartupReport();
+            this.changeState(ContainerState.FAILED);
+            throw e;
+        }
+    }
+
+    private void stopClassPreloader() {
+        if (this.classPreloader != null) {
+            this.classPreloader.stop();
+        }
+    }
+
+    private void stopFelixWithinDeadline() throws BundleException, InterruptedException {
+        int hashCode = System.identityHashCode(this.felix);
+        boolean bundlesStopped = new BundleShutdown(this.felix.getBundleContext()).stopBundles(this.shutdownDeadline);
+
+        this.felix.stop();
+        FrameworkEvent stopEvent = this.felix.waitForStop(this.getRemainingShutdownMillis());
+
+        if (bundlesStopped && stopEvent.getType() != FrameworkEvent.WAIT_TIMEDOUT) {
+            this.logger.info("Shutdown of an embedded OSGi container completed successfully: container-hashCode=" + hashCode);
+            return;
+        }
+
+        this.logger.warn(
+            "Shutdown of an embedded OSGi container was forced to complete after its deadline: container-hashCode=" + hashCode
+                + "; shutdown-timeout-ms=" + this.containerConfiguration.getShutdownTimeout());
+    }
+
+    /**
+     * @return <code>false</code> if the asynchronous initialization didn't complete before the shutdown deadline.
+     */
+    private boolean waitForStartup() {
+        CompletableFuture<Void> currentStartup = this.startup;
+        if (currentStartup == null || currentStartup.isDone()) {
+            return true;
+        }
+
+        this.logger.info("Waiting for the asynchronous initialization of the embedded OSGi container to complete.");
+        try {
+            if (this.isShutdownBounded()) {
+                currentStartup.get(this.getRemainingShutdownMillis(), MILLISECONDS);
+            } else {
+                currentStartup.join();
+            }
+        } catch (CompletionException | ExecutionException e) {
+            // the failure has already been reported to the caller of initializeAsync
+        } catch (TimeoutException e) {
+            this.logger.warn(
+                "The asynchronous initialization didn't complete before the shutdown deadline, continuing with the shutdown without "
+                    + "destroying the service providers.");
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
+        return true;
     }
 }
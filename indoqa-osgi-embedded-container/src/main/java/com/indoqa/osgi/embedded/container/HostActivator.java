@@ -16,9 +16,12 @@
  */
 package com.indoqa.osgi.embedded.container;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Map;
+import java.nio.file.Path;
+import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -34,10 +37,12 @@ import org.slf4j.LoggerFactory;
  * <ul>
  * <li>Felix Log</li>
  * <li>Felix Config Admin</li>
- * <li>Felix FileInstall</li>
+ * <li>Felix FileInstall (unless the {@link BundleDirectoryWatcher} is enabled)</li>
  * <li>Felix Gogo Shell (including Gogo Command and Gogo Runtime)</li>
  * <li>Felix Remote Shell</li>
  * </ul>
+ * Each group of bundles is started at its own start level, see {@link InitialBundleType}. If the container belongs to a
+ * {@link ContainerPool}, the initial bundles are installed by reference from the shared bundle cache of the pool.
  */
 /* default */
 @SuppressWarnings("WeakerAccess")
@@ -45,31 +50,39 @@ class HostActivator implements BundleActivator {
 
     private static final String INITIAL_BUNDLES_FOLDER = "initial-bundles/";
 
-    private static final Map<String, BundleType> BUNDLES = new ConcurrentHashMap<>();
+    private static final Map<String, InitialBundleType> BUNDLES = new ConcurrentHashMap<>();
 
     static {
-        BUNDLES.put("org.apache.felix.log-1.0.1.jar", BundleType.MANDATORY_BUNDLE);
-        BUNDLES.put("com.indoqa.osgi.slf4j.bridge-1.0.0.SNAPSHOT.jar", BundleType.SLF4J_BRIDGE);
+        BUNDLES.put("org.apache.felix.log-1.0.1.jar", InitialBundleType.MANDATORY_BUNDLE);
+        BUNDLES.put("com.indoqa.osgi.slf4j.bridge-1.0.0.SNAPSHOT.jar", InitialBundleType.SLF4J_BRIDGE);
 
-        BUNDLES.put("org.apache.felix.configadmin-1.8.8.jar", BundleType.MANDATORY_BUNDLE);
-        BUNDLES.put("org.apache.felix.fileinstall-3.5.0.jar", BundleType.MANDATORY_BUNDLE);
+        BUNDLES.put("org.apache.felix.configadmin-1.8.8.jar", InitialBundleType.MANDATORY_BUNDLE);
+        BUNDLES.put("org.apache.felix.fileinstall-3.5.0.jar", InitialBundleType.FILE_INSTALL_BUNDLE);
 
-        BUNDLES.put("org.apache.felix.gogo.command-0.16.0.jar", BundleType.REMOTE_SHELL_BUNDLE);
-        BUNDLES.put("org.apache.felix.gogo.runtime-0.16.2.jar", BundleType.REMOTE_SHELL_BUNDLE);
-        BUNDLES.put("org.apache.felix.gogo.shell-0.12.0.jar", BundleType.REMOTE_SHELL_BUNDLE);
+        BUNDLES.put("org.apache.felix.gogo.command-0.16.0.jar", InitialBundleType.REMOTE_SHELL_BUNDLE);
+        BUNDLES.put("org.apache.felix.gogo.runtime-0.16.2.jar", InitialBundleType.REMOTE_SHELL_BUNDLE);
+        BUNDLES.put("org.apache.felix.gogo.shell-0.12.0.jar", InitialBundleType.REMOTE_SHELL_BUNDLE);
 
-        BUNDLES.put("org.apache.felix.shell.remote-1.1.2.jar", BundleType.LOCAL_SHELL_BUNDLE);
+        BUNDLES.put("org.apache.felix.shell.remote-1.1.2.jar", InitialBundleType.LOCAL_SHELL_BUNDLE);
     }
 
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    private final boolean remoteShellEnabled;
-    private final boolean slf4jBridgingActivated;
+    private final ContainerConfiguration containerConfiguration;
+    private final SharedBundleCache sharedBundleCache;
     private BundleContext bundleContext;
 
-    public HostActivator(boolean remoteShellEnabled, boolean slf4jBridgingActivated) {
-        this.remoteShellEnabled = remoteShellEnabled;
-        this.slf4jBridgingActivated = slf4jBridgingActivated;
+    public HostActivator(ContainerConfiguration containerConfiguration) {
+        this(containerConfiguration, null);
+    }
+
+    /**
+     * @param sharedBundleCache The cache to install the initial bundles from or <code>null</code> if they are copied into the
+     *            framework storage.
+     */
+    public HostActivator(ContainerConfiguration containerConfiguration, SharedBundleCache sharedBundleCache) {
+        this.containerConfiguration = containerConfiguration;
+        this.sharedBundleCache = sharedBundleCache;
     }
 
     public BundleContext getBundleContext() {
@@ -87,7 +100,38 @@ class HostActivator implements BundleActivator {
     @Override
     public void start(BundleContext context) {
         this.bundleContext = context;
-        this.startBundles();
+    }
+
+    /**
+     * Install, resolve and start all enabled initial bundles. This has to be called after the framework has been started because
+     * bundles can't be started as long as the framework is still initializing.
+     *
+     * @param digestIndex The digests of the bundles of the previous run in order to reuse unchanged bundles from the framework
+     *            cache or <code>null</code> if all bundles have to be installed.
+     * @param startupRecorder Records the timings of all bundle installations and starts.
+     */
+    public Collection<Bundle> startInitialBundles(BundleDigestIndex digestIndex, StartupRecorder startupRecorder) {
+        List<BundleSource> sources = new ArrayList<>();
+
+        if (this.containerConfiguration.isSlf4jBridgeActivated()) {
+            this.collectBundlesByType(InitialBundleType.SLF4J_BRIDGE, sources);
+        }
+        this.collectBundlesByType(InitialBundleType.MANDATORY_BUNDLE, sources);
+
+        if (!this.containerConfiguration.isBundleDirectoryWatcherEnabled()) {
+            this.collectBundlesByType(InitialBundleType.FILE_INSTALL_BUNDLE, sources);
+        }
+
+        if (this.containerConfiguration.areRemoteShellBundlesEnabled()) {
+            this.collectBundlesByType(InitialBundleType.LOCAL_SHELL_BUNDLE, sources);
+            this.collectBundlesByType(InitialBundleType.REMOTE_SHELL_BUNDLE, sources);
+        }
+
+        if (digestIndex == null) {
+            return new BundleBatchDeployer(this.bundleContext, startupRecorder).deploy(sources);
+        }
+
+        return this.warmStartInitialBundles(sources, digestIndex, startupRecorder);
     }
 
     @Override
@@ -110,6 +154,23 @@ class HostActivator implements BundleActivator {
         }
     }
 
+    /**
+     * Install and start a bundle in place, see {@link BundleSource#reference(Path)}.
+     */
+    protected Bundle startBundle(Path path) {
+        String location = BundleSource.toReferenceLocation(path);
+        try {
+            Bundle bundle = this.bundleContext.installBundle(location);
+            bundle.start();
+            this.logger.info("Started bundle: " + location);
+            return bundle;
+        } catch (BundleException e) {
+            String msg = "Can't initialize bundle '" + location + "'.";
+            this.logger.error(msg, e);
+            throw new EmbeddedOSGiContainerInitializationException(msg, e);
+        }
+    }
+
     private static void closeBundleInputStream(String resourceName, InputStream bundleInputStream) {
         if (bundleInputStream == null) {
             return;
@@ -122,34 +183,132 @@ class HostActivator implements BundleActivator {
         }
     }
 
-    private void startBundle(String bundleFileName) {
-        String resourceName = INITIAL_BUNDLES_FOLDER + bundleFileName;
-        InputStream bundleInputStream = this.getClass().getClassLoader().getResourceAsStream(resourceName);
-
-        this.startBundle(resourceName, bundleInputStream);
+    private static byte[] readFully(BundleSource source) {
+        try (InputStream inputStream = source.openStream()) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+            return outputStream.toByteArray();
+        } catch (IOException e) {
+            throw new EmbeddedOSGiContainerInitializationException("Can't initialize bundle '" + source.getLocation() + "'.", e);
+        }
     }
 
-    private void startBundles() {
-        if (this.slf4jBridgingActivated) {
-            this.startBundlesByType(BundleType.SLF4J_BRIDGE);
+    private void collectBundlesByType(InitialBundleType type, List<BundleSource> sources) {
+        for (Entry<String, InitialBundleType> entry : BUNDLES.entrySet()) {
+            if (type.equals(entry.getValue())) {
+                String resourceName = INITIAL_BUNDLES_FOLDER + entry.getKey();
+                ClassLoader classLoader = this.getClass().getClassLoader();
+                BundleSource.InputStreamSupplier inputStreamSupplier = () -> classLoader.getResourceAsStream(resourceName);
+                int startLevel = this.containerConfiguration.getInitialBundleStartLevel(type);
+
+                if (this.sharedBundleCache == null) {
+                    sources.add(BundleSource.of(resourceName, inputStreamSupplier).withStartLevel(startLevel));
+                } else {
+                    sources.add(this.sharedBundleCache.get(resourceName, inputStreamSupplier).toBundleSource(startLevel));
+                }
+            }
         }
-        this.startBundlesByType(BundleType.MANDATORY_BUNDLE);
+    }
 
-        if (this.remoteShellEnabled) {
-            this.startBundlesByType(BundleType.LOCAL_SHELL_BUNDLE);
-            this.startBundlesByType(BundleType.REMOTE_SHELL_BUNDLE);
+    private boolean isInitialBundle(String location) {
+        if (location.startsWith(INITIAL_BUNDLES_FOLDER)) {
+            return true;
         }
+
+        return this.sharedBundleCache != null && this.sharedBundleCache.contains(INITIAL_BUNDLES_FOLDER, location);
     }
 
-    private void startBundlesByType(BundleType type) {
-        for (Entry<String, BundleType> entry : BUNDLES.entrySet()) {
-            if (type.equals(entry.getValue())) {
-                this.startBundle(entry.getKey());
+    private Collection<Bundle> warmStartInitialBundles(List<BundleSource> sources, BundleDigestIndex digestIndex,
+            StartupRecorder startupRecorder) {
+        BundleBatchDeployer bundleBatchDeployer = new BundleBatchDeployer(this.bundleContext, startupRecorder);
+        List<BundleSource> newSources = new ArrayList<>();
+        Set<String> enabledLocations = new HashSet<>();
+        List<Bundle> reusedBundles = new ArrayList<>();
+        List<Bundle> changedBundles = new ArrayList<>();
+
+        for (BundleSource source : sources) {
+            String location = source.getLocation();
+            enabledLocations.add(location);
+            // bundles of the shared cache are content-addressed and don't have to be read to get their digest
+            String digest = this.sharedBundleCache == null ? null : this.sharedBundleCache.getDigest(location);
+            byte[] content = null;
+            if (digest == null) {
+                content = readFully(source);
+                digest = BundleDigestIndex.digest(content);
+            }
+            Bundle bundle = this.bundleContext.getBundle(location);
+
+            try {
+                if (bundle == null && content == null) {
+                    newSources.add(source);
+                } else if (bundle == null) {
+                    newSources.add(BundleSource.of(location, content).withStartLevel(source.getStartLevel()));
+                } else if (digestIndex.matches(location, digest)) {
+                    BundleBatchDeployer.setStartLevel(bundle, source.getStartLevel());
+                    reusedBundles.add(bundle);
+                } else {
+                    BundleBatchDeployer.setStartLevel(bundle, source.getStartLevel());
+                    if (content == null) {
+                        bundle.update();
+                    } else {
+                        bundle.update(new ByteArrayInputStream(content));
+                    }
+                    changedBundles.add(bundle);
+                    this.logger.info("Updated bundle: " + location);
+                }
+            } catch (BundleException e) {
+                String msg = "Can't initialize bundle '" + location + "'.";
+                this.logger.error(msg, e);
+                throw new EmbeddedOSGiContainerInitializationException(msg, e);
             }
+
+            digestIndex.put(location, digest);
         }
+
+        changedBundles.addAll(this.uninstallDisabledInitialBundles(enabledLocations, digestIndex));
+        bundleBatchDeployer.refresh(changedBundles);
+
+        List<Bundle> bundles = new ArrayList<>(reusedBundles);
+        for (Bundle changedBundle : changedBundles) {
+            if (changedBundle.getState() != Bundle.UNINSTALLED) {
+                bundles.add(changedBundle);
+            }
+        }
+        bundleBatchDeployer.start(bundles);
+        bundles.addAll(bundleBatchDeployer.deploy(newSources));
+
+        digestIndex.store();
+
+        this.logger.info(
+            "Warm start of initial bundles: reused=" + reusedBundles.size() + ", changed=" + changedBundles.size() + ", installed="
+                + newSources.size());
+
+        return bundles;
     }
 
-    private enum BundleType {
-        MANDATORY_BUNDLE, SLF4J_BRIDGE, REMOTE_SHELL_BUNDLE, LOCAL_SHELL_BUNDLE
+    private List<Bundle> uninstallDisabledInitialBundles(Set<String> enabledLocations, BundleDigestIndex digestIndex) {
+        List<Bundle> uninstalledBundles = new ArrayList<>();
+
+        for (Bundle bundle : this.bundleContext.getBundles()) {
+            String location = bundle.getLocation();
+            if (!this.isInitialBundle(location) || enabledLocations.contains(location)) {
+                continue;
+            }
+
+            try {
+                bundle.uninstall();
+                uninstalledBundles.add(bundle);
+                digestIndex.remove(location);
+                this.logger.info("Uninstalled disabled bundle: " + location);
+            } catch (BundleException e) {
+                this.logger.error("Can't uninstall disabled bundle '" + location + "'.", e);
+            }
+        }
+
+        return uninstalledBundles;
     }
 }
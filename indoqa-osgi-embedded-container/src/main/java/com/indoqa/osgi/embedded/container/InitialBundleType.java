@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+/**
+ * The groups of bundles that are installed by the container itself. Each group is started at its own start level, see
+ * {@link ContainerConfiguration#setInitialBundleStartLevel(InitialBundleType, int)}.
+ */
+public enum InitialBundleType {
+
+    /** Felix Log and Felix Config Admin */
+    MANDATORY_BUNDLE(1),
+
+    /** Felix FileInstall (unless the bundle directory watcher is enabled) */
+    FILE_INSTALL_BUNDLE(1),
+
+    /** The bridge from OSGi logging to SLF4J */
+    SLF4J_BRIDGE(1),
+
+    /** Felix Gogo Shell (including Gogo Command and Gogo Runtime) */
+    REMOTE_SHELL_BUNDLE(3),
+
+    /** Felix Remote Shell */
+    LOCAL_SHELL_BUNDLE(3);
+
+    private final int defaultStartLevel;
+
+    InitialBundleType(int defaultStartLevel) {
+        this.defaultStartLevel = defaultStartLevel;
+    }
+
+    public int getDefaultStartLevel() {
+        return this.defaultStartLevel;
+    }
+}
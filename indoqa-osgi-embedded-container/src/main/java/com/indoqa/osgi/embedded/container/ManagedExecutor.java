@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+import java.util.concurrent.*;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.SynchronousBundleListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.indoqa.osgi.embedded.services.BundleResourceAccounting;
+import com.indoqa.osgi.embedded.services.ManagedExecutorService;
+
+/**
+ * Provides a {@link ManagedExecutorService} to all bundles. The executor is registered as service factory, so each bundle gets its
+ * own {@link BundleExecutorService}, while the threads are shared by all bundles. Tasks run on virtual threads if the runtime
+ * supports them and {@link ContainerConfiguration#setManagedExecutorVirtualThreads(boolean)} is set, otherwise on a bounded pool of
+ * platform threads. The CPU time and allocations of tasks are attributed to their bundles on platform threads only, because the JVM
+ * doesn't measure them for virtual threads.
+ * <p/>
+ * All tasks of a bundle are cancelled when the bundle stops. Releasing the service doesn't cancel anything: the framework releases
+ * it as soon as the use count of the bundle drops to 0, e.g. right after a bundle got the service, submitted a task and ungot it.
+ */
+/*default*/ final class ManagedExecutor implements ServiceFactory<ManagedExecutorService> {
+
+    private static final String WORKER_THREAD_NAME = "embedded-osgi-managed-executor";
+    private static final String SCHEDULER_THREAD_NAME = "embedded-osgi-managed-scheduler";
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ExecutorService workerExecutor;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final BundleResourceAccounting resourceAccounting;
+    private final int concurrencyLimit;
+    private final ConcurrentMap<Long, BundleExecutorService> bundleExecutors = new ConcurrentHashMap<>();
+    private final SynchronousBundleListener bundleListener = this::bundleChanged;
+
+    private BundleContext bundleContext;
+    private ServiceRegistration<?> serviceRegistration;
+
+    public ManagedExecutor(ContainerConfiguration containerConfiguration, BundleResourceAccounting resourceAccounting) {
+        this.concurrencyLimit = containerConfiguration.getManagedExecutorConcurrencyLimit();
+
+        ExecutorService virtualThreadExecutor = null;
+        if (containerConfiguration.isManagedExecutorVirtualThreads()) {
+            virtualThreadExecutor = createVirtualThreadExecutor();
+        }
+
+        if (virtualThreadExecutor != null) {
+            this.workerExecutor = virtualThreadExecutor;
+            // the thread counters of virtual threads aren't available
+            this.resourceAccounting = null;
+            this.logger.info(
+                "Managed executor uses virtual threads: concurrency-limit=" + this.concurrencyLimit + "; resource-accounting=false");
+        } else {
+            int threads = containerConfiguration.getManagedExecutorThreads();
+            this.workerExecutor = createPlatformThreadExecutor(threads);
+            this.resourceAccounting = resourceAccounting;
+            this.logger.info("Managed executor uses platform threads: threads=" + threads + "; concurrency-limit=" + this.concurrencyLimit);
+        }
+
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory(SCHEDULER_THREAD_NAME));
+        this.scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    private static ExecutorService createPlatformThreadExecutor(int threads) {
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
+            threads,
+            threads,
+            KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new NamedThreadFactory(WORKER_THREAD_NAME));
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return threadPoolExecutor;
+    }
+
+    /**
+     * @return An executor that starts a virtual thread per task or <code>null</code> if the runtime doesn't support virtual threads.
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Unregister the service and stop all threads. Tasks that are still running are interrupted.
+     */
+    public void close() {
+        if (this.serviceRegistration != null) {
+            try {
+                this.bundleContext.removeBundleListener(this.bundleListener);
+                this.serviceRegistration.unregister();
+            } catch (IllegalStateException e) {
+                // the framework has already unregistered the service
+            }
+            this.serviceRegistration = null;
+        }
+
+        this.scheduler.shutdownNow();
+        this.workerExecutor.shutdownNow();
+        this.bundleExecutors.clear();
+    }
+
+    /**
+     * @return The executor of the given bundle. A bundle gets the same executor until it stops or shuts down the executor itself.
+     */
+    @Override
+    public ManagedExecutorService getService(Bundle bundle, ServiceRegistration<ManagedExecutorService> registration) {
+        return this.bundleExecutors.compute(bundle.getBundleId(), (bundleId, bundleExecutor) -> {
+            if (bundleExecutor == null || bundleExecutor.isShutdown()) {
+                return new BundleExecutorService(bundle, this.workerExecutor, this.scheduler, this.resourceAccounting,
+                    this.concurrencyLimit);
+            }
+            return bundleExecutor;
+        });
+    }
+
+    public void register(BundleContext bundleContext) {
+        this.bundleContext = bundleContext;
+        bundleContext.addBundleListener(this.bundleListener);
+
+        String[] serviceTypes = {ManagedExecutorService.class.getName(), ScheduledExecutorService.class.getName(),
+            ExecutorService.class.getName()};
+        this.serviceRegistration = bundleContext.registerService(serviceTypes, this, null);
+    }
+
+    @Override
+    public void ungetService(Bundle bundle, ServiceRegistration<ManagedExecutorService> registration,
+            ManagedExecutorService service) {
+        // the tasks of the bundle are cancelled when it stops, see bundleChanged
+    }
+
+    private void bundleChanged(BundleEvent event) {
+        if (event.getType() != BundleEvent.STOPPING && event.getType() != BundleEvent.STOPPED) {
+            return;
+        }
+
+        Bundle bundle = event.getBundle();
+        BundleExecutorService bundleExecutor = this.bundleExecutors.remove(bundle.getBundleId());
+        if (bundleExecutor == null) {
+            return;
+        }
+
+        int taskCount = bundleExecutor.getTaskCount();
+        bundleExecutor.shutdownNow();
+
+        if (taskCount > 0) {
+            this.logger.info("Cancelled the tasks of a stopping bundle: bundle=" + bundle.getSymbolicName() + "; tasks=" + taskCount);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces package refresh requests: the bundles of all requests that arrive within the quiet period are collected and refreshed
+ * together by a single call of {@link FrameworkWiring#refreshBundles(Collection, org.osgi.framework.FrameworkListener...)}, so
+ * dependent bundles are restarted only once per burst of updates. Requests can be limited to the removal pending bundles, i.e. the
+ * bundles whose previous revisions are still in use: the other bundles of such a request are skipped because refreshing them would
+ * only restart them. Refreshes are performed one after the other by a single background thread.
+ */
+/*default*/ final class PackageRefreshCoalescer {
+
+    private static final String THREAD_NAME = "embedded-osgi-package-refresh";
+    private static final long REFRESH_TIMEOUT_SECONDS = 60;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final BundleContext bundleContext;
+    private final long quietPeriodMillis;
+    private final PackageRefreshMetrics metrics;
+    private final ScheduledExecutorService executorService;
+
+    private final Set<Bundle> pendingBundles = new LinkedHashSet<>();
+    private final Set<Bundle> pendingRemovalPendingBundles = new LinkedHashSet<>();
+    private int pendingRequests;
+    private ScheduledFuture<?> scheduledRefresh;
+
+    public PackageRefreshCoalescer(BundleContext bundleContext, long quietPeriodMillis, PackageRefreshMetrics metrics) {
+        this.bundleContext = bundleContext;
+        this.quietPeriodMillis = quietPeriodMillis;
+        this.metrics = metrics;
+        this.executorService = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(THREAD_NAME));
+    }
+
+    /**
+     * Discard all pending requests and stop the background thread. A refresh that is already running isn't interrupted.
+     */
+    public void close() {
+        synchronized (this) {
+            int discardedBundles = this.pendingBundles.size() + this.pendingRemovalPendingBundles.size();
+            if (discardedBundles > 0) {
+                this.logger.info("Discarding pending package refresh: bundles=" + discardedBundles);
+            }
+            this.pendingBundles.clear();
+            this.pendingRemovalPendingBundles.clear();
+        }
+
+        this.executorService.shutdownNow();
+    }
+
+    public boolean isClosed() {
+        return this.executorService.isShutdown();
+    }
+
+    /**
+     * Request a refresh of the given bundles. The refresh is deferred until no further request has arrived for the quiet period.
+     *
+     * @param removalPendingOnly If <code>true</code>, only those of the given bundles are refreshed that are removal pending when
+     *            the refresh is performed.
+     */
+    public synchronized void request(Collection<Bundle> bundles, boolean removalPendingOnly) {
+        if (bundles.isEmpty() || this.executorService.isShutdown()) {
+            return;
+        }
+
+        this.metrics.recordRequest();
+        if (removalPendingOnly) {
+            this.pendingRemovalPendingBundles.addAll(bundles);
+        } else {
+            this.pendingBundles.addAll(bundles);
+        }
+        this.pendingRequests++;
+
+        if (this.scheduledRefresh != null) {
+            this.scheduledRefresh.cancel(false);
+        }
+        this.scheduledRefresh = this.executorService.schedule(this::refresh, this.quietPeriodMillis, MILLISECONDS);
+    }
+
+    private FrameworkWiring getFrameworkWiring() {
+        return this.bundleContext.getBundle(Constants.SYSTEM_BUNDLE_LOCATION).adapt(FrameworkWiring.class);
+    }
+
+    private void refresh() {
+        try {
+            this.refreshPendingBundles();
+        } catch (RuntimeException e) {
+            this.logger.error("Error while refreshing packages.", e);
+        }
+    }
+
+    private void refreshPendingBundles() {
+        Set<Bundle> bundles;
+        List<Bundle> removalPendingBundles;
+        int requests;
+        synchronized (this) {
+            bundles = new LinkedHashSet<>(this.pendingBundles);
+            removalPendingBundles = new ArrayList<>(this.pendingRemovalPendingBundles);
+            requests = this.pendingRequests;
+            this.pendingBundles.clear();
+            this.pendingRemovalPendingBundles.clear();
+            this.pendingRequests = 0;
+            this.scheduledRefresh = null;
+        }
+
+        FrameworkWiring frameworkWiring = this.getFrameworkWiring();
+        if (!removalPendingBundles.isEmpty()) {
+            removalPendingBundles.retainAll(frameworkWiring.getRemovalPendingBundles());
+            bundles.addAll(removalPendingBundles);
+        }
+        if (bundles.isEmpty()) {
+            return;
+        }
+
+        Collection<Bundle> affectedBundles = frameworkWiring.getDependencyClosure(bundles);
+        this.metrics.recordRefresh(requests, affectedBundles.size());
+
+        long start = System.nanoTime();
+        CountDownLatch refreshed = new CountDownLatch(1);
+        frameworkWiring.refreshBundles(bundles, event -> refreshed.countDown());
+        try {
+            if (!refreshed.await(REFRESH_TIMEOUT_SECONDS, SECONDS)) {
+                this.logger.warn("Refreshing " + bundles.size() + " bundle(s) didn't finish within " + REFRESH_TIMEOUT_SECONDS + "s.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        this.logger.info(
+            "Refreshed packages: requests=" + requests + "; bundles=" + bundles.size() + "; affected-bundles=" + affectedBundles.size()
+                + "; duration-ms=" + NANOSECONDS.toMillis(System.nanoTime() - start) + "; avoided-refreshes="
+                + this.metrics.getAvoidedRefreshCount());
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the package refreshes of an {@link EmbeddedOSGiContainer}. Refresh requests that arrive within the quiet period of
+ * {@link ContainerConfiguration#setPackageRefreshQuietPeriod(long)} are coalesced into a single refresh, every request that was
+ * merged into the refresh of another request is reported as an avoided refresh. Requests that didn't lead to a refresh at all, e.g.
+ * because none of their bundles was removal pending anymore, aren't counted as avoided.
+ */
+public final class PackageRefreshMetrics {
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong avoidedRefreshCount = new AtomicLong();
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong refreshedBundleCount = new AtomicLong();
+
+    /**
+     * @return The number of refresh requests that were merged into the refresh of another request.
+     */
+    public long getAvoidedRefreshCount() {
+        return this.avoidedRefreshCount.get();
+    }
+
+    /**
+     * @return The number of calls of {@link org.osgi.framework.wiring.FrameworkWiring#refreshBundles(java.util.Collection,
+     *         org.osgi.framework.FrameworkListener...)}.
+     */
+    public long getRefreshCount() {
+        return this.refreshCount.get();
+    }
+
+    /**
+     * @return The number of bundles that were refreshed, including their dependents.
+     */
+    public long getRefreshedBundleCount() {
+        return this.refreshedBundleCount.get();
+    }
+
+    public long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "requests=" + this.getRequestCount() + "; refreshes=" + this.getRefreshCount() + "; avoided-refreshes="
+            + this.getAvoidedRefreshCount() + "; refreshed-bundles=" + this.getRefreshedBundleCount();
+    }
+
+    void recordRefresh(int requests, int affectedBundles) {
+        this.refreshCount.incrementAndGet();
+        this.avoidedRefreshCount.addAndGet(Math.max(requests - 1, 0));
+        this.refreshedBundleCount.addAndGet(affectedBundles);
+    }
+
+    void recordRequest() {
+        this.requestCount.incrementAndGet();
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+import org.osgi.framework.BundleContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.indoqa.osgi.embedded.container.StartupReport.Category;
+import com.indoqa.osgi.embedded.services.DependentEmbeddedOSGiServiceProvider;
+import com.indoqa.osgi.embedded.services.EmbeddedOSGiServiceProvider;
+
+/**
+ * Initializes and destroys the {@link EmbeddedOSGiServiceProvider}s of a container. By default all providers are visited one after
+ * the other on the calling thread. If a parallelism greater than one or a timeout is configured, the providers run on a bounded
+ * executor instead:
+ * <ul>
+ * <li>A provider is initialized as soon as all providers it depends on (see {@link DependentEmbeddedOSGiServiceProvider}) have
+ * been initialized. Destruction happens in reverse order.</li>
+ * <li>A provider that doesn't finish within the timeout is reported as failed, the others continue independently. The timeout
+ * starts as soon as all providers it depends on have finished, so it includes the time waiting for a free thread: a provider
+ * that is still queued when its timeout elapses is not run at all.</li>
+ * </ul>
+ */
+/*default*/ final class ServiceProviderLifecycle {
+
+    private static final String THREAD_NAME_PREFIX = "embedded-osgi-service-provider";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final List<EmbeddedOSGiServiceProvider> providers;
+    private final Map<EmbeddedOSGiServiceProvider, Set<EmbeddedOSGiServiceProvider>> dependencies;
+    private final int parallelism;
+    private final long timeoutMillis;
+
+    public ServiceProviderLifecycle(Collection<EmbeddedOSGiServiceProvider> providers, int parallelism, long timeoutMillis) {
+        this.dependencies = resolveDependencies(providers);
+        this.providers = sortByDependencies(providers, this.dependencies);
+        this.parallelism = Math.max(1, parallelism);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    private static String getDescription(EmbeddedOSGiServiceProvider provider) {
+        return provider.getClass().getName() + "; service-provider-hashCode=" + System.identityHashCode(provider);
+    }
+
+    private static Map<EmbeddedOSGiServiceProvider, Set<EmbeddedOSGiServiceProvider>> resolveDependencies(
+            Collection<EmbeddedOSGiServiceProvider> providers) {
+        Map<EmbeddedOSGiServiceProvider, Set<EmbeddedOSGiServiceProvider>> result = new IdentityHashMap<>();
+
+        for (EmbeddedOSGiServiceProvider provider : providers) {
+            Set<EmbeddedOSGiServiceProvider> providerDependencies = Collections.newSetFromMap(new IdentityHashMap<>());
+
+            if (provider instanceof DependentEmbeddedOSGiServiceProvider) {
+                for (Class<? extends EmbeddedOSGiServiceProvider> type : ((DependentEmbeddedOSGiServiceProvider) provider)
+                    .getDependencies()) {
+                    for (EmbeddedOSGiServiceProvider candidate : providers) {
+                        if (candidate != provider && type.isInstance(candidate)) {
+                            providerDependencies.add(candidate);
+                        }
+                    }
+                }
+            }
+
+            result.put(provider, providerDependencies);
+        }
+
+        return result;
+    }
+
+    private static long run(EmbeddedOSGiServiceProvider provider, Consumer<EmbeddedOSGiServiceProvider> action) {
+        long start = System.nanoTime();
+        action.accept(provider);
+        return NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static List<EmbeddedOSGiServiceProvider> sortByDependencies(Collection<EmbeddedOSGiServiceProvider> providers,
+            Map<EmbeddedOSGiServiceProvider, Set<EmbeddedOSGiServiceProvider>> dependencies) {
+        List<EmbeddedOSGiServiceProvider> result = new ArrayList<>(providers.size());
+        Set<EmbeddedOSGiServiceProvider> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<EmbeddedOSGiServiceProvider> visiting = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (EmbeddedOSGiServiceProvider provider : providers) {
+            visit(provider, dependencies, visited, visiting, result);
+        }
+
+        return result;
+    }
+
+    private static void visit(EmbeddedOSGiServiceProvider provider,
+            Map<EmbeddedOSGiServiceProvider, Set<EmbeddedOSGiServiceProvider>> dependencies, Set<EmbeddedOSGiServiceProvider> visited,
+            Set<EmbeddedOSGiServiceProvider> visiting, List<EmbeddedOSGiServiceProvider> result) {
+        if (visited.contains(provider)) {
+            return;
+        }
+
+        if (!visiting.add(provider)) {
+            throw new EmbeddedOSGiContainerInitializationException(
+                "The dependencies of the service provider " + getDescription(provider) + " contain a cycle.");
+        }
+
+        for (EmbeddedOSGiServiceProvider dependency : dependencies.get(provider)) {
+            visit(dependency, dependencies, visited, visiting, result);
+        }
+
+        visiting.remove(provider);
+        visited.add(provider);
+        result.add(provider);
+    }
+
+    public void destroy() {
+        this.logger.info("Going to destroy " + this.providers.size() + " service provider(s).");
+
+        List<EmbeddedOSGiServiceProvider> reversedProviders = new ArrayList<>(this.providers);
+        Collections.reverse(reversedProviders);
+
+        Map<EmbeddedOSGiServiceProvider, Set<EmbeddedOSGiServiceProvider>> dependents = new IdentityHashMap<>();
+        for (EmbeddedOSGiServiceProvider provider : this.providers) {
+            dependents.put(provider, Collections.newSetFromMap(new IdentityHashMap<>()));
+        }
+        for (EmbeddedOSGiServiceProvider provider : this.providers) {
+            for (EmbeddedOSGiServiceProvider dependency : this.dependencies.get(provider)) {
+                dependents.get(dependency).add(provider);
+            }
+        }
+
+        Map<EmbeddedOSGiServiceProvider, Throwable> failures = this.run(
+            reversedProviders,
+            dependents,
+            EmbeddedOSGiServiceProvider::destroy,
+            "Destroyed",
+            false);
+
+        for (Map.Entry<EmbeddedOSGiServiceProvider, Throwable> failure : failures.entrySet()) {
+            this.logger.error("Error while destroying service provider: " + getDescription(failure.getKey()), failure.getValue());
+        }
+    }
+
+    public void initialize(BundleContext bundleContext, StartupRecorder startupRecorder) {
+        this.logger.info("Going to initialize " + this.providers.size() + " service provider(s).");
+
+        Map<EmbeddedOSGiServiceProvider, Throwable> failures = this.run(
+            this.providers,
+            this.dependencies,
+            provider -> {
+                long start = System.nanoTime();
+                provider.initialize(bundleContext);
+                startupRecorder.record(Category.SERVICE_PROVIDER, provider.getClass().getName(), start);
+            },
+            "Initialized",
+            true);
+
+        if (failures.isEmpty()) {
+            return;
+        }
+
+        Map.Entry<EmbeddedOSGiServiceProvider, Throwable> firstFailure = failures.entrySet().iterator().next();
+        for (Map.Entry<EmbeddedOSGiServiceProvider, Throwable> failure : failures.entrySet()) {
+            this.logger.error("Error while initializing service provider: " + getDescription(failure.getKey()), failure.getValue());
+        }
+        throw new EmbeddedOSGiContainerInitializationException(
+            "Error while initializing " + failures.size() + " service provider(s), first one: " + getDescription(firstFailure.getKey()),
+            firstFailure.getValue());
+    }
+
+    private boolean isSequential() {
+        return this.parallelism == 1 && this.timeoutMillis <= 0;
+    }
+
+    private void logCompletion(EmbeddedOSGiServiceProvider provider, String actionName, long durationMillis) {
+        this.logger.info(actionName + " service provider: " + getDescription(provider) + "; duration-ms=" + durationMillis);
+    }
+
+    /**
+     * @param abortOnFailure If <code>true</code>, providers whose predecessors failed are skipped.
+     */
+    private Map<EmbeddedOSGiServiceProvider, Throwable> run(List<EmbeddedOSGiServiceProvider> orderedProviders,
+            Map<EmbeddedOSGiServiceProvider, Set<EmbeddedOSGiServiceProvider>> predecessors, Consumer<EmbeddedOSGiServiceProvider> action,
+            String actionName, boolean abortOnFailure) {
+        if (this.isSequential()) {
+            return this.runSequentially(orderedProviders, action, actionName, abortOnFailure);
+        }
+
+        return this.runInParallel(orderedProviders, predecessors, action, actionName, abortOnFailure);
+    }
+
+    private Map<EmbeddedOSGiServiceProvider, Throwable> runInParallel(List<EmbeddedOSGiServiceProvider> orderedProviders,
+            Map<EmbeddedOSGiServiceProvider, Set<EmbeddedOSGiServiceProvider>> predecessors, Consumer<EmbeddedOSGiServiceProvider> action,
+            String actionName, boolean abortOnFailure) {
+        ExecutorService executorService = Executors.newFixedThreadPool(this.parallelism, new NamedThreadFactory(THREAD_NAME_PREFIX));
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(
+            new NamedThreadFactory(THREAD_NAME_PREFIX + "-watchdog"));
+
+        try {
+            Map<EmbeddedOSGiServiceProvider, CompletableFuture<Void>> results = new IdentityHashMap<>();
+
+            for (EmbeddedOSGiServiceProvider provider : orderedProviders) {
+                CompletableFuture<Void> result = new CompletableFuture<>();
+                results.put(provider, result);
+
+                CompletableFuture<?>[] predecessorResults = predecessors
+                    .get(provider)
+                    .stream()
+                    .map(results::get)
+                    .toArray(CompletableFuture<?>[]::new);
+
+                CompletableFuture.allOf(predecessorResults).whenComplete((ignored, predecessorError) -> {
+                    if (predecessorError != null && abortOnFailure) {
+                        result.completeExceptionally(
+                            new EmbeddedOSGiContainerInitializationException(
+                                "Skipped because a service provider it depends on failed.",
+                                predecessorError.getCause()));
+                        return;
+                    }
+
+                    this.startTimeout(result, watchdog);
+                    executorService.execute(() -> this.runProvider(provider, action, actionName, result));
+                });
+            }
+
+            Map<EmbeddedOSGiServiceProvider, Throwable> failures = new LinkedHashMap<>();
+            for (EmbeddedOSGiServiceProvider provider : orderedProviders) {
+                try {
+                    results.get(provider).join();
+                } catch (CompletionException e) {
+                    failures.put(provider, e.getCause());
+                }
+            }
+            return failures;
+        } finally {
+            watchdog.shutdownNow();
+            executorService.shutdownNow();
+        }
+    }
+
+    private Map<EmbeddedOSGiServiceProvider, Throwable> runSequentially(List<EmbeddedOSGiServiceProvider> orderedProviders,
+            Consumer<EmbeddedOSGiServiceProvider> action, String actionName, boolean abortOnFailure) {
+        Map<EmbeddedOSGiServiceProvider, Throwable> failures = new LinkedHashMap<>();
+
+        for (EmbeddedOSGiServiceProvider provider : orderedProviders) {
+            try {
+                long durationMillis = run(provider, action);
+                this.logCompletion(provider, actionName, durationMillis);
+            } catch (RuntimeException e) {
+                failures.put(provider, e);
+
+                if (abortOnFailure) {
+                    break;
+                }
+            }
+        }
+
+        return failures;
+    }
+
+    private void runProvider(EmbeddedOSGiServiceProvider provider, Consumer<EmbeddedOSGiServiceProvider> action, String actionName,
+            CompletableFuture<Void> result) {
+        if (result.isDone()) {
+            this.logger.warn("Skipped service provider whose timeout elapsed before it could run: " + getDescription(provider));
+            return;
+        }
+
+        try {
+            long durationMillis = run(provider, action);
+
+            if (result.complete(null)) {
+                this.logCompletion(provider, actionName, durationMillis);
+            } else {
+                this.logger.warn(
+                    "Service provider finished after its timeout: " + getDescription(provider) + "; duration-ms=" + durationMillis);
+            }
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void startTimeout(CompletableFuture<Void> result, ScheduledExecutorService watchdog) {
+        if (this.timeoutMillis <= 0) {
+            return;
+        }
+
+        ScheduledFuture<?> timeout = watchdog.schedule(
+            () -> result.completeExceptionally(
+                new TimeoutException("The service provider didn't finish within " + this.timeoutMillis + "ms.")),
+            this.timeoutMillis,
+            MILLISECONDS);
+        result.whenComplete((ignored, error) -> timeout.cancel(false));
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An immutable, content-addressed store of bundle jars that is shared by all containers of a {@link ContainerPool}. Each jar is
+ * written once to <code>&lt;folder&gt;/&lt;SHA-256 digest&gt;.jar</code> and made read-only, so that the containers can install
+ * it by reference instead of copying it into their framework storage. The digest of every bundle is computed once per pool.
+ */
+/*default*/ final class SharedBundleCache {
+
+    private static final String FILE_SUFFIX = ".jar";
+    private static final String REFERENCE_PROTOCOL = "reference:";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final Path directory;
+    private final ConcurrentMap<String, CachedBundle> bundles = new ConcurrentHashMap<>();
+
+    public SharedBundleCache(Path directory) {
+        this.directory = directory.toAbsolutePath().normalize();
+    }
+
+    private static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * @return <code>true</code> if the given bundle location refers to a jar in the given folder of this cache.
+     */
+    public boolean contains(String folder, String location) {
+        return location.startsWith(this.getReferencePrefix(this.directory.resolve(folder)));
+    }
+
+    /**
+     * Cache the jar file at the given path. The file is read again once its size or modification time has changed.
+     */
+    public CachedBundle get(Path path) {
+        Path normalizedPath = path.toAbsolutePath().normalize();
+
+        try {
+            String key = normalizedPath + ";" + Files.getLastModifiedTime(normalizedPath).toMillis() + ";"
+                + Files.size(normalizedPath);
+            return this.bundles.computeIfAbsent(
+                key,
+                name -> this.store(this.directory, normalizedPath.toString(), () -> Files.newInputStream(normalizedPath)));
+        } catch (IOException e) {
+            throw new EmbeddedOSGiContainerInitializationException("Can't cache the bundle '" + normalizedPath + "'.", e);
+        }
+    }
+
+    /**
+     * Cache a bundle that is identified by a relative resource name, e.g. <code>initial-bundles/bundle.jar</code>. The content
+     * is stored in the folder of the resource name and only read the first time the resource name is requested.
+     */
+    public CachedBundle get(String resourceName, BundleSource.InputStreamSupplier inputStreamSupplier) {
+        return this.bundles.computeIfAbsent(resourceName, name -> {
+            Path folder = this.directory.resolve(name).getParent();
+            return this.store(folder, name, inputStreamSupplier);
+        });
+    }
+
+    /**
+     * @return The digest of the cached bundle the given location refers to or <code>null</code> if the location doesn't refer to
+     *         this cache.
+     */
+    public String getDigest(String location) {
+        if (!location.startsWith(this.getReferencePrefix(this.directory)) || !location.endsWith(FILE_SUFFIX)) {
+            return null;
+        }
+
+        String fileName = location.substring(location.lastIndexOf('/') + 1);
+        return fileName.substring(0, fileName.length() - FILE_SUFFIX.length());
+    }
+
+    public Path getDirectory() {
+        return this.directory;
+    }
+
+    public int size() {
+        return this.bundles.size();
+    }
+
+    private String getReferencePrefix(Path folder) {
+        String prefix = REFERENCE_PROTOCOL + folder.toFile().toURI();
+        if (prefix.endsWith("/")) {
+            return prefix;
+        }
+        return prefix + "/";
+    }
+
+    private CachedBundle store(Path folder, String name, BundleSource.InputStreamSupplier inputStreamSupplier) {
+        try {
+            byte[] content;
+            try (InputStream inputStream = inputStreamSupplier.open()) {
+                if (inputStream == null) {
+                    throw new IOException("The content of the bundle '" + name + "' is not available.");
+                }
+                content = readFully(inputStream);
+            }
+
+            String digest = BundleDigestIndex.digest(content);
+            Path path = folder.resolve(digest + FILE_SUFFIX);
+            if (!Files.exists(path)) {
+                Files.createDirectories(folder);
+                Path tempFile = Files.createTempFile(folder, digest, ".tmp");
+                Files.write(tempFile, content);
+                Files.move(tempFile, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                if (!path.toFile().setReadOnly()) {
+                    this.logger.warn("Can't make the shared bundle read-only: path=" + path);
+                }
+            }
+
+            this.logger.info("Cached shared bundle: name=" + name + "; digest=" + digest);
+            return new CachedBundle(path, digest);
+        } catch (IOException e) {
+            throw new EmbeddedOSGiContainerInitializationException("Can't cache the bundle '" + name + "'.", e);
+        }
+    }
+
+    static final class CachedBundle {
+
+        private final Path path;
+        private final String digest;
+
+        CachedBundle(Path path, String digest) {
+            this.path = path;
+            this.digest = digest;
+        }
+
+        public String getDigest() {
+            return this.digest;
+        }
+
+        public Path getPath() {
+            return this.path;
+        }
+
+        public BundleSource toBundleSource(int startLevel) {
+            return BundleSource.reference(this.path).withStartLevel(startLevel);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import com.indoqa.osgi.embedded.container.StartupReport.Category;
+import com.indoqa.osgi.embedded.container.StartupReport.Entry;
+
+/**
+ * Collects the timings of a container startup from all threads that take part in it. Once the startup is complete, all further
+ * timings are ignored so that e.g. bundles deployed later by the bundle directory watcher don't show up in the report.
+ */
+/*default*/ final class StartupRecorder {
+
+    private final long startNanos = System.nanoTime();
+    private final List<Entry> entries = new ArrayList<>();
+
+    private long endNanos;
+    private boolean complete;
+
+    public synchronized void complete() {
+        if (!this.complete) {
+            this.endNanos = System.nanoTime();
+            this.complete = true;
+        }
+    }
+
+    public synchronized StartupReport createReport() {
+        List<Entry> sortedEntries = new ArrayList<>(this.entries);
+        sortedEntries.sort(Comparator.comparingLong(Entry::getStartOffsetNanos));
+
+        long end = this.complete ? this.endNanos : System.nanoTime();
+        return new StartupReport(sortedEntries, end - this.startNanos, this.complete);
+    }
+
+    /**
+     * Record an entry that started at the given {@link System#nanoTime()} and ends now.
+     */
+    public void record(Category category, String name, long entryStartNanos) {
+        long entryEndNanos = System.nanoTime();
+
+        synchronized (this) {
+            if (!this.complete) {
+                this.entries.add(new Entry(category, name, entryStartNanos - this.startNanos, entryEndNanos - entryStartNanos));
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable snapshot of the startup timings of an {@link EmbeddedOSGiContainer}, see
+ * {@link EmbeddedOSGiContainer#getStartupReport()}. It contains an {@link Entry} for each startup phase, each bundle that was
+ * installed or started and each service provider that was initialized. All durations are measured in nanoseconds.
+ */
+public final class StartupReport {
+
+    private final List<Entry> entries;
+    private final long totalDurationNanos;
+    private final boolean complete;
+
+    /*default*/ StartupReport(List<Entry> entries, long totalDurationNanos, boolean complete) {
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+        this.totalDurationNanos = totalDurationNanos;
+        this.complete = complete;
+    }
+
+    /**
+     * @return All entries ordered by their start time.
+     */
+    public List<Entry> getEntries() {
+        return this.entries;
+    }
+
+    public List<Entry> getEntries(Category category) {
+        List<Entry> result = new ArrayList<>();
+
+        for (Entry entry : this.entries) {
+            if (entry.getCategory() == category) {
+                result.add(entry);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return The time since the container started its initialization, up to the end of the initialization if it is complete.
+     */
+    public long getTotalDurationNanos() {
+        return this.totalDurationNanos;
+    }
+
+    /**
+     * @return <code>true</code> if the initialization of the container has finished, either successfully or with a failure.
+     */
+    public boolean isComplete() {
+        return this.complete;
+    }
+
+    /**
+     * @return All timings as a single line of <code>key=value</code> pairs, e.g.
+     *         <code>complete=true; total-ns=812000000; phase:framework-start-ns=401000000; ...</code>
+     */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        result.append("complete=").append(this.complete);
+        result.append("; total-ns=").append(this.totalDurationNanos);
+
+        for (Entry entry : this.entries) {
+            result.append("; ").append(entry);
+        }
+
+        return result.toString();
+    }
+
+    public enum Category {
+
+        /** A phase of the container startup, e.g. starting the OSGi framework or initializing all service providers. */
+        PHASE("phase"),
+
+        /** The installation of a single bundle. */
+        BUNDLE_INSTALL("bundle-install"),
+
+        /** The resolution of a batch of bundles, which happens with a single call to the framework. */
+        BUNDLE_RESOLVE("bundle-resolve"),
+
+        /** The start of a single bundle. */
+        BUNDLE_START("bundle-start"),
+
+        /** The initialization of a single service provider. */
+        SERVICE_PROVIDER("service-provider");
+
+        private final String key;
+
+        Category(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return this.key;
+        }
+    }
+
+    public static final class Entry {
+
+        private final Category category;
+        private final String name;
+        private final long startOffsetNanos;
+        private final long durationNanos;
+
+        /*default*/ Entry(Category category, String name, long startOffsetNanos, long durationNanos) {
+            this.category = category;
+            this.name = name;
+            this.startOffsetNanos = startOffsetNanos;
+            this.durationNanos = durationNanos;
+        }
+
+        public Category getCategory() {
+            return this.category;
+        }
+
+        public long getDurationNanos() {
+            return this.durationNanos;
+        }
+
+        /**
+         * @return The name of the phase, the location of the bundle or the class name of the service provider.
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * @return The time between the start of the container initialization and the start of this entry.
+         */
+        public long getStartOffsetNanos() {
+            return this.startOffsetNanos;
+        }
+
+        @Override
+        public String toString() {
+            return this.category.getKey() + ":" + this.name + "-ns=" + this.durationNanos;
+        }
+    }
+}
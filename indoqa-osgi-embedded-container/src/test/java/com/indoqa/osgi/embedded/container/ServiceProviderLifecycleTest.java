@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+
+import com.indoqa.osgi.embedded.services.DependentEmbeddedOSGiServiceProvider;
+import com.indoqa.osgi.embedded.services.EmbeddedOSGiServiceProvider;
+
+public class ServiceProviderLifecycleTest {
+
+    private static final long TIMEOUT = 200;
+    private static final long MAXIMUM_DURATION = 5_000;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    public void dependencyOrder() {
+        RecordingProvider first = new RecordingProvider("first");
+        RecordingProvider second = new DependentProvider("second", RecordingProvider.class);
+
+        ServiceProviderLifecycle lifecycle = new ServiceProviderLifecycle(Arrays.asList(second, first), 4, 0);
+        lifecycle.initialize(null, new StartupRecorder());
+        lifecycle.destroy();
+
+        assertEquals(Arrays.asList("initialize first", "initialize second", "destroy second", "destroy first"), this.events);
+    }
+
+    @Test
+    public void hungProviderDuringDestroy() {
+        HangingProvider hangingProvider = new HangingProvider("hanging", false, true);
+        RecordingProvider queuedProvider = new RecordingProvider("queued");
+
+        ServiceProviderLifecycle lifecycle = new ServiceProviderLifecycle(Arrays.asList(queuedProvider, hangingProvider), 1, TIMEOUT);
+        long start = System.currentTimeMillis();
+        lifecycle.destroy();
+
+        assertTrue(System.currentTimeMillis() - start < MAXIMUM_DURATION);
+        assertFalse(this.events.contains("destroy queued"));
+    }
+
+    @Test
+    public void hungProviderDuringInitialize() {
+        HangingProvider hangingProvider = new HangingProvider("hanging", true, false);
+        RecordingProvider queuedProvider = new RecordingProvider("queued");
+
+        ServiceProviderLifecycle lifecycle = new ServiceProviderLifecycle(Arrays.asList(hangingProvider, queuedProvider), 1, TIMEOUT);
+        long start = System.currentTimeMillis();
+        try {
+            lifecycle.initialize(null, new StartupRecorder());
+            fail("A service provider that doesn't finish within the timeout has to fail the initialization.");
+        } catch (EmbeddedOSGiContainerInitializationException e) {
+            assertTrue(e.getMessage().contains("2 service provider(s)"));
+        }
+
+        assertTrue(System.currentTimeMillis() - start < MAXIMUM_DURATION);
+        assertFalse(this.events.contains("initialize queued"));
+    }
+
+    @After
+    public void releaseHangingProviders() {
+        this.release.countDown();
+    }
+
+    @Test
+    public void slowProviderDoesNotDelayOthers() {
+        HangingProvider hangingProvider = new HangingProvider("hanging", true, false);
+        RecordingProvider otherProvider = new RecordingProvider("other");
+
+        ServiceProviderLifecycle lifecycle = new ServiceProviderLifecycle(Arrays.asList(hangingProvider, otherProvider), 2, TIMEOUT);
+        try {
+            lifecycle.initialize(null, new StartupRecorder());
+            fail("A service provider that doesn't finish within the timeout has to fail the initialization.");
+        } catch (EmbeddedOSGiContainerInitializationException e) {
+            assertTrue(e.getMessage().contains("1 service provider(s)"));
+        }
+
+        assertTrue(this.events.contains("initialize other"));
+    }
+
+    private class DependentProvider extends RecordingProvider implements DependentEmbeddedOSGiServiceProvider {
+
+        private final Class<? extends EmbeddedOSGiServiceProvider> dependency;
+
+        public DependentProvider(String name, Class<? extends EmbeddedOSGiServiceProvider> dependency) {
+            super(name);
+            this.dependency = dependency;
+        }
+
+        @Override
+        public Collection<Class<? extends EmbeddedOSGiServiceProvider>> getDependencies() {
+            return Collections.singleton(this.dependency);
+        }
+    }
+
+    private class HangingProvider extends RecordingProvider {
+
+        private final boolean hangOnInitialize;
+        private final boolean hangOnDestroy;
+
+        public HangingProvider(String name, boolean hangOnInitialize, boolean hangOnDestroy) {
+            super(name);
+            this.hangOnInitialize = hangOnInitialize;
+            this.hangOnDestroy = hangOnDestroy;
+        }
+
+        @Override
+        public void destroy() {
+            if (this.hangOnDestroy) {
+                this.hang();
+            }
+            super.destroy();
+        }
+
+        @Override
+        public void initialize(BundleContext bundleContext) {
+            if (this.hangOnInitialize) {
+                this.hang();
+            }
+            super.initialize(bundleContext);
+        }
+
+        private void hang() {
+            try {
+                ServiceProviderLifecycleTest.this.release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class RecordingProvider implements EmbeddedOSGiServiceProvider {
+
+        private final String name;
+
+        public RecordingProvider(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void destroy() {
+            ServiceProviderLifecycleTest.this.events.add("destroy " + this.name);
+        }
+
+        @Override
+        public void initialize(BundleContext bundleContext) {
+            ServiceProviderLifecycleTest.this.events.add("initialize " + this.name);
+        }
+    }
+}
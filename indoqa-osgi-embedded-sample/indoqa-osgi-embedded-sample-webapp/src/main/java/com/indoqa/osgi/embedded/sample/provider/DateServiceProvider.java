@@ -16,31 +16,83 @@
  */
 package com.indoqa.osgi.embedded.sample.provider;
 
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import javax.inject.Named;
 
 import org.osgi.framework.BundleContext;
-import org.osgi.util.tracker.ServiceTracker;
 
 import com.indoqa.osgi.embedded.sample.interfaces.DateService;
 import com.indoqa.osgi.embedded.services.EmbeddedOSGiServiceProvider;
+import com.indoqa.osgi.embedded.services.ScatterGatherResult;
+import com.indoqa.osgi.embedded.services.ServiceInvocationMetrics;
+import com.indoqa.osgi.embedded.services.ServiceScatterGather;
+import com.indoqa.osgi.embedded.services.TrackedServices;
 
 @Named
 public class DateServiceProvider implements EmbeddedOSGiServiceProvider {
 
-    private ServiceTracker<DateService, DateService> dateServiceTracker;
+    private static final int DATE_SERVICE_THREADS = 4;
+
+    private final ServiceInvocationMetrics invocationMetrics = new ServiceInvocationMetrics();
+    private TrackedServices<DateService> dateServices;
+    private DateService dateService;
+    private ExecutorService dateServiceExecutor;
+    private ServiceScatterGather<DateService> dateServiceScatterGather;
 
     @Override
     public void destroy() {
-        this.dateServiceTracker.close();
+        this.dateServices.close();
+        this.dateServiceExecutor.shutdownNow();
+    }
+
+    /**
+     * @return A proxy of the date service with the highest ranking, see {@link TrackedServices#createProxy()}.
+     */
+    public DateService getDateService() {
+        return this.dateService;
+    }
+
+    /**
+     * Call all date services concurrently and return the dates of those that answered within the timeout, sorted by service
+     * ranking.
+     *
+     * @param timeout The maximum time to wait in milliseconds.
+     */
+    public ScatterGatherResult<DateService, String> getDates(long timeout) throws InterruptedException {
+        return this.dateServiceScatterGather.invoke(DateService::getDate, timeout);
+    }
+
+    /**
+     * @return An immutable list of all date services sorted by service ranking, see {@link TrackedServices#getServices()}. The list
+     *         is a snapshot that isn't copied on each call.
+     */
+    public List<DateService> getDateServiceList() {
+        return this.dateServices.getServices();
     }
 
+    /**
+     * @deprecated Use {@link #getDateServiceList()}, which doesn't copy the date services into a new array on each call.
+     */
+    @Deprecated
     public DateService[] getDateServices() {
-        return this.dateServiceTracker.getServices(new DateService[0]);
+        return this.getDateServiceList().toArray(new DateService[0]);
+    }
+
+    public ServiceInvocationMetrics getInvocationMetrics() {
+        return this.invocationMetrics;
     }
 
     @Override
     public void initialize(BundleContext bundleContext) {
-        this.dateServiceTracker = new ServiceTracker<DateService, DateService>(bundleContext, DateService.class.getName(), null);
-        this.dateServiceTracker.open();
+        this.dateServices = new TrackedServices<>(bundleContext, DateService.class)
+            .setInvocationMetrics(this.invocationMetrics)
+            .setHotSwap(true);
+        this.dateServices.open();
+        this.dateService = this.dateServices.createProxy();
+        this.dateServiceExecutor = Executors.newFixedThreadPool(DATE_SERVICE_THREADS);
+        this.dateServiceScatterGather = new ServiceScatterGather<>(this.dateServices, this.dateServiceExecutor);
     }
 }
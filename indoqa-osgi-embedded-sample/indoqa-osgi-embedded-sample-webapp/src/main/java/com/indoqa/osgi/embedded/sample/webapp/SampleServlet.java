@@ -18,6 +18,8 @@ package com.indoqa.osgi.embedded.sample.webapp;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -30,11 +32,16 @@ import org.springframework.context.ApplicationContext;
 
 import com.indoqa.osgi.embedded.sample.interfaces.DateService;
 import com.indoqa.osgi.embedded.sample.provider.DateServiceProvider;
+import com.indoqa.osgi.embedded.services.LatencyHistogram;
+import com.indoqa.osgi.embedded.services.ScatterGatherResult;
+import com.indoqa.osgi.embedded.services.ServiceInvocationKey;
+import com.indoqa.osgi.embedded.services.ServiceUnavailableException;
 
 @WebServlet(urlPatterns = "/")
 public class SampleServlet extends HttpServlet {
 
     private static final long serialVersionUID = 1L;
+    private static final long DATE_SERVICE_TIMEOUT = 500;
 
     private ApplicationContext applicationContext;
 
@@ -52,11 +59,29 @@ public class SampleServlet extends HttpServlet {
         if (dateServiceProvider == null) {
             writer.write("\nCouldn't find bean of type " + DateService.class.getName());
         } else {
-            DateService[] dateServices = dateServiceProvider.getDateServices();
-            writer.write("\nFound " + dateServices.length + " date service instance(s).");
+            List<DateService> dateServices = dateServiceProvider.getDateServiceList();
+            writer.write("\nFound " + dateServices.size() + " date service instance(s).");
 
-            for (DateService eachDateService : dateServices) {
-                writer.write("\n* DateService output: " + eachDateService.getDate());
+            try {
+                ScatterGatherResult<DateService, String> dates = dateServiceProvider.getDates(DATE_SERVICE_TIMEOUT);
+                for (String eachDate : dates.getResults()) {
+                    writer.write("\n* DateService output: " + eachDate);
+                }
+                writer.write("\nDateService invocations: " + dates);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ServletException(e);
+            }
+
+            try {
+                writer.write("\nHighest ranked DateService output: " + dateServiceProvider.getDateService().getDate());
+            } catch (ServiceUnavailableException e) {
+                writer.write("\n" + e.getMessage());
+            }
+
+            Map<ServiceInvocationKey, LatencyHistogram> histograms = dateServiceProvider.getInvocationMetrics().getHistograms();
+            for (Map.Entry<ServiceInvocationKey, LatencyHistogram> eachHistogram : histograms.entrySet()) {
+                writer.write("\n* Invocations: " + eachHistogram.getKey() + "; " + eachHistogram.getValue());
             }
         }
     }
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.test.integration;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+import com.indoqa.osgi.embedded.container.ContainerConfiguration;
+import com.indoqa.osgi.embedded.container.EmbeddedOSGiContainer;
+import com.indoqa.osgi.embedded.sample.interfaces.DateService;
+import com.indoqa.osgi.embedded.sample.provider.DateServiceProvider;
+import com.indoqa.osgi.embedded.services.EmbeddedOSGiServiceProvider;
+
+public class BundleDirectoryWatcherIntegrationTest {
+
+    private static final String DIR_STORAGE = "./target/test-watcher-storage/";
+    private static final String DIR_BUNDLES = "./target/test-watcher-bundles/";
+
+    private static final String DIR_SAMPLE_BUNDLE = "../indoqa-osgi-embedded-sample-bundle/target/";
+    private static final String FILE_NAME_SAMPLE_BUNDLE = "indoqa-osgi-embedded-sample-bundle-0.1.0-SNAPSHOT.jar";
+    private static final String SYMBOLIC_NAME_SAMPLE_BUNDLE = "com.indoqa.osgi.indoqa-osgi-embedded-sample-bundle";
+    private static final long TIMEOUT = 10_000;
+
+    private EmbeddedOSGiContainer embeddedOSGiContainer;
+    private DateServiceProvider dateServiceProvider;
+
+    @Before
+    public void initializeEmbeddedOSGiContainer() throws IOException {
+        Path bundlesDirectory = this.prepareDirectory(DIR_BUNDLES);
+        Path storageDirectory = this.prepareDirectory(DIR_STORAGE);
+        ContainerConfiguration config = new ContainerConfiguration()
+            .setFrameworkStorage(storageDirectory)
+            .setSlf4jBridgeActivated(true)
+            .addFileInstallDir(bundlesDirectory)
+            .setBundleDirectoryWatcherEnabled(true)
+            .setBundleDirectoryWatcherQuietPeriod(50);
+        Collection<EmbeddedOSGiServiceProvider> providers = this.initializeProviders();
+
+        this.embeddedOSGiContainer = new EmbeddedOSGiContainer();
+        this.embeddedOSGiContainer.setContainerConfiguration(config);
+        this.embeddedOSGiContainer.setEmbeddedOSGiServiceProviders(providers);
+        this.embeddedOSGiContainer.addSystemPackage("com.indoqa.osgi.embedded.sample.interfaces");
+
+        this.embeddedOSGiContainer.initialize();
+    }
+
+    @Test
+    public void installUpdateAndUninstallBundle() throws Exception {
+        List<DateService> dateServices = this.dateServiceProvider.getDateServiceList();
+        assertEquals(0, dateServices.size());
+
+        File bundle = new File(DIR_BUNDLES + FILE_NAME_SAMPLE_BUNDLE);
+        FileUtils.copyFile(new File(DIR_SAMPLE_BUNDLE + FILE_NAME_SAMPLE_BUNDLE), bundle);
+        Bundle installedBundle = this.embeddedOSGiContainer.awaitBundleActive(SYMBOLIC_NAME_SAMPLE_BUNDLE, TIMEOUT);
+        dateServices = this.dateServiceProvider.getDateServiceList();
+        assertEquals(1, dateServices.size());
+
+        long lastModified = installedBundle.getLastModified();
+        bundle.setLastModified(System.currentTimeMillis());
+        this.embeddedOSGiContainer.awaitBundle(
+            eachBundle -> eachBundle == installedBundle && eachBundle.getLastModified() > lastModified
+                && eachBundle.getState() == Bundle.ACTIVE,
+            TIMEOUT);
+        dateServices = this.dateServiceProvider.getDateServiceList();
+        assertEquals(1, dateServices.size());
+
+        bundle.delete();
+        this.embeddedOSGiContainer.awaitBundleUninstalled(SYMBOLIC_NAME_SAMPLE_BUNDLE, TIMEOUT);
+        dateServices = this.dateServiceProvider.getDateServiceList();
+        assertEquals(0, dateServices.size());
+    }
+
+    @After
+    public void shutdownEmbeddedOSGiContainer() {
+        this.embeddedOSGiContainer.destroy();
+    }
+
+    private Collection<EmbeddedOSGiServiceProvider> initializeProviders() {
+        Collection<EmbeddedOSGiServiceProvider> providers = new ArrayList<>();
+        this.dateServiceProvider = new DateServiceProvider();
+        providers.add(this.dateServiceProvider);
+        return providers;
+    }
+
+    private Path prepareDirectory(String dir) throws IOException {
+        Path path = Paths.get(dir);
+        Files.createDirectories(path);
+        FileUtils.cleanDirectory(path.toFile());
+        return path;
+    }
+}
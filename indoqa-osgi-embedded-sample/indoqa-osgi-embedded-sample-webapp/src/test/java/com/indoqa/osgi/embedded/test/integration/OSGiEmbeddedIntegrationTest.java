@@ -25,6 +25,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.After;
@@ -44,6 +45,8 @@ public class OSGiEmbeddedIntegrationTest {
 
     private static final String DIR_SAMPLE_BUNDLE = "../indoqa-osgi-embedded-sample-bundle/target/";
     private static final String FILE_NAME_SAMPLE_BUNDLE = "indoqa-osgi-embedded-sample-bundle-0.1.0-SNAPSHOT.jar";
+    private static final String SYMBOLIC_NAME_SAMPLE_BUNDLE = "com.indoqa.osgi.indoqa-osgi-embedded-sample-bundle";
+    private static final long TIMEOUT = 10_000;
 
     private EmbeddedOSGiContainer embeddedOSGiContainer;
     private DateServiceProvider dateServiceProvider;
@@ -69,20 +72,20 @@ public class OSGiEmbeddedIntegrationTest {
     }
 
     @Test
-    public void installAndUninstallBundle() throws IOException {
-        DateService[] dateServices = this.dateServiceProvider.getDateServices();
-        assertEquals(0, dateServices.length);
+    public void installAndUninstallBundle() throws Exception {
+        List<DateService> dateServices = this.dateServiceProvider.getDateServiceList();
+        assertEquals(0, dateServices.size());
 
         File bundle = new File(DIR_BUNDLES + FILE_NAME_SAMPLE_BUNDLE);
         FileUtils.copyFile(new File(DIR_SAMPLE_BUNDLE + FILE_NAME_SAMPLE_BUNDLE), bundle);
-        this.sleep(1000);
-        dateServices = this.dateServiceProvider.getDateServices();
-        assertEquals(1, dateServices.length);
+        this.embeddedOSGiContainer.awaitBundleActive(SYMBOLIC_NAME_SAMPLE_BUNDLE, TIMEOUT);
+        dateServices = this.dateServiceProvider.getDateServiceList();
+        assertEquals(1, dateServices.size());
 
         bundle.delete();
-        this.sleep(1000);
-        dateServices = this.dateServiceProvider.getDateServices();
-        assertEquals(0, dateServices.length);
+        this.embeddedOSGiContainer.awaitBundleUninstalled(SYMBOLIC_NAME_SAMPLE_BUNDLE, TIMEOUT);
+        dateServices = this.dateServiceProvider.getDateServiceList();
+        assertEquals(0, dateServices.size());
     }
 
     @After
@@ -103,12 +106,4 @@ public class OSGiEmbeddedIntegrationTest {
         FileUtils.cleanDirectory(path.toFile());
         return path;
     }
-
-    private void sleep(int millis) {
-        try {
-            Thread.sleep(millis);
-        } catch (InterruptedException e) {
-            // do nothing
-        }
-    }
 }
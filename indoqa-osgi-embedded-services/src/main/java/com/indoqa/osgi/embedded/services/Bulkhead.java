@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import java.util.Objects;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.osgi.framework.Version;
+
+/**
+ * Limits the number of concurrent service invocations of a particular bundle version, see {@link ServiceIsolation}. Invocations
+ * beyond the limit are rejected immediately instead of waiting, so that a hanging plugin can't occupy more than its share of the
+ * calling threads.
+ */
+public final class Bulkhead {
+
+    private final String bundleSymbolicName;
+    private final Version bundleVersion;
+    private final int concurrencyLimit;
+    private final Semaphore permits;
+    private final LongAdder rejectedCount = new LongAdder();
+
+    public Bulkhead(String bundleSymbolicName, Version bundleVersion, int concurrencyLimit) {
+        if (concurrencyLimit < 1) {
+            throw new IllegalArgumentException("The concurrency limit has to be positive: " + concurrencyLimit);
+        }
+
+        this.bundleSymbolicName = Objects.requireNonNull(bundleSymbolicName);
+        this.bundleVersion = Objects.requireNonNull(bundleVersion);
+        this.concurrencyLimit = concurrencyLimit;
+        this.permits = new Semaphore(concurrencyLimit);
+    }
+
+    /**
+     * @return The number of invocations that are currently in progress.
+     */
+    public int getActiveCount() {
+        return this.concurrencyLimit - this.permits.availablePermits();
+    }
+
+    public String getBundleSymbolicName() {
+        return this.bundleSymbolicName;
+    }
+
+    public Version getBundleVersion() {
+        return this.bundleVersion;
+    }
+
+    public int getConcurrencyLimit() {
+        return this.concurrencyLimit;
+    }
+
+    public long getRejectedCount() {
+        return this.rejectedCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "bundle-symbolic-name=" + this.bundleSymbolicName + "; bundle-version=" + this.bundleVersion + "; active="
+            + this.getActiveCount() + "; limit=" + this.concurrencyLimit + "; rejected=" + this.getRejectedCount();
+    }
+
+    void release() {
+        this.permits.release();
+    }
+
+    boolean tryAcquire() {
+        if (this.permits.tryAcquire()) {
+            return true;
+        }
+
+        this.rejectedCount.increment();
+        return false;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Attributes the CPU time and the heap allocations of the current thread to the bundle that owns the work, based on
+ * {@link ThreadMXBean#getCurrentThreadCpuTime()} and <code>com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)</code>.
+ * Work is attributed by
+ * <ul>
+ * <li>service invocations, i.e. services wrapped by {@link #instrument(Class, ServiceReference, Object)}, which is done
+ * automatically for all services of a {@link TrackedServices} instance that was created with
+ * {@link TrackedServices#setResourceAccounting(BundleResourceAccounting)},</li>
+ * <li>tasks, i.e. {@link Runnable}s and {@link Callable}s wrapped by {@link #wrap(Bundle, Runnable)} and
+ * {@link #wrap(Bundle, Callable)} or submitted to an executor returned by {@link #instrument(Bundle, Executor)}.</li>
+ * </ul>
+ * Nested work is attributed exclusively: while a service of bundle B is invoked from a task of bundle A, the resources are attributed
+ * to B only. Each attribution reads the thread counters twice, which costs about a microsecond, so only coarse grained work should
+ * be accounted. The JVM doesn't provide these counters for virtual threads, so work running on them isn't accounted.
+ */
+public class BundleResourceAccounting {
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME_SUPPORTED = enableCpuTime();
+    private static final boolean ALLOCATION_SUPPORTED = enableAllocations();
+
+    private final ConcurrentMap<String, BundleResourceUsage> usages = new ConcurrentHashMap<>();
+    private final ThreadLocal<Frame> currentFrame = new ThreadLocal<>();
+
+    public static boolean isAllocationAccountingSupported() {
+        return ALLOCATION_SUPPORTED;
+    }
+
+    public static boolean isCpuTimeAccountingSupported() {
+        return CPU_TIME_SUPPORTED;
+    }
+
+    private static boolean enableAllocations() {
+        try {
+            return AllocationCounter.enable();
+        } catch (LinkageError | UnsupportedOperationException e) {
+            // not a HotSpot based JVM
+            return false;
+        }
+    }
+
+    private static boolean enableCpuTime() {
+        try {
+            if (!THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()) {
+                return false;
+            }
+            if (!THREAD_MX_BEAN.isThreadCpuTimeEnabled()) {
+                THREAD_MX_BEAN.setThreadCpuTimeEnabled(true);
+            }
+            return true;
+        } catch (UnsupportedOperationException | SecurityException e) {
+            return false;
+        }
+    }
+
+    private static long getAllocatedBytes() {
+        if (!ALLOCATION_SUPPORTED) {
+            return 0;
+        }
+        return AllocationCounter.getAllocatedBytes();
+    }
+
+    private static long getCpuTime() {
+        if (!CPU_TIME_SUPPORTED) {
+            return 0;
+        }
+        return THREAD_MX_BEAN.getCurrentThreadCpuTime();
+    }
+
+    /**
+     * Execute the given callable and attribute its resources to the given bundle.
+     */
+    public <V> V call(Bundle bundle, Callable<V> callable) throws Exception {
+        Frame frame = this.begin(bundle);
+        try {
+            return callable.call();
+        } finally {
+            this.end(frame);
+        }
+    }
+
+    /**
+     * @return The usage of the given bundle version, which is created if it doesn't exist yet.
+     */
+    public BundleResourceUsage getUsage(Bundle bundle) {
+        return this.usages.computeIfAbsent(
+            ServiceInstrumentation.getBundleKey(bundle),
+            key -> new BundleResourceUsage(ServiceInstrumentation.getBundleSymbolicName(bundle), bundle.getVersion()));
+    }
+
+    /**
+     * @return A snapshot of the usages of all bundle versions, the bundle that has consumed the most CPU time being the first one.
+     */
+    public List<BundleResourceUsage> getUsages() {
+        List<BundleResourceUsage> result = new ArrayList<>(this.usages.values());
+        result.sort(Comparator.comparingLong(BundleResourceUsage::getCpuTimeNanos).reversed());
+        return result;
+    }
+
+    /**
+     * @return An executor that attributes the resources of all tasks to the given bundle and delegates to the given executor.
+     */
+    public Executor instrument(Bundle bundle, Executor executor) {
+        return command -> executor.execute(this.wrap(bundle, command));
+    }
+
+    /**
+     * Wrap the given service into a proxy that attributes the resources of each invocation of a method of the service interface to
+     * the bundle that provides the service.
+     *
+     * @param serviceInterface The interface the proxy implements, it has to be visible to the class loader of the caller.
+     * @param reference The reference of the service, it is used to determine the bundle that provides the service.
+     * @param service The service to be wrapped.
+     */
+    public <T> T instrument(Class<T> serviceInterface, ServiceReference<?> reference, T service) {
+        AccountingInvocationHandler invocationHandler = new AccountingInvocationHandler(service, reference.getBundle());
+        return ServiceInstrumentation.createProxy(serviceInterface, invocationHandler);
+    }
+
+    public void reset() {
+        this.usages.clear();
+    }
+
+    /**
+     * Execute the given runnable and attribute its resources to the given bundle.
+     */
+    public void run(Bundle bundle, Runnable runnable) {
+        Frame frame = this.begin(bundle);
+        try {
+            runnable.run();
+        } finally {
+            this.end(frame);
+        }
+    }
+
+    public <V> Callable<V> wrap(Bundle bundle, Callable<V> callable) {
+        return () -> this.call(bundle, callable);
+    }
+
+    public Runnable wrap(Bundle bundle, Runnable runnable) {
+        return () -> this.run(bundle, runnable);
+    }
+
+    private Frame begin(Bundle bundle) {
+        long cpuTime = getCpuTime();
+        long allocatedBytes = getAllocatedBytes();
+
+        Frame parent = this.currentFrame.get();
+        if (parent != null) {
+            parent.usage.record(cpuTime - parent.cpuTime, allocatedBytes - parent.allocatedBytes);
+        }
+
+        BundleResourceUsage usage = this.getUsage(bundle);
+        usage.recordInvocation();
+
+        Frame frame = new Frame(usage, parent, cpuTime, allocatedBytes);
+        this.currentFrame.set(frame);
+        return frame;
+    }
+
+    private void end(Frame frame) {
+        long cpuTime = getCpuTime();
+        long allocatedBytes = getAllocatedBytes();
+        frame.usage.record(cpuTime - frame.cpuTime, allocatedBytes - frame.allocatedBytes);
+
+        Frame parent = frame.parent;
+        if (parent == null) {
+            this.currentFrame.remove();
+            return;
+        }
+
+        parent.cpuTime = cpuTime;
+        parent.allocatedBytes = allocatedBytes;
+        this.currentFrame.set(parent);
+    }
+
+    private static final class AllocationCounter {
+
+        private static final com.sun.management.ThreadMXBean ALLOCATION_MX_BEAN = (com.sun.management.ThreadMXBean) THREAD_MX_BEAN;
+
+        public static boolean enable() {
+            if (!ALLOCATION_MX_BEAN.isThreadAllocatedMemorySupported()) {
+                return false;
+            }
+            if (!ALLOCATION_MX_BEAN.isThreadAllocatedMemoryEnabled()) {
+                ALLOCATION_MX_BEAN.setThreadAllocatedMemoryEnabled(true);
+            }
+            return true;
+        }
+
+        public static long getAllocatedBytes() {
+            return ALLOCATION_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+    }
+
+    private final class AccountingInvocationHandler extends InstrumentingInvocationHandler {
+
+        private final Bundle bundle;
+
+        public AccountingInvocationHandler(Object service, Bundle bundle) {
+            super(service);
+            this.bundle = bundle;
+        }
+
+        @Override
+        protected Object invokeInstrumented(Method method, Object[] args) throws Throwable {
+            Frame frame = BundleResourceAccounting.this.begin(this.bundle);
+            try {
+                return this.invokeService(method, args);
+            } finally {
+                BundleResourceAccounting.this.end(frame);
+            }
+        }
+    }
+
+    private static final class Frame {
+
+        private final BundleResourceUsage usage;
+        private final Frame parent;
+        private long cpuTime;
+        private long allocatedBytes;
+
+        public Frame(BundleResourceUsage usage, Frame parent, long cpuTime, long allocatedBytes) {
+            this.usage = usage;
+            this.parent = parent;
+            this.cpuTime = cpuTime;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+}
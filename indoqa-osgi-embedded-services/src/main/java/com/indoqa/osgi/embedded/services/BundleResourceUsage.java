@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.osgi.framework.Version;
+
+/**
+ * The CPU time and the heap allocations that have been attributed to a particular bundle version by a
+ * {@link BundleResourceAccounting}.
+ */
+public final class BundleResourceUsage {
+
+    private final String bundleSymbolicName;
+    private final Version bundleVersion;
+    private final LongAdder invocationCount = new LongAdder();
+    private final LongAdder cpuTimeNanos = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+
+    public BundleResourceUsage(String bundleSymbolicName, Version bundleVersion) {
+        this.bundleSymbolicName = Objects.requireNonNull(bundleSymbolicName);
+        this.bundleVersion = Objects.requireNonNull(bundleVersion);
+    }
+
+    /**
+     * @return The bytes allocated on the heap or -1 if the JVM doesn't support measuring the allocations of a thread.
+     */
+    public long getAllocatedBytes() {
+        if (!BundleResourceAccounting.isAllocationAccountingSupported()) {
+            return -1;
+        }
+        return this.allocatedBytes.sum();
+    }
+
+    public String getBundleSymbolicName() {
+        return this.bundleSymbolicName;
+    }
+
+    public Version getBundleVersion() {
+        return this.bundleVersion;
+    }
+
+    /**
+     * @return The CPU time in nanoseconds or -1 if the JVM doesn't support measuring the CPU time of a thread.
+     */
+    public long getCpuTimeNanos() {
+        if (!BundleResourceAccounting.isCpuTimeAccountingSupported()) {
+            return -1;
+        }
+        return this.cpuTimeNanos.sum();
+    }
+
+    /**
+     * @return The number of service invocations and tasks that have been attributed to the bundle.
+     */
+    public long getInvocationCount() {
+        return this.invocationCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "bundle-symbolic-name=" + this.bundleSymbolicName + "; bundle-version=" + this.bundleVersion + "; invocations="
+            + this.getInvocationCount() + "; cpu-time-ns=" + this.getCpuTimeNanos() + "; allocated-bytes="
+            + this.getAllocatedBytes();
+    }
+
+    void record(long cpuTimeNanos, long allocatedBytes) {
+        this.cpuTimeNanos.add(cpuTimeNanos);
+        this.allocatedBytes.add(allocatedBytes);
+    }
+
+    void recordInvocation() {
+        this.invocationCount.increment();
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.osgi.framework.Version;
+
+/**
+ * Stops the service invocations of a particular bundle version while it fails or responds slowly, see {@link ServiceIsolation}.
+ * <ul>
+ * <li>{@link State#CLOSED}: all invocations pass. The outcomes of the last invocations are kept in a sliding window, and the
+ * breaker opens once the rate of failed or slow invocations in the window reaches its threshold.</li>
+ * <li>{@link State#OPEN}: all invocations are rejected until the open duration has elapsed.</li>
+ * <li>{@link State#HALF_OPEN}: a few trial invocations pass. The breaker closes if all of them succeed in time and opens again
+ * otherwise. A trial that hasn't completed within the slow call threshold counts as slow, so the breaker opens again without
+ * waiting for a hanging trial.</li>
+ * </ul>
+ */
+public final class CircuitBreaker {
+
+    private final String bundleSymbolicName;
+    private final Version bundleVersion;
+    private final ServiceIsolation settings;
+    private final LongAdder callCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+
+    private final boolean[] failedCalls;
+    private final boolean[] slowCalls;
+    private int windowIndex;
+    private int windowCount;
+    private int failedCount;
+    private int slowCount;
+    private int halfOpenPermits;
+    private int halfOpenSuccesses;
+    private long openedAt;
+    private long lastTrialAt;
+
+    private volatile State state = State.CLOSED;
+
+    CircuitBreaker(String bundleSymbolicName, Version bundleVersion, ServiceIsolation settings) {
+        this.bundleSymbolicName = Objects.requireNonNull(bundleSymbolicName);
+        this.bundleVersion = Objects.requireNonNull(bundleVersion);
+        this.settings = settings;
+        this.failedCalls = new boolean[settings.getWindowSize()];
+        this.slowCalls = new boolean[settings.getWindowSize()];
+    }
+
+    private static double getRate(int count, int total) {
+        if (total == 0) {
+            return 0;
+        }
+        return (double) count / total;
+    }
+
+    public String getBundleSymbolicName() {
+        return this.bundleSymbolicName;
+    }
+
+    public Version getBundleVersion() {
+        return this.bundleVersion;
+    }
+
+    /**
+     * @return The number of invocations that were permitted.
+     */
+    public long getCallCount() {
+        return this.callCount.sum();
+    }
+
+    /**
+     * @return The rate of failed invocations within the sliding window, between 0 and 1.
+     */
+    public synchronized double getFailureRate() {
+        return getRate(this.failedCount, this.windowCount);
+    }
+
+    public long getRejectedCount() {
+        return this.rejectedCount.sum();
+    }
+
+    /**
+     * @return The rate of slow invocations within the sliding window, between 0 and 1.
+     */
+    public synchronized double getSlowCallRate() {
+        return getRate(this.slowCount, this.windowCount);
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    @Override
+    public String toString() {
+        return "bundle-symbolic-name=" + this.bundleSymbolicName + "; bundle-version=" + this.bundleVersion + "; state="
+            + this.state + "; failure-rate=" + this.getFailureRate() + "; slow-call-rate=" + this.getSlowCallRate() + "; rejected="
+            + this.getRejectedCount();
+    }
+
+    /**
+     * Record the outcome of a permitted invocation.
+     */
+    void record(long latencyNanos, boolean failed) {
+        boolean slow = latencyNanos >= MILLISECONDS.toNanos(this.settings.getSlowCallThreshold());
+        State previousState;
+        State newState;
+
+        synchronized (this) {
+            previousState = this.state;
+
+            if (previousState == State.HALF_OPEN) {
+                if (failed || slow) {
+                    this.open();
+                } else if (++this.halfOpenSuccesses >= this.settings.getHalfOpenCalls()) {
+                    this.close();
+                }
+            } else if (previousState == State.CLOSED) {
+                this.addToWindow(failed, slow);
+                if (this.isThresholdReached()) {
+                    this.open();
+                }
+            }
+            // invocations that complete after the breaker has opened are ignored
+
+            newState = this.state;
+        }
+
+        this.settings.fireStateChanged(this, previousState, newState);
+    }
+
+    /**
+     * @return <code>true</code> if the invocation may pass. Each permitted invocation has to be {@link #record(long, boolean)
+     *         recorded}.
+     */
+    boolean tryAcquirePermission() {
+        if (this.state == State.CLOSED) {
+            this.callCount.increment();
+            return true;
+        }
+
+        State previousState;
+        State newState;
+        boolean permitted;
+
+        synchronized (this) {
+            previousState = this.state;
+
+            long now = System.nanoTime();
+            if (this.state == State.HALF_OPEN && this.halfOpenPermits == 0
+                && now - this.lastTrialAt >= MILLISECONDS.toNanos(this.settings.getSlowCallThreshold())) {
+                // the pending trials are slow anyway, so don't wait until they complete
+                this.open();
+            }
+
+            if (this.state == State.OPEN && now - this.openedAt >= MILLISECONDS.toNanos(this.settings.getOpenDuration())) {
+                this.state = State.HALF_OPEN;
+                this.halfOpenPermits = this.settings.getHalfOpenCalls();
+                this.halfOpenSuccesses = 0;
+            }
+
+            if (this.state == State.CLOSED) {
+                permitted = true;
+            } else if (this.state == State.HALF_OPEN && this.halfOpenPermits > 0) {
+                this.halfOpenPermits--;
+                this.lastTrialAt = now;
+                permitted = true;
+            } else {
+                permitted = false;
+            }
+
+            newState = this.state;
+        }
+
+        this.settings.fireStateChanged(this, previousState, newState);
+
+        if (permitted) {
+            this.callCount.increment();
+        } else {
+            this.rejectedCount.increment();
+        }
+        return permitted;
+    }
+
+    private void addToWindow(boolean failed, boolean slow) {
+        if (this.windowCount == this.failedCalls.length) {
+            if (this.failedCalls[this.windowIndex]) {
+                this.failedCount--;
+            }
+            if (this.slowCalls[this.windowIndex]) {
+                this.slowCount--;
+            }
+        } else {
+            this.windowCount++;
+        }
+
+        this.failedCalls[this.windowIndex] = failed;
+        this.slowCalls[this.windowIndex] = slow;
+        if (failed) {
+            this.failedCount++;
+        }
+        if (slow) {
+            this.slowCount++;
+        }
+        this.windowIndex = (this.windowIndex + 1) % this.failedCalls.length;
+    }
+
+    private void close() {
+        this.state = State.CLOSED;
+        this.windowIndex = 0;
+        this.windowCount = 0;
+        this.failedCount = 0;
+        this.slowCount = 0;
+    }
+
+    private boolean isThresholdReached() {
+        // the window size is fixed when the breaker is created, so it might be smaller than the current minimum number of calls
+        if (this.windowCount < Math.min(this.settings.getMinimumCalls(), this.failedCalls.length)) {
+            return false;
+        }
+
+        return getRate(this.failedCount, this.windowCount) >= this.settings.getFailureRateThreshold()
+            || getRate(this.slowCount, this.windowCount) >= this.settings.getSlowCallRateThreshold();
+    }
+
+    private void open() {
+        this.state = State.OPEN;
+        this.openedAt = System.nanoTime();
+    }
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+}
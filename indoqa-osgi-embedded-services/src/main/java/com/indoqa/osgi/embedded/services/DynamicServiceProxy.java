@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A stable proxy that routes the invocations of a service interface to the service with the highest ranking of a
+ * {@link TrackedServices} instance.
+ * <p/>
+ * The proxy is an instance of a class generated by {@link ProxyClassGenerator}, whose methods invoke one {@link MutableCallSite}
+ * per method of the service interface. The targets of the call sites are the {@link MethodHandle}s of the interface methods bound to
+ * the current service. They are only rebound when {@link TrackedServices} publishes a different highest ranked service, so the
+ * JIT compiler can inline the call of the service into the caller and an invocation costs about the same as a direct call. While
+ * no service is available, the targets throw a {@link ServiceUnavailableException}.
+ */
+/*default*/ final class DynamicServiceProxy<T> {
+
+    private static final AtomicInteger PROXY_COUNTER = new AtomicInteger();
+    private static final MethodHandle THROW_UNAVAILABLE;
+
+    static {
+        try {
+            THROW_UNAVAILABLE = MethodHandles.lookup().findStatic(
+                DynamicServiceProxy.class,
+                "throwUnavailable",
+                MethodType.methodType(Object.class, String.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final List<MethodHandle> methodHandles = new ArrayList<>();
+    private final List<MethodHandle> unavailableHandles = new ArrayList<>();
+    private final MutableCallSite[] callSites;
+    private final T proxy;
+
+    private Object service;
+
+    public DynamicServiceProxy(Class<T> type) {
+        if (!type.isInterface() || !Modifier.isPublic(type.getModifiers())) {
+            throw new IllegalArgumentException("Only services registered by a public interface can be proxied: " + type);
+        }
+
+        List<Method> methods = new ArrayList<>();
+        Set<String> signatures = new HashSet<>();
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        for (Method method : type.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers()) || isObjectMethod(method)) {
+                continue;
+            }
+
+            // interfaces that inherit the same method from several super interfaces report it once per declaring interface
+            MethodType methodType = MethodType.methodType(method.getReturnType(), method.getParameterTypes());
+            if (!signatures.add(method.getName() + methodType.toMethodDescriptorString())) {
+                continue;
+            }
+
+            try {
+                this.methodHandles.add(lookup.unreflect(method));
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("The method " + method + " of the service interface is not accessible.", e);
+            }
+
+            MethodHandle unavailableHandle = THROW_UNAVAILABLE.bindTo(type.getName()).asType(methodType.dropParameterTypes(
+                0,
+                methodType.parameterCount()));
+            this.unavailableHandles.add(MethodHandles.dropArguments(unavailableHandle, 0, methodType.parameterList()));
+            methods.add(method);
+        }
+
+        this.callSites = new MutableCallSite[methods.size()];
+        MethodHandle[] invokers = new MethodHandle[methods.size()];
+        for (int i = 0; i < this.callSites.length; i++) {
+            this.callSites[i] = new MutableCallSite(this.unavailableHandles.get(i));
+            invokers[i] = this.callSites[i].dynamicInvoker();
+        }
+
+        String className = DynamicServiceProxy.class.getName() + "$" + type.getSimpleName() + "$" + PROXY_COUNTER.incrementAndGet();
+        ProxyClassLoader classLoader = new ProxyClassLoader(type.getClassLoader(), invokers);
+        Class<?> proxyClass = classLoader.define(className, ProxyClassGenerator.generate(className, type, methods));
+
+        try {
+            this.proxy = type.cast(proxyClass.getConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't create the proxy of " + type + ".", e);
+        }
+    }
+
+    private static boolean isObjectMethod(Method method) {
+        try {
+            Object.class.getMethod(method.getName(), method.getParameterTypes());
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static Object throwUnavailable(String typeName) {
+        throw new ServiceUnavailableException("No service of type " + typeName + " is available.");
+    }
+
+    /**
+     * Route all invocations to the given service. This has to be called whenever the highest ranked service changes.
+     *
+     * @param newService The service or <code>null</code> if no service is available.
+     */
+    public synchronized void bind(T newService) {
+        if (newService == this.service) {
+            return;
+        }
+
+        for (int i = 0; i < this.callSites.length; i++) {
+            if (newService == null) {
+                this.callSites[i].setTarget(this.unavailableHandles.get(i));
+            } else {
+                this.callSites[i].setTarget(this.methodHandles.get(i).bindTo(newService));
+            }
+        }
+        MutableCallSite.syncAll(this.callSites);
+        this.service = newService;
+    }
+
+    public T getProxy() {
+        return this.proxy;
+    }
+
+    /**
+     * Defines the generated proxy class and hands the invokers of the call sites to its static initializer. All other classes
+     * are loaded by the class loader of the service interface.
+     */
+    private static final class ProxyClassLoader extends ClassLoader implements Supplier<Object> {
+
+        private final MethodHandle[] invokers;
+
+        public ProxyClassLoader(ClassLoader parent, MethodHandle[] invokers) {
+            super(parent);
+            this.invokers = invokers;
+        }
+
+        @Override
+        public Object get() {
+            return this.invokers;
+        }
+
+        public Class<?> define(String className, byte[] classFile) {
+            return this.defineClass(className, classFile, 0, classFile.length);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * The invocation handler of the service proxies created by
+ * {@link ServiceInstrumentation#createProxy(Class, InstrumentingInvocationHandler)}. The methods of {@link Object} are passed to
+ * the service, except for <code>equals</code>, which compares the proxies by identity. All methods of the service interface are
+ * passed to {@link #invokeInstrumented(Method, Object[])}.
+ */
+/*default*/ abstract class InstrumentingInvocationHandler implements InvocationHandler {
+
+    private final Object service;
+
+    protected InstrumentingInvocationHandler(Object service) {
+        this.service = service;
+    }
+
+    @Override
+    public final Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            if ("equals".equals(method.getName())) {
+                return proxy == args[0];
+            }
+            return this.invokeService(method, args);
+        }
+
+        return this.invokeInstrumented(method, args);
+    }
+
+    /**
+     * Invoke the given method of the service interface, typically by calling {@link #invokeService(Method, Object[])}.
+     */
+    protected abstract Object invokeInstrumented(Method method, Object[] args) throws Throwable;
+
+    /**
+     * Invoke the given method of the service and throw the exception thrown by the service unchanged.
+     */
+    protected final Object invokeService(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(this.service, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds. Values are counted in logarithmic buckets with 8 linear sub-buckets each,
+ * which keeps the relative error of {@link #getValueAtPercentile(double)} below 12.5% while recording a value only takes a few
+ * atomic increments.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long getBucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long lowerBound = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+
+    public long getCount() {
+        return this.count.get();
+    }
+
+    public long getMaxNanos() {
+        return this.maxNanos.get();
+    }
+
+    public double getMeanNanos() {
+        long currentCount = this.count.get();
+        if (currentCount == 0) {
+            return 0;
+        }
+        return (double) this.totalNanos.get() / currentCount;
+    }
+
+    public long getTotalNanos() {
+        return this.totalNanos.get();
+    }
+
+    /**
+     * @param percentile A value between 0 and 100, e.g. 99.9
+     * @return The highest latency in nanoseconds of the given percentile of all recorded invocations or 0 if nothing has been
+     *         recorded yet.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("The percentile must be between 0 and 100: " + percentile);
+        }
+
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = this.buckets.get(i);
+            total += snapshot[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(getBucketUpperBound(i), this.maxNanos.get());
+            }
+        }
+
+        return this.maxNanos.get();
+    }
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+
+        this.buckets.incrementAndGet(getBucketIndex(value));
+        this.count.incrementAndGet();
+        this.totalNanos.addAndGet(value);
+
+        long currentMax;
+        do {
+            currentMax = this.maxNanos.get();
+        } while (value > currentMax && !this.maxNanos.compareAndSet(currentMax, value));
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + this.getCount() + "; p50-ns=" + this.getValueAtPercentile(50) + "; p90-ns=" + this.getValueAtPercentile(90)
+            + "; p99-ns=" + this.getValueAtPercentile(99) + "; max-ns=" + this.getMaxNanos();
+    }
+}
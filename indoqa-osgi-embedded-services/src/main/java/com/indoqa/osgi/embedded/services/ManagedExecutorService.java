@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * A {@link ScheduledExecutorService} that is managed by the embedded OSGi container and shared by all bundles. It is registered as
+ * OSGi service if the managed executor is enabled in the container configuration. Each bundle gets its own view, which
+ * <ul>
+ * <li>runs at most {@link #getConcurrencyLimit()} tasks of the bundle at the same time,</li>
+ * <li>cancels all tasks of the bundle as soon as the bundle stops and</li>
+ * <li>only shuts down its own tasks when {@link #shutdown()} or {@link #shutdownNow()} is called.</li>
+ * </ul>
+ * The service is also registered as {@link ScheduledExecutorService} and {@link java.util.concurrent.ExecutorService}, so bundles
+ * that don't need the additional methods don't have to import this package.
+ */
+public interface ManagedExecutorService extends ScheduledExecutorService {
+
+    /**
+     * @return The number of tasks of the calling bundle that are currently running.
+     */
+    int getActiveCount();
+
+    /**
+     * @return The maximum number of tasks of the calling bundle that run at the same time.
+     */
+    int getConcurrencyLimit();
+
+    /**
+     * @return The number of tasks of the calling bundle that are ready to run but wait for a free slot.
+     */
+    int getQueueSize();
+}
@@ -0,0 +1,386 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Generates the class file of a final class that implements a service interface by delegating each method to a
+ * <code>private static final</code> {@link MethodHandle} field:
+ *
+ * <pre>
+ * public R m(P0 p0, P1 p1) {
+ *     return (R) h0.invokeExact(p0, p1);
+ * }
+ * </pre>
+ *
+ * The static initializer reads the handles from the class loader of the generated class, which has to implement
+ * {@link Supplier} and return a <code>MethodHandle[]</code> with one handle per method. The JIT compiler treats static final
+ * fields as constants and inlines the handles into the callers. None of the methods contain branches, therefore the class files
+ * don't need stack map frames.
+ */
+/*default*/ final class ProxyClassGenerator {
+
+    private static final int CLASS_FILE_MAGIC = 0xCAFEBABE;
+    private static final int CLASS_FILE_VERSION = 52;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ASTORE_0 = 0x4b;
+    private static final int AALOAD = 0x32;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int LLOAD = 0x16;
+    private static final int FLOAD = 0x17;
+    private static final int DLOAD = 0x18;
+    private static final int ALOAD = 0x19;
+    private static final int IRETURN = 0xac;
+    private static final int LRETURN = 0xad;
+    private static final int FRETURN = 0xae;
+    private static final int DRETURN = 0xaf;
+    private static final int ARETURN = 0xb0;
+    private static final int RETURN = 0xb1;
+    private static final int GETSTATIC = 0xb2;
+    private static final int PUTSTATIC = 0xb3;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKEINTERFACE = 0xb9;
+    private static final int CHECKCAST = 0xc0;
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String SUPPLIER = "java/util/function/Supplier";
+    private static final String METHOD_HANDLE = "java/lang/invoke/MethodHandle";
+    private static final String METHOD_HANDLE_DESCRIPTOR = "Ljava/lang/invoke/MethodHandle;";
+    private static final String HANDLE_FIELD_PREFIX = "h";
+
+    private final String className;
+    private final ByteArrayOutputStream constantPoolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream constantPool = new DataOutputStream(this.constantPoolBytes);
+    private final Map<String, Integer> constants = new HashMap<>();
+    private int constantCount = 1;
+
+    private ProxyClassGenerator(String className) {
+        this.className = className;
+    }
+
+    /**
+     * @param className The binary name of the generated class.
+     * @param serviceInterface The public interface the generated class implements.
+     * @param methods The methods to implement, the handle at index <code>i</code> has to have the exact type of
+     *            <code>methods.get(i)</code> without the receiver.
+     */
+    public static byte[] generate(String className, Class<?> serviceInterface, List<Method> methods) {
+        try {
+            return new ProxyClassGenerator(toInternalName(className)).generateClass(serviceInterface, methods);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't generate the proxy class of " + serviceInterface + ".", e);
+        }
+    }
+
+    private static String getDescriptor(Class<?> type) {
+        if (type.isArray()) {
+            return toInternalName(type.getName());
+        }
+
+        if (!type.isPrimitive()) {
+            return "L" + toInternalName(type.getName()) + ";";
+        }
+
+        if (type == void.class) {
+            return "V";
+        }
+        if (type == boolean.class) {
+            return "Z";
+        }
+        if (type == byte.class) {
+            return "B";
+        }
+        if (type == char.class) {
+            return "C";
+        }
+        if (type == short.class) {
+            return "S";
+        }
+        if (type == int.class) {
+            return "I";
+        }
+        if (type == long.class) {
+            return "J";
+        }
+        if (type == float.class) {
+            return "F";
+        }
+        return "D";
+    }
+
+    private static String getDescriptor(Method method) {
+        StringBuilder descriptor = new StringBuilder("(");
+        for (Class<?> parameterType : method.getParameterTypes()) {
+            descriptor.append(getDescriptor(parameterType));
+        }
+        return descriptor.append(')').append(getDescriptor(method.getReturnType())).toString();
+    }
+
+    private static int getLoadOpcode(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return ALOAD;
+        }
+        if (type == long.class) {
+            return LLOAD;
+        }
+        if (type == float.class) {
+            return FLOAD;
+        }
+        if (type == double.class) {
+            return DLOAD;
+        }
+        return ILOAD;
+    }
+
+    private static int getReturnOpcode(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return ARETURN;
+        }
+        if (type == void.class) {
+            return RETURN;
+        }
+        if (type == long.class) {
+            return LRETURN;
+        }
+        if (type == float.class) {
+            return FRETURN;
+        }
+        if (type == double.class) {
+            return DRETURN;
+        }
+        return IRETURN;
+    }
+
+    private static int getSlotSize(Class<?> type) {
+        return type == long.class || type == double.class ? 2 : 1;
+    }
+
+    private static String toInternalName(String className) {
+        return className.replace('.', '/');
+    }
+
+    private int classConstant(String internalName) throws IOException {
+        int nameIndex = this.utf8Constant(internalName);
+        return this.constant("C" + internalName, CONSTANT_CLASS, nameIndex, -1);
+    }
+
+    private int constant(String key, int tag, int firstIndex, int secondIndex) throws IOException {
+        Integer index = this.constants.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        this.constantPool.writeByte(tag);
+        this.constantPool.writeShort(firstIndex);
+        if (secondIndex != -1) {
+            this.constantPool.writeShort(secondIndex);
+        }
+        return this.register(key);
+    }
+
+    private byte[] generateClass(Class<?> serviceInterface, List<Method> methods) throws IOException {
+        int thisClass = this.classConstant(this.className);
+        int superClass = this.classConstant(OBJECT);
+        int interfaceClass = this.classConstant(toInternalName(serviceInterface.getName()));
+
+        ByteArrayOutputStream membersBytes = new ByteArrayOutputStream();
+        DataOutputStream members = new DataOutputStream(membersBytes);
+
+        // fields
+        members.writeShort(methods.size());
+        for (int i = 0; i < methods.size(); i++) {
+            members.writeShort(ACC_PRIVATE | ACC_STATIC | ACC_FINAL);
+            members.writeShort(this.utf8Constant(HANDLE_FIELD_PREFIX + i));
+            members.writeShort(this.utf8Constant(METHOD_HANDLE_DESCRIPTOR));
+            members.writeShort(0);
+        }
+
+        // methods
+        members.writeShort(methods.size() + 2);
+        this.writeConstructor(members);
+        this.writeStaticInitializer(members, thisClass, methods.size());
+        for (int i = 0; i < methods.size(); i++) {
+            this.writeDelegatingMethod(members, i, methods.get(i));
+        }
+
+        ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+        DataOutputStream classFile = new DataOutputStream(classBytes);
+        classFile.writeInt(CLASS_FILE_MAGIC);
+        classFile.writeShort(0);
+        classFile.writeShort(CLASS_FILE_VERSION);
+        classFile.writeShort(this.constantCount);
+        this.constantPool.flush();
+        this.constantPoolBytes.writeTo(classFile);
+        classFile.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        classFile.writeShort(thisClass);
+        classFile.writeShort(superClass);
+        classFile.writeShort(1);
+        classFile.writeShort(interfaceClass);
+        members.flush();
+        membersBytes.writeTo(classFile);
+        // class attributes
+        classFile.writeShort(0);
+        classFile.flush();
+        return classBytes.toByteArray();
+    }
+
+    private int handleFieldConstant(int index) throws IOException {
+        return this.memberConstant(CONSTANT_FIELDREF, this.className, HANDLE_FIELD_PREFIX + index, METHOD_HANDLE_DESCRIPTOR);
+    }
+
+    private int memberConstant(int tag, String owner, String name, String descriptor) throws IOException {
+        int classIndex = this.classConstant(owner);
+        int nameAndTypeIndex = this.constant(
+            "N" + name + ":" + descriptor,
+            CONSTANT_NAME_AND_TYPE,
+            this.utf8Constant(name),
+            this.utf8Constant(descriptor));
+        return this.constant(tag + owner + "." + name + ":" + descriptor, tag, classIndex, nameAndTypeIndex);
+    }
+
+    private int register(String key) {
+        int index = this.constantCount++;
+        this.constants.put(key, index);
+        return index;
+    }
+
+    private int utf8Constant(String value) throws IOException {
+        String key = "U" + value;
+        Integer index = this.constants.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        this.constantPool.writeByte(CONSTANT_UTF8);
+        this.constantPool.writeUTF(value);
+        return this.register(key);
+    }
+
+    private void writeCode(DataOutputStream members, int maxStack, int maxLocals, byte[] code) throws IOException {
+        members.writeShort(this.utf8Constant("Code"));
+        members.writeInt(12 + code.length);
+        members.writeShort(maxStack);
+        members.writeShort(maxLocals);
+        members.writeInt(code.length);
+        members.write(code);
+        // exception table and attributes
+        members.writeShort(0);
+        members.writeShort(0);
+    }
+
+    private void writeConstructor(DataOutputStream members) throws IOException {
+        ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+        DataOutputStream code = new DataOutputStream(codeBytes);
+        code.writeByte(ALOAD_0);
+        code.writeByte(INVOKESPECIAL);
+        code.writeShort(this.memberConstant(CONSTANT_METHODREF, OBJECT, "<init>", "()V"));
+        code.writeByte(RETURN);
+
+        members.writeShort(ACC_PUBLIC);
+        members.writeShort(this.utf8Constant("<init>"));
+        members.writeShort(this.utf8Constant("()V"));
+        members.writeShort(1);
+        this.writeCode(members, 1, 1, codeBytes.toByteArray());
+    }
+
+    private void writeDelegatingMethod(DataOutputStream members, int index, Method method) throws IOException {
+        String descriptor = getDescriptor(method);
+
+        ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+        DataOutputStream code = new DataOutputStream(codeBytes);
+        code.writeByte(GETSTATIC);
+        code.writeShort(this.handleFieldConstant(index));
+
+        int slot = 1;
+        for (Class<?> parameterType : method.getParameterTypes()) {
+            code.writeByte(getLoadOpcode(parameterType));
+            code.writeByte(slot);
+            slot += getSlotSize(parameterType);
+        }
+
+        code.writeByte(INVOKEVIRTUAL);
+        code.writeShort(this.memberConstant(CONSTANT_METHODREF, METHOD_HANDLE, "invokeExact", descriptor));
+        code.writeByte(getReturnOpcode(method.getReturnType()));
+
+        members.writeShort(ACC_PUBLIC | ACC_FINAL);
+        members.writeShort(this.utf8Constant(method.getName()));
+        members.writeShort(this.utf8Constant(descriptor));
+        members.writeShort(1);
+        // the handle and all arguments are on the stack, the return value fits into the same space
+        this.writeCode(members, slot + 1, slot, codeBytes.toByteArray());
+    }
+
+    private void writeStaticInitializer(DataOutputStream members, int thisClass, int handleCount) throws IOException {
+        ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+        DataOutputStream code = new DataOutputStream(codeBytes);
+        code.writeByte(LDC_W);
+        code.writeShort(thisClass);
+        code.writeByte(INVOKEVIRTUAL);
+        code.writeShort(this.memberConstant(CONSTANT_METHODREF, "java/lang/Class", "getClassLoader", "()Ljava/lang/ClassLoader;"));
+        code.writeByte(CHECKCAST);
+        code.writeShort(this.classConstant(SUPPLIER));
+        code.writeByte(INVOKEINTERFACE);
+        code.writeShort(this.memberConstant(CONSTANT_INTERFACE_METHODREF, SUPPLIER, "get", "()Ljava/lang/Object;"));
+        code.writeByte(1);
+        code.writeByte(0);
+        code.writeByte(CHECKCAST);
+        code.writeShort(this.classConstant("[" + METHOD_HANDLE_DESCRIPTOR));
+        code.writeByte(ASTORE_0);
+
+        for (int i = 0; i < handleCount; i++) {
+            code.writeByte(ALOAD_0);
+            code.writeByte(SIPUSH);
+            code.writeShort(i);
+            code.writeByte(AALOAD);
+            code.writeByte(PUTSTATIC);
+            code.writeShort(this.handleFieldConstant(i));
+        }
+        code.writeByte(RETURN);
+
+        members.writeShort(ACC_STATIC);
+        members.writeShort(this.utf8Constant("<clinit>"));
+        members.writeShort(this.utf8Constant("()V"));
+        members.writeShort(1);
+        this.writeCode(members, 3, 1, codeBytes.toByteArray());
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcomes of a {@link ServiceScatterGather} invocation, one per service and sorted by service ranking, highest first. Calls
+ * that didn't complete before the deadline are reported as {@link Status#TIMED_OUT}, so callers can work with the partial results.
+ *
+ * @param <T> The type of the invoked services.
+ * @param <R> The type of the results.
+ */
+public final class ScatterGatherResult<T, R> {
+
+    private final List<Outcome<T, R>> outcomes;
+    private final long durationNanos;
+
+    ScatterGatherResult(List<Outcome<T, R>> outcomes, long durationNanos) {
+        this.outcomes = Collections.unmodifiableList(outcomes);
+        this.durationNanos = durationNanos;
+    }
+
+    /**
+     * @return The time from scattering the calls until the last call completed or the deadline elapsed.
+     */
+    public long getDurationNanos() {
+        return this.durationNanos;
+    }
+
+    public int getFailedCount() {
+        return this.count(Status.FAILED);
+    }
+
+    public List<Outcome<T, R>> getOutcomes() {
+        return this.outcomes;
+    }
+
+    /**
+     * @return The results of all calls that completed successfully, sorted by service ranking.
+     */
+    public List<R> getResults() {
+        List<R> results = new ArrayList<>(this.outcomes.size());
+        for (Outcome<T, R> outcome : this.outcomes) {
+            if (outcome.getStatus() == Status.COMPLETED) {
+                results.add(outcome.getResult());
+            }
+        }
+        return results;
+    }
+
+    public int getTimedOutCount() {
+        return this.count(Status.TIMED_OUT);
+    }
+
+    /**
+     * @return <code>true</code> if the calls of all services completed successfully.
+     */
+    public boolean isComplete() {
+        return this.count(Status.COMPLETED) == this.outcomes.size();
+    }
+
+    @Override
+    public String toString() {
+        return "services=" + this.outcomes.size() + "; completed=" + this.count(Status.COMPLETED) + "; failed="
+            + this.getFailedCount() + "; timed-out=" + this.getTimedOutCount() + "; duration=" + this.durationNanos / 1_000_000
+            + "ms";
+    }
+
+    private int count(Status status) {
+        int count = 0;
+        for (Outcome<T, R> outcome : this.outcomes) {
+            if (outcome.getStatus() == status) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public enum Status {
+        COMPLETED, FAILED, TIMED_OUT
+    }
+
+    public static final class Outcome<T, R> {
+
+        private final T service;
+        private final Status status;
+        private final R result;
+        private final Throwable failure;
+        private final long latencyNanos;
+
+        Outcome(T service, Status status, R result, Throwable failure, long latencyNanos) {
+            this.service = service;
+            this.status = status;
+            this.result = result;
+            this.failure = failure;
+            this.latencyNanos = latencyNanos;
+        }
+
+        /**
+         * @return The exception thrown by the service or the executor or <code>null</code> unless the status is
+         *         {@link Status#FAILED}.
+         */
+        public Throwable getFailure() {
+            return this.failure;
+        }
+
+        /**
+         * @return The time from scattering the calls until this call completed, including the time it waited for a thread of the
+         *         executor. Calls that timed out report the time until the deadline.
+         */
+        public long getLatencyNanos() {
+            return this.latencyNanos;
+        }
+
+        /**
+         * @return The result of the call or <code>null</code> unless the status is {@link Status#COMPLETED}.
+         */
+        public R getResult() {
+            return this.result;
+        }
+
+        public T getService() {
+            return this.service;
+        }
+
+        public Status getStatus() {
+            return this.status;
+        }
+
+        @Override
+        public String toString() {
+            return "service=" + this.service + "; status=" + this.status + "; latency=" + this.latencyNanos / 1_000 + "us";
+        }
+    }
+}
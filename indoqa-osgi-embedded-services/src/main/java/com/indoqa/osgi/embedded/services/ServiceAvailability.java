@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Waits until a service or a bundle becomes available. All methods register a {@link ServiceListener} or {@link BundleListener}
+ * before checking the current state of the framework, so they return as soon as the condition holds without polling and without
+ * missing events that happen concurrently.
+ */
+public final class ServiceAvailability {
+
+    private ServiceAvailability() {
+        // hide utility class constructor
+    }
+
+    /**
+     * Wait until a bundle matches the given condition. The condition is evaluated for all installed bundles and again for each bundle
+     * that fires a {@link BundleEvent}.
+     *
+     * @param timeout The maximum time to wait in milliseconds.
+     * @return The first bundle that matched.
+     */
+    public static Bundle awaitBundle(BundleContext bundleContext, Predicate<Bundle> condition, long timeout)
+            throws InterruptedException, TimeoutException {
+        return awaitBundle(bundleContext, condition, timeout, "No bundle matched the condition");
+    }
+
+    /**
+     * Wait until a bundle with the given symbolic name is {@link Bundle#ACTIVE}, i.e. its activator has registered its services.
+     *
+     * @param timeout The maximum time to wait in milliseconds.
+     */
+    public static Bundle awaitBundleActive(BundleContext bundleContext, String symbolicName, long timeout)
+            throws InterruptedException, TimeoutException {
+        return awaitBundle(
+            bundleContext,
+            bundle -> symbolicName.equals(bundle.getSymbolicName()) && bundle.getState() == Bundle.ACTIVE,
+            timeout,
+            "The bundle '" + symbolicName + "' isn't active");
+    }
+
+    /**
+     * Wait until no bundle with the given symbolic name is installed anymore.
+     *
+     * @param timeout The maximum time to wait in milliseconds.
+     */
+    public static void awaitBundleUninstalled(BundleContext bundleContext, String symbolicName, long timeout)
+            throws InterruptedException, TimeoutException {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        BundleListener listener = event -> {
+            if (event.getType() == BundleEvent.UNINSTALLED && !isInstalled(bundleContext, symbolicName)) {
+                result.complete(null);
+            }
+        };
+
+        bundleContext.addBundleListener(listener);
+        try {
+            if (!isInstalled(bundleContext, symbolicName)) {
+                result.complete(null);
+            }
+
+            await(result, timeout, "The bundle '" + symbolicName + "' is still installed");
+        } finally {
+            bundleContext.removeBundleListener(listener);
+        }
+    }
+
+    /**
+     * Wait until a service of the given type is registered.
+     *
+     * @param filter An additional LDAP filter the service properties have to match or <code>null</code>.
+     * @param timeout The maximum time to wait in milliseconds.
+     * @return The reference of the matching service with the highest ranking.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> ServiceReference<T> awaitService(BundleContext bundleContext, Class<T> type, String filter, long timeout)
+            throws InterruptedException, TimeoutException {
+        Filter serviceFilter = TrackedServices.createFilter(bundleContext, type, filter);
+        CompletableFuture<ServiceReference<T>> result = new CompletableFuture<>();
+        ServiceListener listener = event -> {
+            if (event.getType() == ServiceEvent.REGISTERED || event.getType() == ServiceEvent.MODIFIED) {
+                result.complete((ServiceReference<T>) event.getServiceReference());
+            }
+        };
+
+        try {
+            bundleContext.addServiceListener(listener, serviceFilter.toString());
+        } catch (InvalidSyntaxException e) {
+            throw new IllegalArgumentException("Invalid service filter '" + filter + "'.", e);
+        }
+
+        try {
+            Collection<ServiceReference<T>> references = bundleContext.getServiceReferences(type, filter);
+            if (!references.isEmpty()) {
+                result.complete(Collections.max(references));
+            }
+
+            return await(result, timeout, "No service of type " + type.getName() + " matching '" + filter + "' is available");
+        } catch (InvalidSyntaxException e) {
+            throw new IllegalArgumentException("Invalid service filter '" + filter + "'.", e);
+        } finally {
+            bundleContext.removeServiceListener(listener);
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> result, long timeout, String timeoutMessage)
+            throws InterruptedException, TimeoutException {
+        try {
+            return result.get(timeout, MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new TimeoutException(timeoutMessage + " after " + timeout + "ms.");
+        }
+    }
+
+    private static Bundle awaitBundle(BundleContext bundleContext, Predicate<Bundle> condition, long timeout, String timeoutMessage)
+            throws InterruptedException, TimeoutException {
+        CompletableFuture<Bundle> result = new CompletableFuture<>();
+        BundleListener listener = event -> {
+            if (condition.test(event.getBundle())) {
+                result.complete(event.getBundle());
+            }
+        };
+
+        bundleContext.addBundleListener(listener);
+        try {
+            for (Bundle bundle : bundleContext.getBundles()) {
+                if (condition.test(bundle)) {
+                    result.complete(bundle);
+                    break;
+                }
+            }
+
+            return await(result, timeout, timeoutMessage);
+        } finally {
+            bundleContext.removeBundleListener(listener);
+        }
+    }
+
+    private static boolean isInstalled(BundleContext bundleContext, String symbolicName) {
+        for (Bundle bundle : bundleContext.getBundles()) {
+            if (symbolicName.equals(bundle.getSymbolicName()) && bundle.getState() != Bundle.UNINSTALLED) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import java.lang.reflect.Proxy;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * The common parts of the classes that instrument services by wrapping them into a proxy of the service interface, e.g.
+ * {@link ServiceInvocationMetrics} and {@link ServiceIsolation}.
+ */
+/*default*/ final class ServiceInstrumentation {
+
+    private ServiceInstrumentation() {
+        // hide utility class constructor
+    }
+
+    static void checkInterface(Class<?> serviceInterface) {
+        if (!serviceInterface.isInterface()) {
+            throw new IllegalArgumentException("Only services registered by an interface can be instrumented: " + serviceInterface);
+        }
+    }
+
+    static <T> T createProxy(Class<T> serviceInterface, InstrumentingInvocationHandler invocationHandler) {
+        checkInterface(serviceInterface);
+
+        Object proxy = Proxy.newProxyInstance(
+            serviceInterface.getClassLoader(),
+            new Class<?>[] {serviceInterface},
+            invocationHandler);
+        return serviceInterface.cast(proxy);
+    }
+
+    /**
+     * @return The key that identifies the given bundle version, i.e. its symbolic name and its version.
+     */
+    static String getBundleKey(Bundle bundle) {
+        return getBundleSymbolicName(bundle) + ";" + bundle.getVersion();
+    }
+
+    /**
+     * @return The symbolic name of the given bundle or its location if the bundle doesn't have a symbolic name.
+     */
+    static String getBundleSymbolicName(Bundle bundle) {
+        String symbolicName = bundle.getSymbolicName();
+        return symbolicName == null ? bundle.getLocation() : symbolicName;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import java.util.Objects;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+
+/**
+ * Identifies the invocations of a service interface that are served by a particular bundle version.
+ */
+public final class ServiceInvocationKey {
+
+    private final String serviceInterface;
+    private final String bundleSymbolicName;
+    private final Version bundleVersion;
+
+    public ServiceInvocationKey(String serviceInterface, String bundleSymbolicName, Version bundleVersion) {
+        this.serviceInterface = Objects.requireNonNull(serviceInterface);
+        this.bundleSymbolicName = Objects.requireNonNull(bundleSymbolicName);
+        this.bundleVersion = Objects.requireNonNull(bundleVersion);
+    }
+
+    public static ServiceInvocationKey of(Class<?> serviceInterface, Bundle bundle) {
+        return new ServiceInvocationKey(
+            serviceInterface.getName(),
+            ServiceInstrumentation.getBundleSymbolicName(bundle),
+            bundle.getVersion());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ServiceInvocationKey)) {
+            return false;
+        }
+
+        ServiceInvocationKey other = (ServiceInvocationKey) obj;
+        return this.serviceInterface.equals(other.serviceInterface) && this.bundleSymbolicName.equals(other.bundleSymbolicName)
+            && this.bundleVersion.equals(other.bundleVersion);
+    }
+
+    public String getBundleSymbolicName() {
+        return this.bundleSymbolicName;
+    }
+
+    public Version getBundleVersion() {
+        return this.bundleVersion;
+    }
+
+    public String getServiceInterface() {
+        return this.serviceInterface;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.serviceInterface, this.bundleSymbolicName, this.bundleVersion);
+    }
+
+    @Override
+    public String toString() {
+        return "service-interface=" + this.serviceInterface + "; bundle-symbolic-name=" + this.bundleSymbolicName + "; bundle-version="
+            + this.bundleVersion;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Collects the invocation latencies of OSGi services in a {@link LatencyHistogram} per service interface, bundle symbolic name and
+ * bundle version. Services are measured by wrapping them into a timing proxy with {@link #instrument(Class, ServiceReference, Object)},
+ * which is done automatically for all services of a {@link TrackedServices} instance that was created with
+ * {@link TrackedServices#setInvocationMetrics(ServiceInvocationMetrics)}.
+ * <p/>
+ * Typically the host application creates a single instance, hands it to its {@link EmbeddedOSGiServiceProvider}s and queries it for
+ * percentiles:
+ *
+ * <pre>
+ * for (Map.Entry&lt;ServiceInvocationKey, LatencyHistogram&gt; entry : metrics.getHistograms().entrySet()) {
+ *     logger.info(entry.getKey() + "; p99-ns=" + entry.getValue().getValueAtPercentile(99));
+ * }
+ * </pre>
+ */
+public class ServiceInvocationMetrics {
+
+    private final ConcurrentMap<ServiceInvocationKey, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * @return The histogram of the given key, which is created if it doesn't exist yet.
+     */
+    public LatencyHistogram getHistogram(ServiceInvocationKey key) {
+        return this.histograms.computeIfAbsent(key, k -> new LatencyHistogram());
+    }
+
+    /**
+     * @return An immutable snapshot of all histograms.
+     */
+    public Map<ServiceInvocationKey, LatencyHistogram> getHistograms() {
+        return Collections.unmodifiableMap(new HashMap<>(this.histograms));
+    }
+
+    /**
+     * @return An immutable snapshot of the histograms of all bundles that provide the given service interface.
+     */
+    public Map<ServiceInvocationKey, LatencyHistogram> getHistograms(Class<?> serviceInterface) {
+        Map<ServiceInvocationKey, LatencyHistogram> result = new HashMap<>();
+
+        for (Map.Entry<ServiceInvocationKey, LatencyHistogram> entry : this.histograms.entrySet()) {
+            if (entry.getKey().getServiceInterface().equals(serviceInterface.getName())) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Wrap the given service into a proxy that records the latency of each invocation of a method of the service interface. The
+     * recorded latency includes exceptions thrown by the service.
+     *
+     * @param serviceInterface The interface the proxy implements, it has to be visible to the class loader of the caller.
+     * @param reference The reference of the service, it is used to determine the bundle that provides the service.
+     * @param service The service to be wrapped.
+     */
+    public <T> T instrument(Class<T> serviceInterface, ServiceReference<?> reference, T service) {
+        ServiceInstrumentation.checkInterface(serviceInterface);
+
+        LatencyHistogram histogram = this.getHistogram(ServiceInvocationKey.of(serviceInterface, reference.getBundle()));
+        return ServiceInstrumentation.createProxy(serviceInterface, new TimingInvocationHandler(service, histogram));
+    }
+
+    public void reset() {
+        this.histograms.clear();
+    }
+
+    private static final class TimingInvocationHandler extends InstrumentingInvocationHandler {
+
+        private final LatencyHistogram histogram;
+
+        public TimingInvocationHandler(Object service, LatencyHistogram histogram) {
+            super(service);
+            this.histogram = histogram;
+        }
+
+        @Override
+        protected Object invokeInstrumented(Method method, Object[] args) throws Throwable {
+            long start = System.nanoTime();
+            try {
+                return this.invokeService(method, args);
+            } finally {
+                this.histogram.record(System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+
+import com.indoqa.osgi.embedded.services.CircuitBreaker.State;
+
+/**
+ * Isolates the callers from degraded plugins: the service invocations of each bundle version pass a {@link Bulkhead}, which limits
+ * the number of concurrent invocations, and a {@link CircuitBreaker}, which rejects all invocations while the bundle fails or
+ * responds slowly. Rejected invocations throw a {@link ServiceRejectedException} immediately, so a hanging plugin can't block
+ * all threads of the host.
+ * <p/>
+ * Services are isolated by wrapping them with {@link #instrument(Class, ServiceReference, Object)}, which is done automatically
+ * for all services of a {@link TrackedServices} instance that was created with
+ * {@link TrackedServices#setServiceIsolation(ServiceIsolation)}. Exceptions thrown by a service count as failures.
+ * <p/>
+ * The settings apply to all bundles. The concurrency limit and the window size have to be set before the first invocation of a
+ * bundle, the other settings can be changed at any time.
+ */
+public class ServiceIsolation {
+
+    private static final int DEFAULT_CONCURRENCY_LIMIT = 16;
+    private static final int DEFAULT_WINDOW_SIZE = 20;
+    private static final int DEFAULT_MINIMUM_CALLS = 10;
+    private static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+    private static final double DEFAULT_SLOW_CALL_RATE_THRESHOLD = 0.5;
+    private static final long DEFAULT_SLOW_CALL_THRESHOLD = 1_000;
+    private static final long DEFAULT_OPEN_DURATION = 10_000;
+    private static final int DEFAULT_HALF_OPEN_CALLS = 3;
+
+    private final ConcurrentMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    private final List<CircuitBreakerListener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile int concurrencyLimit = DEFAULT_CONCURRENCY_LIMIT;
+    private volatile int windowSize = DEFAULT_WINDOW_SIZE;
+    private volatile int minimumCalls = DEFAULT_MINIMUM_CALLS;
+    private volatile double failureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+    private volatile double slowCallRateThreshold = DEFAULT_SLOW_CALL_RATE_THRESHOLD;
+    private volatile long slowCallThreshold = DEFAULT_SLOW_CALL_THRESHOLD;
+    private volatile long openDuration = DEFAULT_OPEN_DURATION;
+    private volatile int halfOpenCalls = DEFAULT_HALF_OPEN_CALLS;
+
+    public void addListener(CircuitBreakerListener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * @return The bulkhead of the given bundle version, which is created if it doesn't exist yet.
+     */
+    public Bulkhead getBulkhead(Bundle bundle) {
+        return this.bulkheads.computeIfAbsent(
+            ServiceInstrumentation.getBundleKey(bundle),
+            key -> new Bulkhead(ServiceInstrumentation.getBundleSymbolicName(bundle), bundle.getVersion(), this.concurrencyLimit));
+    }
+
+    /**
+     * @return A snapshot of the bulkheads of all bundle versions, sorted by symbolic name.
+     */
+    public List<Bulkhead> getBulkheads() {
+        List<Bulkhead> result = new ArrayList<>(this.bulkheads.values());
+        result.sort(Comparator.comparing(Bulkhead::getBundleSymbolicName).thenComparing(Bulkhead::getBundleVersion));
+        return result;
+    }
+
+    /**
+     * @return The circuit breaker of the given bundle version, which is created if it doesn't exist yet.
+     */
+    public CircuitBreaker getCircuitBreaker(Bundle bundle) {
+        return this.circuitBreakers.computeIfAbsent(
+            ServiceInstrumentation.getBundleKey(bundle),
+            key -> new CircuitBreaker(ServiceInstrumentation.getBundleSymbolicName(bundle), bundle.getVersion(), this));
+    }
+
+    /**
+     * @return A snapshot of the circuit breakers of all bundle versions, sorted by symbolic name.
+     */
+    public List<CircuitBreaker> getCircuitBreakers() {
+        List<CircuitBreaker> result = new ArrayList<>(this.circuitBreakers.values());
+        result.sort(Comparator.comparing(CircuitBreaker::getBundleSymbolicName).thenComparing(CircuitBreaker::getBundleVersion));
+        return result;
+    }
+
+    /**
+     * Wrap the given service into a proxy that passes each invocation of a method of the service interface through the bulkhead
+     * and the circuit breaker of the bundle that provides the service.
+     *
+     * @param serviceInterface The interface the proxy implements, it has to be visible to the class loader of the caller.
+     * @param reference The reference of the service, it is used to determine the bundle that provides the service.
+     * @param service The service to be wrapped.
+     */
+    public <T> T instrument(Class<T> serviceInterface, ServiceReference<?> reference, T service) {
+        ServiceInstrumentation.checkInterface(serviceInterface);
+
+        Bundle bundle = reference.getBundle();
+        return ServiceInstrumentation.createProxy(
+            serviceInterface,
+            new IsolatingInvocationHandler(service, this.getBulkhead(bundle), this.getCircuitBreaker(bundle)));
+    }
+
+    public void removeListener(CircuitBreakerListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Discard all bulkheads and circuit breakers. Services that have already been instrumented keep using the current ones.
+     */
+    public void reset() {
+        this.bulkheads.clear();
+        this.circuitBreakers.clear();
+    }
+
+    /**
+     * The maximum number of concurrent invocations per bundle version, defaults to 16.
+     */
+    public ServiceIsolation setConcurrencyLimit(int concurrencyLimit) {
+        if (concurrencyLimit < 1) {
+            throw new IllegalArgumentException("The concurrency limit has to be positive: " + concurrencyLimit);
+        }
+
+        this.concurrencyLimit = concurrencyLimit;
+        return this;
+    }
+
+    /**
+     * The rate of failed invocations within the sliding window that opens the circuit breaker, defaults to 0.5.
+     */
+    public ServiceIsolation setFailureRateThreshold(double failureRateThreshold) {
+        if (!(failureRateThreshold > 0 && failureRateThreshold <= 1)) {
+            throw new IllegalArgumentException(
+                "The failure rate threshold has to be greater than 0 and at most 1: " + failureRateThreshold);
+        }
+
+        this.failureRateThreshold = failureRateThreshold;
+        return this;
+    }
+
+    /**
+     * The number of trial invocations that have to succeed in time to close a half open circuit breaker, defaults to 3. The breaker
+     * opens again as soon as a trial hasn't completed within the slow call threshold.
+     */
+    public ServiceIsolation setHalfOpenCalls(int halfOpenCalls) {
+        if (halfOpenCalls < 1) {
+            throw new IllegalArgumentException("The number of half open calls has to be positive: " + halfOpenCalls);
+        }
+
+        this.halfOpenCalls = halfOpenCalls;
+        return this;
+    }
+
+    /**
+     * The number of invocations within the sliding window before the circuit breaker evaluates the thresholds, defaults to 10.
+     * Circuit breakers whose window is smaller evaluate the thresholds once their window is full.
+     */
+    public ServiceIsolation setMinimumCalls(int minimumCalls) {
+        if (minimumCalls < 1) {
+            throw new IllegalArgumentException("The minimum number of calls has to be positive: " + minimumCalls);
+        }
+
+        this.minimumCalls = minimumCalls;
+        return this;
+    }
+
+    /**
+     * The time in milliseconds an open circuit breaker rejects all invocations before it lets trial invocations pass, defaults
+     * to 10000.
+     */
+    public ServiceIsolation setOpenDuration(long openDuration) {
+        if (openDuration < 0) {
+            throw new IllegalArgumentException("The open duration must not be negative: " + openDuration);
+        }
+
+        this.openDuration = openDuration;
+        return this;
+    }
+
+    /**
+     * The rate of slow invocations within the sliding window that opens the circuit breaker, defaults to 0.5.
+     */
+    public ServiceIsolation setSlowCallRateThreshold(double slowCallRateThreshold) {
+        if (!(slowCallRateThreshold > 0 && slowCallRateThreshold <= 1)) {
+            throw new IllegalArgumentException(
+                "The slow call rate threshold has to be greater than 0 and at most 1: " + slowCallRateThreshold);
+        }
+
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        return this;
+    }
+
+    /**
+     * The latency in milliseconds from which on an invocation counts as slow, defaults to 1000.
+     */
+    public ServiceIsolation setSlowCallThreshold(long slowCallThreshold) {
+        if (slowCallThreshold < 1) {
+            throw new IllegalArgumentException("The slow call threshold has to be positive: " + slowCallThreshold);
+        }
+
+        this.slowCallThreshold = slowCallThreshold;
+        return this;
+    }
+
+    /**
+     * The number of most recent invocations the circuit breaker evaluates, defaults to 20.
+     */
+    public ServiceIsolation setWindowSize(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("The window size has to be positive: " + windowSize);
+        }
+
+        this.windowSize = windowSize;
+        return this;
+    }
+
+    void fireStateChanged(CircuitBreaker circuitBreaker, State previousState, State newState) {
+        if (previousState == newState) {
+            return;
+        }
+
+        for (CircuitBreakerListener listener : this.listeners) {
+            listener.stateChanged(circuitBreaker, previousState, newState);
+        }
+    }
+
+    double getFailureRateThreshold() {
+        return this.failureRateThreshold;
+    }
+
+    int getHalfOpenCalls() {
+        return this.halfOpenCalls;
+    }
+
+    int getMinimumCalls() {
+        return this.minimumCalls;
+    }
+
+    long getOpenDuration() {
+        return this.openDuration;
+    }
+
+    double getSlowCallRateThreshold() {
+        return this.slowCallRateThreshold;
+    }
+
+    long getSlowCallThreshold() {
+        return this.slowCallThreshold;
+    }
+
+    int getWindowSize() {
+        return this.windowSize;
+    }
+
+    private static final class IsolatingInvocationHandler extends InstrumentingInvocationHandler {
+
+        private final Bulkhead bulkhead;
+        private final CircuitBreaker circuitBreaker;
+
+        public IsolatingInvocationHandler(Object service, Bulkhead bulkhead, CircuitBreaker circuitBreaker) {
+            super(service);
+            this.bulkhead = bulkhead;
+            this.circuitBreaker = circuitBreaker;
+        }
+
+        @Override
+        protected Object invokeInstrumented(Method method, Object[] args) throws Throwable {
+            if (!this.bulkhead.tryAcquire()) {
+                throw new ServiceRejectedException(
+                    "The bulkhead of the bundle is full: " + this.bulkhead + "; service-interface="
+                        + method.getDeclaringClass().getName());
+            }
+
+            try {
+                if (!this.circuitBreaker.tryAcquirePermission()) {
+                    throw new ServiceRejectedException(
+                        "The circuit breaker of the bundle is open: " + this.circuitBreaker + "; service-interface="
+                            + method.getDeclaringClass().getName());
+                }
+
+                long start = System.nanoTime();
+                boolean failed = true;
+                try {
+                    Object result = this.invokeService(method, args);
+                    failed = false;
+                    return result;
+                } finally {
+                    this.circuitBreaker.record(System.nanoTime() - start, failed);
+                }
+            } finally {
+                this.bulkhead.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,713 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Memoizes the results of the service methods that are annotated with {@link CacheableResult}, so that repeated invocations with
+ * equal arguments don't call into the bundle code again. The cache is bounded by {@link #setMaximumSize(int)} and evicts entries
+ * according to the {@link EvictionPolicy}; entries can additionally expire after {@link #setTimeToLive(long)}. Exceptions are not
+ * cached.
+ * <p/>
+ * Results are cached per service, and the entries of a bundle are invalidated as soon as it is stopped, updated, refreshed or
+ * uninstalled, and the entries of a service as soon as it is unregistered or its properties are modified. Results of invocations
+ * that complete after their service has been unregistered are discarded, so a result of a stale plugin version is never served.
+ * Each segment indexes its keys by service, so service events only touch the entries of their own service, and events of services
+ * that were never instrumented are ignored.
+ * <p/>
+ * The entries are distributed by the hash codes of their keys over up to 16 segments with their own locks, so concurrent
+ * invocations rarely contend for the same lock. Each segment holds its share of the maximum size and applies the eviction policy
+ * to its own entries, so the eviction order of large caches approximates the policy. Caches with a maximum size below 128 have a
+ * single segment.
+ * <p/>
+ * Services are memoized by wrapping them with {@link #instrument(Class, ServiceReference, Object)}, which is done automatically
+ * for all services of a {@link TrackedServices} instance that was created with
+ * {@link TrackedServices#setResultCache(ServiceResultCache)}. The cache has to be opened before it is used and closed afterwards:
+ *
+ * <pre>
+ * public void initialize(BundleContext bundleContext) {
+ *     this.resultCache = new ServiceResultCache(bundleContext).setMaximumSize(1_000).setTimeToLive(60_000);
+ *     this.resultCache.open();
+ *     this.formatServices = new TrackedServices&lt;&gt;(bundleContext, FormatService.class).setResultCache(this.resultCache);
+ *     this.formatServices.open();
+ * }
+ * </pre>
+ */
+public class ServiceResultCache {
+
+    private static final int DEFAULT_MAXIMUM_SIZE = 10_000;
+    private static final int MAXIMUM_SEGMENT_COUNT = 16;
+    private static final int MINIMUM_SEGMENT_SIZE = 64;
+    private static final Object NULL_RESULT = new Object();
+
+    private final BundleContext bundleContext;
+    private final InvalidationListener invalidationListener = new InvalidationListener();
+    private final Set<Long> instrumentedServiceIds = ConcurrentHashMap.newKeySet();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder expirationCount = new LongAdder();
+    private final LongAdder invalidationCount = new LongAdder();
+
+    private volatile int maximumSize = DEFAULT_MAXIMUM_SIZE;
+    private volatile long timeToLive;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+    private volatile Segment[] segments;
+
+    public ServiceResultCache(BundleContext bundleContext) {
+        this.bundleContext = bundleContext;
+    }
+
+    private static Object[] copyArguments(Object[] args) {
+        if (args == null) {
+            return new Object[0];
+        }
+        return args.clone();
+    }
+
+    private static int getSegmentCount(int maximumSize) {
+        int segmentCount = 1;
+        while (segmentCount < MAXIMUM_SEGMENT_COUNT && maximumSize / (segmentCount * 2) >= MINIMUM_SEGMENT_SIZE) {
+            segmentCount *= 2;
+        }
+        return segmentCount;
+    }
+
+    private static Segment getSegment(Segment[] segments, Key key) {
+        int hash = key.hashCode ^ (key.hashCode >>> 16);
+        return segments[hash & (segments.length - 1)];
+    }
+
+    private static long getServiceId(ServiceReference<?> reference) {
+        return (Long) reference.getProperty(Constants.SERVICE_ID);
+    }
+
+    public synchronized void close() {
+        Segment[] currentSegments = this.segments;
+        if (currentSegments == null) {
+            return;
+        }
+
+        this.bundleContext.removeServiceListener(this.invalidationListener);
+        this.bundleContext.removeBundleListener(this.invalidationListener);
+        this.segments = null;
+        for (Segment segment : currentSegments) {
+            segment.clear();
+        }
+    }
+
+    public long getEvictionCount() {
+        return this.evictionCount.sum();
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return this.evictionPolicy;
+    }
+
+    /**
+     * @return The number of entries that were removed because their time to live had elapsed.
+     */
+    public long getExpirationCount() {
+        return this.expirationCount.sum();
+    }
+
+    public long getHitCount() {
+        return this.hitCount.sum();
+    }
+
+    /**
+     * @return The rate of invocations that were served from the cache, between 0 and 1.
+     */
+    public double getHitRate() {
+        long hits = this.getHitCount();
+        long total = hits + this.getMissCount();
+        if (total == 0) {
+            return 0;
+        }
+        return (double) hits / total;
+    }
+
+    /**
+     * @return The number of entries that were removed because their bundle or service changed.
+     */
+    public long getInvalidationCount() {
+        return this.invalidationCount.sum();
+    }
+
+    public long getMissCount() {
+        return this.missCount.sum();
+    }
+
+    /**
+     * Wrap the given service into a proxy that memoizes the results of all methods of the service interface that are annotated
+     * with {@link CacheableResult}. All other methods are passed to the service.
+     *
+     * @param serviceInterface The interface the proxy implements, it has to be visible to the class loader of the caller.
+     * @param reference The reference of the service, it is used to determine the bundle that provides the service.
+     * @param service The service to be wrapped.
+     */
+    public <T> T instrument(Class<T> serviceInterface, ServiceReference<?> reference, T service) {
+        return ServiceInstrumentation.createProxy(serviceInterface, new CachingInvocationHandler(service, reference));
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void invalidateAll() {
+        this.invalidate(key -> true);
+    }
+
+    /**
+     * Remove the entries of all services of the given bundle.
+     */
+    public void invalidateBundle(Bundle bundle) {
+        long bundleId = bundle.getBundleId();
+        this.invalidate(key -> key.bundleId == bundleId);
+    }
+
+    /**
+     * Register the listeners that invalidate the entries of changed bundles and services.
+     */
+    public synchronized void open() {
+        if (this.segments != null) {
+            return;
+        }
+
+        Segment[] newSegments = new Segment[getSegmentCount(this.maximumSize)];
+        for (int i = 0; i < newSegments.length; i++) {
+            newSegments[i] = new Segment(this.evictionPolicy == EvictionPolicy.LFU ? new LfuStore() : new LruStore());
+        }
+
+        this.segments = newSegments;
+        this.bundleContext.addBundleListener(this.invalidationListener);
+        this.bundleContext.addServiceListener(this.invalidationListener);
+    }
+
+    /**
+     * The eviction policy that is applied once the cache is full, defaults to {@link EvictionPolicy#LRU}. This has to be set
+     * before calling {@link #open()}.
+     */
+    public synchronized ServiceResultCache setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = Objects.requireNonNull(evictionPolicy);
+        return this;
+    }
+
+    /**
+     * The maximum number of entries, defaults to 10000. The number of segments is derived from the maximum size when the cache is
+     * opened.
+     */
+    public synchronized ServiceResultCache setMaximumSize(int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("The maximum size has to be positive: " + maximumSize);
+        }
+
+        this.maximumSize = maximumSize;
+        return this;
+    }
+
+    /**
+     * The time in milliseconds after which an entry expires or 0 if entries don't expire, defaults to 0.
+     */
+    public synchronized ServiceResultCache setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+        return this;
+    }
+
+    public int size() {
+        Segment[] currentSegments = this.segments;
+        if (currentSegments == null) {
+            return 0;
+        }
+
+        int size = 0;
+        for (Segment segment : currentSegments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + this.size() + "; hits=" + this.getHitCount() + "; misses=" + this.getMissCount() + "; evictions="
+            + this.getEvictionCount() + "; expirations=" + this.getExpirationCount() + "; invalidations="
+            + this.getInvalidationCount();
+    }
+
+    private Object get(Key key) {
+        Segment[] currentSegments = this.segments;
+        if (currentSegments == null) {
+            return null;
+        }
+        return getSegment(currentSegments, key).get(key);
+    }
+
+    private void invalidate(Key key) {
+        Segment[] currentSegments = this.segments;
+        if (currentSegments != null && getSegment(currentSegments, key).remove(key)) {
+            this.invalidationCount.increment();
+        }
+    }
+
+    private void invalidate(Predicate<Key> condition) {
+        Segment[] currentSegments = this.segments;
+        if (currentSegments == null) {
+            return;
+        }
+
+        for (Segment segment : currentSegments) {
+            this.invalidationCount.add(segment.removeIf(condition));
+        }
+    }
+
+    private void invalidateService(long serviceId) {
+        Segment[] currentSegments = this.segments;
+        if (currentSegments == null) {
+            return;
+        }
+
+        for (Segment segment : currentSegments) {
+            this.invalidationCount.add(segment.removeService(serviceId));
+        }
+    }
+
+    private void put(Key key, Object value) {
+        Segment[] currentSegments = this.segments;
+        if (currentSegments == null) {
+            return;
+        }
+
+        long expiresAt = 0;
+        long currentTimeToLive = this.timeToLive;
+        if (currentTimeToLive > 0) {
+            // 0 means no expiry
+            expiresAt = (System.nanoTime() + MILLISECONDS.toNanos(currentTimeToLive)) | 1;
+        }
+
+        int segmentSize = (this.maximumSize + currentSegments.length - 1) / currentSegments.length;
+        getSegment(currentSegments, key).put(key, new Entry(value, expiresAt), segmentSize);
+    }
+
+    public enum EvictionPolicy {
+        /**
+         * Evict the least recently used entry.
+         */
+        LRU,
+        /**
+         * Evict the least frequently used entry, the least recently used one among equally frequently used entries.
+         */
+        LFU
+    }
+
+    private interface Store {
+
+        void clear();
+
+        Key evict();
+
+        Entry get(Key key);
+
+        void put(Key key, Entry entry);
+
+        boolean remove(Key key);
+
+        List<Key> removeIf(Predicate<Key> condition);
+
+        int size();
+    }
+
+    private static final class Entry {
+
+        private final Object value;
+        private final long expiresAt;
+        private int frequency = 1;
+
+        public Entry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Key {
+
+        private final long bundleId;
+        private final long serviceId;
+        private final Method method;
+        private final Object[] arguments;
+        private final int hashCode;
+
+        public Key(long bundleId, long serviceId, Method method, Object[] arguments) {
+            this.bundleId = bundleId;
+            this.serviceId = serviceId;
+            this.method = method;
+            this.arguments = arguments;
+            this.hashCode = 31 * (31 * Long.hashCode(serviceId) + method.hashCode()) + Arrays.deepHashCode(arguments);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) obj;
+            return this.serviceId == other.serviceId && this.method.equals(other.method)
+                && Arrays.deepEquals(this.arguments, other.arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+    }
+
+    /**
+     * Keeps the keys in buckets of equal frequency, each bucket ordered by recency, so that all operations take constant time.
+     */
+    private static final class LfuStore implements Store {
+
+        private final Map<Key, Entry> entries = new HashMap<>();
+        private final Map<Integer, LinkedHashSet<Key>> frequencies = new HashMap<>();
+        private int minimumFrequency;
+
+        @Override
+        public void clear() {
+            this.entries.clear();
+            this.frequencies.clear();
+        }
+
+        @Override
+        public Key evict() {
+            LinkedHashSet<Key> keys = this.frequencies.get(this.minimumFrequency);
+            Key key = keys.iterator().next();
+            this.remove(key);
+            return key;
+        }
+
+        @Override
+        public Entry get(Key key) {
+            Entry entry = this.entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+
+            entry.frequency++;
+            this.frequencies.computeIfAbsent(entry.frequency, frequency -> new LinkedHashSet<>()).add(key);
+            this.removeFrequency(key, entry.frequency - 1);
+            return entry;
+        }
+
+        @Override
+        public void put(Key key, Entry entry) {
+            Entry previousEntry = this.entries.put(key, entry);
+            if (previousEntry != null) {
+                this.removeFrequency(key, previousEntry.frequency);
+            }
+
+            this.frequencies.computeIfAbsent(entry.frequency, frequency -> new LinkedHashSet<>()).add(key);
+            this.minimumFrequency = entry.frequency;
+        }
+
+        @Override
+        public boolean remove(Key key) {
+            Entry entry = this.entries.remove(key);
+            if (entry == null) {
+                return false;
+            }
+
+            this.removeFrequency(key, entry.frequency);
+            return true;
+        }
+
+        @Override
+        public List<Key> removeIf(Predicate<Key> condition) {
+            List<Key> keys = new ArrayList<>();
+            for (Key key : this.entries.keySet()) {
+                if (condition.test(key)) {
+                    keys.add(key);
+                }
+            }
+
+            for (Key key : keys) {
+                this.remove(key);
+            }
+            return keys;
+        }
+
+        @Override
+        public int size() {
+            return this.entries.size();
+        }
+
+        private void removeFrequency(Key key, int frequency) {
+            LinkedHashSet<Key> keys = this.frequencies.get(frequency);
+            keys.remove(key);
+            if (!keys.isEmpty()) {
+                return;
+            }
+
+            this.frequencies.remove(frequency);
+            if (this.minimumFrequency == frequency) {
+                this.updateMinimumFrequency(frequency);
+            }
+        }
+
+        private void updateMinimumFrequency(int removedFrequency) {
+            if (this.entries.isEmpty()) {
+                this.minimumFrequency = 0;
+                return;
+            }
+
+            // after a hit, the entry is in the next bucket; otherwise search the remaining buckets
+            if (this.frequencies.containsKey(removedFrequency + 1)) {
+                this.minimumFrequency = removedFrequency + 1;
+                return;
+            }
+            this.minimumFrequency = Collections.min(this.frequencies.keySet());
+        }
+    }
+
+    private static final class LruStore implements Store {
+
+        private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        @Override
+        public void clear() {
+            this.entries.clear();
+        }
+
+        @Override
+        public Key evict() {
+            Iterator<Key> iterator = this.entries.keySet().iterator();
+            Key key = iterator.next();
+            iterator.remove();
+            return key;
+        }
+
+        @Override
+        public Entry get(Key key) {
+            return this.entries.get(key);
+        }
+
+        @Override
+        public void put(Key key, Entry entry) {
+            this.entries.put(key, entry);
+        }
+
+        @Override
+        public boolean remove(Key key) {
+            return this.entries.remove(key) != null;
+        }
+
+        @Override
+        public List<Key> removeIf(Predicate<Key> condition) {
+            List<Key> keys = new ArrayList<>();
+            for (Iterator<Key> iterator = this.entries.keySet().iterator(); iterator.hasNext();) {
+                Key key = iterator.next();
+                if (condition.test(key)) {
+                    iterator.remove();
+                    keys.add(key);
+                }
+            }
+            return keys;
+        }
+
+        @Override
+        public int size() {
+            return this.entries.size();
+        }
+    }
+
+    private final class CachingInvocationHandler extends InstrumentingInvocationHandler {
+
+        private final ServiceReference<?> reference;
+        private final long bundleId;
+        private final long serviceId;
+
+        public CachingInvocationHandler(Object service, ServiceReference<?> reference) {
+            super(service);
+            this.reference = reference;
+            this.bundleId = reference.getBundle().getBundleId();
+            this.serviceId = getServiceId(reference);
+            ServiceResultCache.this.instrumentedServiceIds.add(this.serviceId);
+        }
+
+        @Override
+        protected Object invokeInstrumented(Method method, Object[] args) throws Throwable {
+            if (!method.isAnnotationPresent(CacheableResult.class)) {
+                return this.invokeService(method, args);
+            }
+
+            Key key = new Key(this.bundleId, this.serviceId, method, copyArguments(args));
+            Object cachedResult = ServiceResultCache.this.get(key);
+            if (cachedResult != null) {
+                ServiceResultCache.this.hitCount.increment();
+                return cachedResult == NULL_RESULT ? null : cachedResult;
+            }
+
+            ServiceResultCache.this.missCount.increment();
+            Object result = this.invokeService(method, args);
+
+            // the service might have been unregistered during the invocation
+            if (this.reference.getBundle() != null) {
+                ServiceResultCache.this.put(key, result == null ? NULL_RESULT : result);
+                if (this.reference.getBundle() == null) {
+                    ServiceResultCache.this.invalidate(key);
+                }
+            }
+            return result;
+        }
+    }
+
+    private class InvalidationListener implements SynchronousBundleListener, ServiceListener {
+
+        @Override
+        public void bundleChanged(BundleEvent event) {
+            switch (event.getType()) {
+                case BundleEvent.STOPPED:
+                case BundleEvent.UPDATED:
+                case BundleEvent.UNRESOLVED:
+                case BundleEvent.UNINSTALLED:
+                    ServiceResultCache.this.invalidateBundle(event.getBundle());
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void serviceChanged(ServiceEvent event) {
+            if (event.getType() == ServiceEvent.REGISTERED) {
+                return;
+            }
+
+            long serviceId = getServiceId(event.getServiceReference());
+            if (event.getType() == ServiceEvent.UNREGISTERING) {
+                if (!ServiceResultCache.this.instrumentedServiceIds.remove(serviceId)) {
+                    return;
+                }
+            } else if (!ServiceResultCache.this.instrumentedServiceIds.contains(serviceId)) {
+                return;
+            }
+
+            ServiceResultCache.this.invalidateService(serviceId);
+        }
+    }
+
+    /**
+     * A part of the entries with its own lock. The keys are additionally indexed by their service.
+     */
+    private final class Segment {
+
+        private final Store store;
+        private final Map<Long, Set<Key>> keysByService = new HashMap<>();
+
+        public Segment(Store store) {
+            this.store = store;
+        }
+
+        public synchronized void clear() {
+            this.store.clear();
+            this.keysByService.clear();
+        }
+
+        public synchronized Object get(Key key) {
+            Entry entry = this.store.get(key);
+            if (entry == null) {
+                return null;
+            }
+
+            if (entry.expiresAt != 0 && System.nanoTime() - entry.expiresAt >= 0) {
+                this.store.remove(key);
+                this.removeKey(key);
+                ServiceResultCache.this.expirationCount.increment();
+                return null;
+            }
+
+            return entry.value;
+        }
+
+        public synchronized void put(Key key, Entry entry, int maximumSize) {
+            this.store.remove(key);
+            while (this.store.size() >= maximumSize) {
+                this.removeKey(this.store.evict());
+                ServiceResultCache.this.evictionCount.increment();
+            }
+            this.store.put(key, entry);
+            this.keysByService.computeIfAbsent(key.serviceId, serviceId -> new HashSet<>()).add(key);
+        }
+
+        public synchronized boolean remove(Key key) {
+            if (!this.store.remove(key)) {
+                return false;
+            }
+
+            this.removeKey(key);
+            return true;
+        }
+
+        public synchronized int removeIf(Predicate<Key> condition) {
+            List<Key> keys = this.store.removeIf(condition);
+            for (Key key : keys) {
+                this.removeKey(key);
+            }
+            return keys.size();
+        }
+
+        public synchronized int removeService(long serviceId) {
+            Set<Key> keys = this.keysByService.remove(serviceId);
+            if (keys == null) {
+                return 0;
+            }
+
+            for (Key key : keys) {
+                this.store.remove(key);
+            }
+            return keys.size();
+        }
+
+        public synchronized int size() {
+            return this.store.size();
+        }
+
+        private void removeKey(Key key) {
+            Set<Key> keys = this.keysByService.get(key.serviceId);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                this.keysByService.remove(key.serviceId);
+            }
+        }
+    }
+}
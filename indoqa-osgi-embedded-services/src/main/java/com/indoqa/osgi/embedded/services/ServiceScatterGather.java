@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.indoqa.osgi.embedded.services.ScatterGatherResult.Outcome;
+import com.indoqa.osgi.embedded.services.ScatterGatherResult.Status;
+
+/**
+ * Invokes a call on all services of a {@link TrackedServices} instance concurrently and gathers the results in the order of the
+ * service ranking. The latency of an invocation is the latency of the slowest service instead of the sum of all latencies.
+ * <p/>
+ * The calls run on the given executor, which should be bounded, e.g. a {@link ManagedExecutorService} or a fixed thread pool. Each
+ * invocation has a deadline: calls that haven't completed by then are cancelled, their threads are interrupted and they are
+ * reported as {@link Status#TIMED_OUT}, while the results of all other services are returned as partial result.
+ *
+ * <pre>
+ * ScatterGatherResult&lt;DateService, String&gt; dates = this.scatterGather.invoke(DateService::getDate, 200);
+ * for (String date : dates.getResults()) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * @param <T> The type of the invoked services.
+ */
+public final class ServiceScatterGather<T> {
+
+    private final TrackedServices<T> trackedServices;
+    private final Executor executor;
+
+    public ServiceScatterGather(TrackedServices<T> trackedServices, Executor executor) {
+        this.trackedServices = Objects.requireNonNull(trackedServices);
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    /**
+     * Invoke the call on all services that are tracked at the time of the invocation and wait until all calls have completed or
+     * the timeout has elapsed.
+     *
+     * @param timeout The maximum time to wait for the results in milliseconds.
+     * @throws InterruptedException If the calling thread was interrupted while waiting. All pending calls are cancelled.
+     */
+    public <R> ScatterGatherResult<T, R> invoke(ServiceCall<? super T, ? extends R> call, long timeout)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        List<T> services = this.trackedServices.getServices();
+        CountDownLatch latch = new CountDownLatch(services.size());
+
+        List<Call<T, R>> calls = new ArrayList<>(services.size());
+        for (T service : services) {
+            Call<T, R> serviceCall = new Call<>(service, call, latch);
+            calls.add(serviceCall);
+
+            try {
+                this.executor.execute(serviceCall);
+            } catch (RejectedExecutionException e) {
+                serviceCall.reject(e);
+            }
+        }
+
+        try {
+            latch.await(timeout, MILLISECONDS);
+        } catch (InterruptedException e) {
+            for (Call<T, R> serviceCall : calls) {
+                serviceCall.cancel(true);
+            }
+            throw e;
+        }
+
+        long end = System.nanoTime();
+        List<Outcome<T, R>> outcomes = new ArrayList<>(calls.size());
+        for (Call<T, R> serviceCall : calls) {
+            outcomes.add(serviceCall.toOutcome(start, end));
+        }
+        return new ScatterGatherResult<>(outcomes, end - start);
+    }
+
+    @FunctionalInterface
+    public interface ServiceCall<T, R> {
+
+        R call(T service) throws Exception;
+    }
+
+    private static final class Call<T, R> extends FutureTask<R> {
+
+        private final T service;
+        private final CountDownLatch latch;
+        private volatile long completed;
+        private volatile Throwable rejection;
+
+        public Call(T service, ServiceCall<? super T, ? extends R> call, CountDownLatch latch) {
+            super(() -> call.call(service));
+            this.service = service;
+            this.latch = latch;
+        }
+
+        public void reject(RejectedExecutionException e) {
+            this.rejection = e;
+            this.cancel(false);
+        }
+
+        public Outcome<T, R> toOutcome(long start, long end) {
+            // a call that completes concurrently can't be cancelled anymore and reports its result
+            if (!this.isDone() && this.cancel(true)) {
+                return new Outcome<>(this.service, Status.TIMED_OUT, null, null, end - start);
+            }
+
+            // done() might not have recorded the completion yet
+            long completedAt = this.completed;
+            long latency = (completedAt == 0 ? end : completedAt) - start;
+            if (this.rejection != null) {
+                return new Outcome<>(this.service, Status.FAILED, null, this.rejection, latency);
+            }
+
+            try {
+                return new Outcome<>(this.service, Status.COMPLETED, this.get(), null, latency);
+            } catch (ExecutionException e) {
+                return new Outcome<>(this.service, Status.FAILED, null, e.getCause(), latency);
+            } catch (InterruptedException e) {
+                // not possible, the call is done
+                Thread.currentThread().interrupt();
+                return new Outcome<>(this.service, Status.FAILED, null, e, latency);
+            }
+        }
+
+        @Override
+        protected void done() {
+            this.completed = System.nanoTime();
+            this.latch.countDown();
+        }
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+
+/**
+ * Tracks all OSGi services of a particular type and publishes them as an immutable snapshot whenever a service is added, modified
+ * or removed. The snapshot is sorted by service ranking (highest first) and read through a volatile reference, which means that
+ * {@link #getServices()} and {@link #getService()} neither lock nor allocate. Each published snapshot increments the
+ * {@link #getVersion() version} so that callers can cheaply detect changes.
+ * <p/>
+ * Typical usage within an {@link EmbeddedOSGiServiceProvider}:
+ *
+ * <pre>
+ * public void initialize(BundleContext bundleContext) {
+ *     this.dateServices = new TrackedServices&lt;&gt;(bundleContext, DateService.class);
+ *     this.dateServices.open();
+ * }
+ * </pre>
+ *
+ * The invocation latencies of the tracked services can be measured by setting {@link #setInvocationMetrics(ServiceInvocationMetrics)}
+ * before opening the instance. In this case all services are wrapped into timing proxies, which requires <code>T</code> to be an
+ * interface. The same applies to {@link #setResourceAccounting(BundleResourceAccounting)}, which attributes the CPU time and heap
+ * allocations of the invocations to the providing bundles, and to {@link #setServiceIsolation(ServiceIsolation)}, which guards the
+ * invocations by the bulkhead and the circuit breaker of the providing bundle. {@link #setResultCache(ServiceResultCache)} memoizes
+ * the results of the methods annotated with {@link CacheableResult}, so that cached invocations don't reach the service at all.
+ * <p/>
+ * Host code that always calls the service with the highest ranking can hold the proxy of {@link #createProxy()} instead of looking
+ * up the service on each call.
+ * <p/>
+ * With {@link #setHotSwap(boolean)}, only the services of the newest active bundle of each symbolic name are published. A new
+ * version of a plugin that is installed side by side with the old one replaces its services in a single snapshot as soon as it is
+ * active and warmed up, so callers never see an empty list while the plugin is being swapped. A plugin that needs to warm up,
+ * e.g. to fill its caches, registers its services with the property {@link #SERVICE_WARMING} set to <code>true</code> and removes
+ * it by {@link org.osgi.framework.ServiceRegistration#setProperties} once it is ready.
+ *
+ * @param <T> The type of the tracked services.
+ */
+public class TrackedServices<T> {
+
+    /**
+     * The service property that marks a service whose bundle is still warming up, see {@link #setHotSwap(boolean)}.
+     */
+    public static final String SERVICE_WARMING = "com.indoqa.osgi.embedded.warming";
+
+    private final BundleContext bundleContext;
+    private final Class<T> type;
+    private final ServiceTracker<T, T> serviceTracker;
+    private final Map<ServiceReference<T>, T> services = new HashMap<>();
+    private final List<DynamicServiceProxy<T>> proxies = new CopyOnWriteArrayList<>();
+
+    private volatile Snapshot<T> snapshot = Snapshot.empty();
+    private ServiceInvocationMetrics invocationMetrics;
+    private BundleResourceAccounting resourceAccounting;
+    private ServiceIsolation serviceIsolation;
+    private ServiceResultCache resultCache;
+    private boolean hotSwap;
+    private SynchronousBundleListener hotSwapListener;
+
+    public TrackedServices(BundleContext bundleContext, Class<T> type) {
+        this(bundleContext, type, null);
+    }
+
+    /**
+     * @param filter An additional LDAP filter the service properties have to match or <code>null</code>.
+     */
+    public TrackedServices(BundleContext bundleContext, Class<T> type, String filter) {
+        this.bundleContext = bundleContext;
+        this.type = type;
+        this.serviceTracker = new ServiceTracker<>(bundleContext, createFilter(bundleContext, type, filter), new Customizer());
+    }
+
+    /**
+     * @return <code>true</code> if the given service is registered with the property {@link #SERVICE_WARMING} set to
+     *         <code>true</code>.
+     */
+    public static boolean isWarming(ServiceReference<?> reference) {
+        Object warming = reference.getProperty(SERVICE_WARMING);
+        return Boolean.TRUE.equals(warming) || "true".equals(warming);
+    }
+
+    static Filter createFilter(BundleContext bundleContext, Class<?> type, String filter) {
+        String objectClassFilter = "(" + Constants.OBJECTCLASS + "=" + type.getName() + ")";
+
+        try {
+            if (filter == null || filter.isEmpty()) {
+                return bundleContext.createFilter(objectClassFilter);
+            }
+            return bundleContext.createFilter("(&" + objectClassFilter + filter + ")");
+        } catch (InvalidSyntaxException e) {
+            throw new IllegalArgumentException("Invalid service filter '" + filter + "'.", e);
+        }
+    }
+
+    private static Bundle getCurrentBundle(Bundle bundle, Bundle otherBundle) {
+        boolean ready = isReady(bundle);
+        if (ready != isReady(otherBundle)) {
+            return ready ? bundle : otherBundle;
+        }
+        return bundle.getBundleId() > otherBundle.getBundleId() ? bundle : otherBundle;
+    }
+
+    private static boolean isPublished(ServiceReference<?> reference, Map<String, Bundle> currentBundles) {
+        Bundle bundle = reference.getBundle();
+        if (bundle == null) {
+            return true;
+        }
+
+        Bundle currentBundle = currentBundles.get(bundle.getSymbolicName());
+        return currentBundle == null || currentBundle == bundle;
+    }
+
+    private static boolean isReady(Bundle bundle) {
+        if (bundle.getState() != Bundle.ACTIVE) {
+            return false;
+        }
+
+        ServiceReference<?>[] references = bundle.getRegisteredServices();
+        if (references != null) {
+            for (ServiceReference<?> reference : references) {
+                if (isWarming(reference)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSameServices(List<?> services, List<?> otherServices) {
+        if (services.size() != otherServices.size()) {
+            return false;
+        }
+
+        for (int i = 0; i < services.size(); i++) {
+            if (services.get(i) != otherServices.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void close() {
+        this.serviceTracker.close();
+
+        if (this.hotSwapListener != null) {
+            this.bundleContext.removeBundleListener(this.hotSwapListener);
+            this.hotSwapListener = null;
+        }
+    }
+
+    /**
+     * Create a proxy that routes each invocation to the service with the highest ranking at the time of the invocation. The proxy
+     * stays valid while services come and go and can be kept as singleton. Invocations while no service is available throw a
+     * {@link ServiceUnavailableException}; <code>equals</code>, <code>hashCode</code> and <code>toString</code> refer to the proxy
+     * itself. <code>T</code> has to be a public interface.
+     */
+    public T createProxy() {
+        DynamicServiceProxy<T> proxy = new DynamicServiceProxy<>(this.type);
+
+        synchronized (this.services) {
+            proxy.bind(this.snapshot.first);
+            this.proxies.add(proxy);
+        }
+
+        return proxy.getProxy();
+    }
+
+    /**
+     * @return The service with the highest ranking or <code>null</code> if no service is available.
+     */
+    public T getService() {
+        return this.snapshot.first;
+    }
+
+    /**
+     * @return An immutable list of all tracked services sorted by service ranking, highest first.
+     */
+    public List<T> getServices() {
+        return this.snapshot.services;
+    }
+
+    public Class<T> getType() {
+        return this.type;
+    }
+
+    /**
+     * @return A number that is incremented whenever the set of tracked services or their ranking changes.
+     */
+    public long getVersion() {
+        return this.snapshot.version;
+    }
+
+    public boolean isEmpty() {
+        return this.snapshot.services.isEmpty();
+    }
+
+    public void open() {
+        if (this.hotSwapListener == null && this.hotSwap) {
+            this.hotSwapListener = new HotSwapListener();
+            this.bundleContext.addBundleListener(this.hotSwapListener);
+        }
+
+        this.serviceTracker.open();
+    }
+
+    /**
+     * Only publish the services of the newest active bundle of each symbolic name and hide the services of the bundles it
+     * supersedes. This has to be set before calling {@link #open()}.
+     */
+    public TrackedServices<T> setHotSwap(boolean hotSwap) {
+        this.hotSwap = hotSwap;
+        return this;
+    }
+
+    /**
+     * Measure the invocation latencies of all tracked services. This has to be set before calling {@link #open()}.
+     */
+    public TrackedServices<T> setInvocationMetrics(ServiceInvocationMetrics invocationMetrics) {
+        if (invocationMetrics != null) {
+            ServiceInstrumentation.checkInterface(this.type);
+        }
+
+        this.invocationMetrics = invocationMetrics;
+        return this;
+    }
+
+    /**
+     * Attribute the CPU time and heap allocations of all invocations of the tracked services to the bundles that provide them. This
+     * has to be set before calling {@link #open()}.
+     */
+    public TrackedServices<T> setResourceAccounting(BundleResourceAccounting resourceAccounting) {
+        if (resourceAccounting != null) {
+            ServiceInstrumentation.checkInterface(this.type);
+        }
+
+        this.resourceAccounting = resourceAccounting;
+        return this;
+    }
+
+    /**
+     * Memoize the results of all methods of the tracked services that are annotated with {@link CacheableResult}. The cache has to
+     * be opened by the caller. This has to be set before calling {@link #open()}.
+     */
+    public TrackedServices<T> setResultCache(ServiceResultCache resultCache) {
+        if (resultCache != null) {
+            ServiceInstrumentation.checkInterface(this.type);
+        }
+
+        this.resultCache = resultCache;
+        return this;
+    }
+
+    /**
+     * Limit the concurrent invocations of the tracked services per providing bundle and stop invoking the services of bundles
+     * that fail or respond slowly. Rejected invocations throw a {@link ServiceRejectedException}. This has to be set before
+     * calling {@link #open()}.
+     */
+    public TrackedServices<T> setServiceIsolation(ServiceIsolation serviceIsolation) {
+        if (serviceIsolation != null) {
+            ServiceInstrumentation.checkInterface(this.type);
+        }
+
+        this.serviceIsolation = serviceIsolation;
+        return this;
+    }
+
+    public int size() {
+        return this.snapshot.services.size();
+    }
+
+    private List<T> getPublishedServices() {
+        List<ServiceReference<T>> references = new ArrayList<>(this.services.keySet());
+        // ServiceReference#compareTo orders by ranking and service id, the highest ranked service being the greatest one
+        references.sort(Collections.reverseOrder());
+
+        Map<String, Bundle> currentBundles = this.hotSwap ? this.getCurrentBundles(references) : Collections.emptyMap();
+
+        List<T> sortedServices = new ArrayList<>(references.size());
+        for (ServiceReference<T> reference : references) {
+            if (isPublished(reference, currentBundles)) {
+                sortedServices.add(this.services.get(reference));
+            }
+        }
+        return sortedServices;
+    }
+
+    private Map<String, Bundle> getCurrentBundles(List<ServiceReference<T>> references) {
+        Map<String, Bundle> currentBundles = new HashMap<>();
+
+        for (ServiceReference<T> reference : references) {
+            Bundle bundle = reference.getBundle();
+            if (bundle != null && bundle.getSymbolicName() != null) {
+                currentBundles.merge(bundle.getSymbolicName(), bundle, TrackedServices::getCurrentBundle);
+            }
+        }
+
+        return currentBundles;
+    }
+
+    private void publish() {
+        this.setSnapshot(this.getPublishedServices());
+    }
+
+    private void setSnapshot(List<T> publishedServices) {
+        Snapshot<T> newSnapshot = new Snapshot<>(publishedServices, this.snapshot.version + 1);
+        this.snapshot = newSnapshot;
+
+        for (DynamicServiceProxy<T> proxy : this.proxies) {
+            proxy.bind(newSnapshot.first);
+        }
+    }
+
+    private static final class Snapshot<T> {
+
+        private static final Snapshot<?> EMPTY = new Snapshot<>(Collections.emptyList(), 0);
+
+        private final List<T> services;
+        private final T first;
+        private final long version;
+
+        private Snapshot(List<T> services, long version) {
+            this.services = Collections.unmodifiableList(services);
+            this.first = services.isEmpty() ? null : services.get(0);
+            this.version = version;
+        }
+
+        @SuppressWarnings("unchecked")
+        public static <T> Snapshot<T> empty() {
+            return (Snapshot<T>) EMPTY;
+        }
+    }
+
+    private class HotSwapListener implements SynchronousBundleListener {
+
+        @Override
+        public void bundleChanged(BundleEvent event) {
+            if (event.getType() != BundleEvent.STARTED && event.getType() != BundleEvent.STOPPING) {
+                return;
+            }
+
+            synchronized (TrackedServices.this.services) {
+                List<T> publishedServices = TrackedServices.this.getPublishedServices();
+                if (!isSameServices(publishedServices, TrackedServices.this.snapshot.services)) {
+                    TrackedServices.this.setSnapshot(publishedServices);
+                }
+            }
+        }
+    }
+
+    private class Customizer implements ServiceTrackerCustomizer<T, T> {
+
+        @Override
+        public T addingService(ServiceReference<T> reference) {
+            T service = TrackedServices.this.bundleContext.getService(reference);
+            if (service == null) {
+                return null;
+            }
+
+            BundleResourceAccounting accounting = TrackedServices.this.resourceAccounting;
+            if (accounting != null) {
+                service = accounting.instrument(TrackedServices.this.type, reference, service);
+            }
+
+            ServiceInvocationMetrics metrics = TrackedServices.this.invocationMetrics;
+            if (metrics != null) {
+                service = metrics.instrument(TrackedServices.this.type, reference, service);
+            }
+
+            ServiceIsolation isolation = TrackedServices.this.serviceIsolation;
+            if (isolation != null) {
+                service = isolation.instrument(TrackedServices.this.type, reference, service);
+            }
+
+            ServiceResultCache cache = TrackedServices.this.resultCache;
+            if (cache != null) {
+                service = cache.instrument(TrackedServices.this.type, reference, service);
+            }
+
+            synchronized (TrackedServices.this.services) {
+                TrackedServices.this.services.put(reference, service);
+                TrackedServices.this.publish();
+            }
+            return service;
+        }
+
+        @Override
+        public void modifiedService(ServiceReference<T> reference, T service) {
+            synchronized (TrackedServices.this.services) {
+                TrackedServices.this.publish();
+            }
+        }
+
+        @Override
+        public void removedService(ServiceReference<T> reference, T service) {
+            synchronized (TrackedServices.this.services) {
+                TrackedServices.this.services.remove(reference);
+                TrackedServices.this.publish();
+            }
+            TrackedServices.this.bundleContext.ungetService(reference);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services.buffers;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct {@link ByteBuffer}s that are sliced from large arenas, so the host application and the bundles can exchange
+ * bulk data without copying it into byte arrays and without allocating memory per message. Buffers are pooled in power-of-two
+ * size classes between {@link #MIN_BUFFER_SIZE} and the arena size; larger requests get a dedicated buffer that isn't pooled.
+ * <p/>
+ * The pool is thread-safe. Typical usage together with a {@link SpscRing}:
+ *
+ * <pre>
+ * // producer
+ * PooledBuffer pooledBuffer = bufferPool.acquire(payloadSize);
+ * writePayload(pooledBuffer.buffer());
+ * ((Buffer) pooledBuffer.buffer()).flip();
+ * while (!ring.offer(pooledBuffer)) {
+ *     Thread.yield();
+ * }
+ *
+ * // consumer
+ * PooledBuffer pooledBuffer = ring.poll();
+ * if (pooledBuffer != null) {
+ *     try {
+ *         readPayload(pooledBuffer.buffer());
+ *     } finally {
+ *         pooledBuffer.release();
+ *     }
+ * }
+ * </pre>
+ */
+public final class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 4 * 1024;
+    public static final int DEFAULT_ARENA_SIZE = 4 * 1024 * 1024;
+
+    private static final int MIN_SIZE_SHIFT = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    private static final int INITIAL_FREE_LIST_CAPACITY = 16;
+
+    private final int arenaSize;
+    private final FreeList[] freeLists;
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    public BufferPool() {
+        this(DEFAULT_ARENA_SIZE);
+    }
+
+    /**
+     * @param arenaSize The size of the memory blocks buffers are sliced from, it is rounded up to the next power of two.
+     */
+    public BufferPool(int arenaSize) {
+        if (arenaSize < MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("The arena size has to be at least " + MIN_BUFFER_SIZE + " bytes: " + arenaSize);
+        }
+
+        this.arenaSize = roundUpToPowerOfTwo(arenaSize);
+        this.freeLists = new FreeList[getSizeClass(this.arenaSize) + 1];
+        for (int i = 0; i < this.freeLists.length; i++) {
+            this.freeLists[i] = new FreeList();
+        }
+    }
+
+    private static int getSizeClass(int capacity) {
+        int size = roundUpToPowerOfTwo(Math.max(capacity, MIN_BUFFER_SIZE));
+        return Integer.numberOfTrailingZeros(size) - MIN_SIZE_SHIFT;
+    }
+
+    private static int roundUpToPowerOfTwo(int value) {
+        int highestOneBit = Integer.highestOneBit(value);
+        return highestOneBit == value ? value : highestOneBit << 1;
+    }
+
+    /**
+     * @return A cleared buffer whose limit is the given capacity.
+     */
+    public PooledBuffer acquire(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("The capacity must not be negative: " + capacity);
+        }
+
+        if (capacity > this.arenaSize) {
+            PooledBuffer unpooledBuffer = new PooledBuffer(null, -1, ByteBuffer.allocateDirect(capacity));
+            unpooledBuffer.reset(capacity);
+            return unpooledBuffer;
+        }
+
+        int sizeClass = getSizeClass(capacity);
+        PooledBuffer pooledBuffer = this.freeLists[sizeClass].pop();
+        if (pooledBuffer == null) {
+            pooledBuffer = this.allocateArena(sizeClass);
+        }
+
+        pooledBuffer.reset(capacity);
+        return pooledBuffer;
+    }
+
+    /**
+     * @return The number of bytes of direct memory allocated for arenas.
+     */
+    public long getAllocatedBytes() {
+        return this.allocatedBytes.get();
+    }
+
+    public int getArenaSize() {
+        return this.arenaSize;
+    }
+
+    void release(PooledBuffer pooledBuffer) {
+        this.freeLists[pooledBuffer.getSizeClass()].push(pooledBuffer);
+    }
+
+    /**
+     * Allocate a new arena, slice it into buffers of the given size class and keep all of them but one in the free list.
+     */
+    private PooledBuffer allocateArena(int sizeClass) {
+        int bufferSize = MIN_BUFFER_SIZE << sizeClass;
+        ByteBuffer arena = ByteBuffer.allocateDirect(this.arenaSize);
+        this.allocatedBytes.addAndGet(this.arenaSize);
+
+        PooledBuffer first = null;
+        for (int offset = 0; offset < this.arenaSize; offset += bufferSize) {
+            ((Buffer) arena).limit(offset + bufferSize).position(offset);
+            PooledBuffer pooledBuffer = new PooledBuffer(this, sizeClass, arena.slice());
+            if (first == null) {
+                first = pooledBuffer;
+            } else {
+                this.freeLists[sizeClass].push(pooledBuffer);
+            }
+        }
+
+        return first;
+    }
+
+    /**
+     * An array based stack, which doesn't allocate once it has grown to the number of buffers of its size class.
+     */
+    private static final class FreeList {
+
+        private PooledBuffer[] buffers = new PooledBuffer[INITIAL_FREE_LIST_CAPACITY];
+        private int size;
+
+        public synchronized PooledBuffer pop() {
+            if (this.size == 0) {
+                return null;
+            }
+
+            PooledBuffer pooledBuffer = this.buffers[--this.size];
+            this.buffers[this.size] = null;
+            return pooledBuffer;
+        }
+
+        public synchronized void push(PooledBuffer pooledBuffer) {
+            if (this.size == this.buffers.length) {
+                PooledBuffer[] newBuffers = new PooledBuffer[this.size * 2];
+                System.arraycopy(this.buffers, 0, newBuffers, 0, this.size);
+                this.buffers = newBuffers;
+            }
+            this.buffers[this.size++] = pooledBuffer;
+        }
+    }
+}
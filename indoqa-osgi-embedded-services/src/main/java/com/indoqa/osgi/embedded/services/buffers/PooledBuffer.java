@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services.buffers;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A direct {@link ByteBuffer} borrowed from a {@link BufferPool}. Ownership is passed along with the instance, e.g. through a
+ * {@link SpscRing}: the producer acquires and fills it, the consumer reads it and releases it. A buffer must not be used after it
+ * has been released.
+ */
+public final class PooledBuffer implements AutoCloseable {
+
+    private static final AtomicIntegerFieldUpdater<PooledBuffer> RELEASED = AtomicIntegerFieldUpdater.newUpdater(
+        PooledBuffer.class,
+        "released");
+
+    private final BufferPool pool;
+    private final int sizeClass;
+    private final ByteBuffer buffer;
+    private volatile int released;
+
+    PooledBuffer(BufferPool pool, int sizeClass, ByteBuffer buffer) {
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+        this.buffer = buffer;
+    }
+
+    /**
+     * @return The underlying buffer. Its capacity may be larger than the requested capacity, its limit is set to the requested
+     *         capacity when the buffer is acquired.
+     */
+    public ByteBuffer buffer() {
+        return this.buffer;
+    }
+
+    /**
+     * @see #release()
+     */
+    @Override
+    public void close() {
+        this.release();
+    }
+
+    /**
+     * Return the buffer to its pool.
+     *
+     * @throws IllegalStateException If the buffer has already been released.
+     */
+    public void release() {
+        if (!RELEASED.compareAndSet(this, 0, 1)) {
+            throw new IllegalStateException("The buffer has already been released.");
+        }
+
+        if (this.pool != null) {
+            this.pool.release(this);
+        }
+    }
+
+    int getSizeClass() {
+        return this.sizeClass;
+    }
+
+    void reset(int capacity) {
+        // cast to Buffer, the covariant return types of ByteBuffer don't exist in Java 8
+        ((Buffer) this.buffer).clear().limit(capacity);
+        this.released = 0;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services.buffers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free and allocation-free queue for exactly one producer thread and one consumer thread, typically used to pass
+ * {@link PooledBuffer}s between the host application and a bundle. Both sides only publish their own index with an ordered write
+ * and cache the index of the other side. Each index is kept together with the cached index of the other side in an object that is
+ * padded to the size of a cache line, so the producer and the consumer only read each other's cache line when their cached index
+ * is exhausted, i.e. when the ring looks full or empty.
+ * <p/>
+ * {@link #offer(Object)} must only be called by the producer and {@link #poll()} only by the consumer. Neither method blocks, it is
+ * up to the caller to spin, yield or park while the ring is full or empty.
+ *
+ * @param <E> The type of the elements.
+ */
+public final class SpscRing<E> {
+
+    private final Object[] elements;
+    private final int mask;
+
+    // written by the consumer, caches the tail
+    private final PaddedIndex head = new PaddedIndex();
+    // written by the producer, caches the head
+    private final PaddedIndex tail = new PaddedIndex();
+
+    /**
+     * @param capacity The maximum number of elements, it is rounded up to the next power of two.
+     */
+    public SpscRing(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("The capacity has to be between 1 and 2^30: " + capacity);
+        }
+
+        int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.elements = new Object[size];
+        this.mask = size - 1;
+    }
+
+    public int capacity() {
+        return this.elements.length;
+    }
+
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    /**
+     * Append the given element, this method must only be called by the producer.
+     *
+     * @return <code>false</code> if the ring is full.
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException("The element must not be null.");
+        }
+
+        long currentTail = this.tail.get();
+        if (currentTail - this.tail.cached >= this.elements.length) {
+            this.tail.cached = this.head.get();
+            if (currentTail - this.tail.cached >= this.elements.length) {
+                return false;
+            }
+        }
+
+        this.elements[(int) currentTail & this.mask] = element;
+        this.tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    /**
+     * Remove the oldest element, this method must only be called by the consumer.
+     *
+     * @return The element or <code>null</code> if the ring is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long currentHead = this.head.get();
+        if (currentHead >= this.head.cached) {
+            this.head.cached = this.tail.get();
+            if (currentHead >= this.head.cached) {
+                return null;
+            }
+        }
+
+        int index = (int) currentHead & this.mask;
+        E element = (E) this.elements[index];
+        this.elements[index] = null;
+        this.head.lazySet(currentHead + 1);
+        return element;
+    }
+
+    /**
+     * @return The number of elements, which is only an estimate while the producer or the consumer are active.
+     */
+    public int size() {
+        return (int) Math.max(0, this.tail.get() - this.head.get());
+    }
+
+    /**
+     * An index followed by the cached index of the other side and enough padding to fill a cache line of 64 bytes, so that the two
+     * instances of a ring, which are usually allocated next to each other, don't share a cache line.
+     */
+    @SuppressWarnings("unused")
+    private static final class PaddedIndex extends AtomicLong {
+
+        private static final long serialVersionUID = 1L;
+
+        private long cached;
+        private long padding1;
+        private long padding2;
+        private long padding3;
+        private long padding4;
+        private long padding5;
+        private long padding6;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Version;
+
+import com.indoqa.osgi.embedded.services.CircuitBreaker.State;
+
+public class CircuitBreakerTest {
+
+    private static final long FAST_CALL = MILLISECONDS.toNanos(1);
+
+    private final List<String> transitions = new ArrayList<>();
+
+    private ServiceIsolation settings;
+
+    private static void recordCalls(CircuitBreaker circuitBreaker, int count, boolean failed) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(circuitBreaker.tryAcquirePermission());
+            circuitBreaker.record(FAST_CALL, failed);
+        }
+    }
+
+    @Before
+    public void initialize() {
+        this.settings = new ServiceIsolation()
+            .setWindowSize(4)
+            .setMinimumCalls(4)
+            .setFailureRateThreshold(0.5)
+            .setHalfOpenCalls(2)
+            .setSlowCallThreshold(100);
+        this.settings.addListener(
+            (circuitBreaker, previousState, newState) -> this.transitions.add(previousState + "->" + newState));
+    }
+
+    @Test
+    public void halfOpenClosesAfterSuccessfulTrials() {
+        CircuitBreaker circuitBreaker = this.openCircuitBreaker();
+
+        this.settings.setOpenDuration(0);
+        assertTrue(circuitBreaker.tryAcquirePermission());
+        assertTrue(circuitBreaker.tryAcquirePermission());
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+
+        // only as many trials as half open calls pass
+        assertFalse(circuitBreaker.tryAcquirePermission());
+
+        circuitBreaker.record(FAST_CALL, false);
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+        circuitBreaker.record(FAST_CALL, false);
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        assertEquals(0, circuitBreaker.getFailureRate(), 0);
+        assertEquals(2, circuitBreaker.getRejectedCount());
+        assertEquals("[CLOSED->OPEN, OPEN->HALF_OPEN, HALF_OPEN->CLOSED]", this.transitions.toString());
+    }
+
+    @Test
+    public void halfOpenReopensAfterFailedTrial() {
+        CircuitBreaker circuitBreaker = this.openCircuitBreaker();
+
+        this.settings.setOpenDuration(0);
+        assertTrue(circuitBreaker.tryAcquirePermission());
+        circuitBreaker.record(FAST_CALL, true);
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        assertEquals("[CLOSED->OPEN, OPEN->HALF_OPEN, HALF_OPEN->OPEN]", this.transitions.toString());
+    }
+
+    @Test
+    public void halfOpenReopensAfterHangingTrials() throws InterruptedException {
+        CircuitBreaker circuitBreaker = this.openCircuitBreaker();
+
+        this.settings.setOpenDuration(0);
+        assertTrue(circuitBreaker.tryAcquirePermission());
+        assertTrue(circuitBreaker.tryAcquirePermission());
+        this.settings.setOpenDuration(10_000);
+
+        // neither trial completes within the slow call threshold
+        Thread.sleep(150);
+        assertFalse(circuitBreaker.tryAcquirePermission());
+        assertEquals(State.OPEN, circuitBreaker.getState());
+
+        // trials that complete after the breaker has opened again are ignored
+        circuitBreaker.record(FAST_CALL, false);
+        circuitBreaker.record(FAST_CALL, false);
+        assertEquals(State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidFailureRateThreshold() {
+        this.settings.setFailureRateThreshold(1.5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidHalfOpenCalls() {
+        this.settings.setHalfOpenCalls(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidMinimumCalls() {
+        this.settings.setMinimumCalls(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidSlowCallRateThreshold() {
+        this.settings.setSlowCallRateThreshold(0);
+    }
+
+    @Test
+    public void minimumCallsAboveWindowSize() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("test-bundle", Version.emptyVersion, this.settings);
+        this.settings.setMinimumCalls(10);
+
+        recordCalls(circuitBreaker, 4, true);
+        assertEquals(State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    public void slowCallsOpen() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("test-bundle", Version.emptyVersion, this.settings);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(circuitBreaker.tryAcquirePermission());
+            circuitBreaker.record(MILLISECONDS.toNanos(100), false);
+        }
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        assertEquals(1, circuitBreaker.getSlowCallRate(), 0);
+    }
+
+    @Test
+    public void slidingWindow() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("test-bundle", Version.emptyVersion, this.settings);
+
+        recordCalls(circuitBreaker, 1, true);
+        recordCalls(circuitBreaker, 2, false);
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+
+        // the thresholds are evaluated once the minimum number of calls has been reached
+        recordCalls(circuitBreaker, 1, false);
+        assertEquals(0.25, circuitBreaker.getFailureRate(), 0);
+
+        // the oldest call drops out of the window
+        recordCalls(circuitBreaker, 1, false);
+        assertEquals(0, circuitBreaker.getFailureRate(), 0);
+
+        recordCalls(circuitBreaker, 1, true);
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        recordCalls(circuitBreaker, 1, true);
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        assertEquals(7, circuitBreaker.getCallCount());
+    }
+
+    private CircuitBreaker openCircuitBreaker() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("test-bundle", Version.emptyVersion, this.settings);
+        recordCalls(circuitBreaker, 2, false);
+        recordCalls(circuitBreaker, 2, true);
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.tryAcquirePermission());
+        return circuitBreaker;
+    }
+}
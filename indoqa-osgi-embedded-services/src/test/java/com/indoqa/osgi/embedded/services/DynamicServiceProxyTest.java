@@ -0,0 +1,276 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class DynamicServiceProxyTest {
+
+    private static void assertUnavailable(PrimitiveService proxy) {
+        try {
+            proxy.add(2, 3);
+            fail("The proxy of an unbound service must not return normally.");
+        } catch (ServiceUnavailableException e) {
+            assertTrue(e.getMessage().contains(PrimitiveService.class.getName()));
+        }
+    }
+
+    @Test
+    public void arrayParameters() {
+        DynamicServiceProxy<ArrayService> dynamicServiceProxy = new DynamicServiceProxy<>(ArrayService.class);
+        dynamicServiceProxy.bind(new ArrayService() {
+
+            @Override
+            public int[] lengths(String[] values, int offset) {
+                int[] result = new int[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    result[i] = values[i].length() + offset;
+                }
+                return result;
+            }
+
+            @Override
+            public long sum(long[][] values) {
+                long sum = 0;
+                for (long[] row : values) {
+                    for (long value : row) {
+                        sum += value;
+                    }
+                }
+                return sum;
+            }
+        });
+
+        ArrayService proxy = dynamicServiceProxy.getProxy();
+        assertArrayEquals(new int[] {2, 4}, proxy.lengths(new String[] {"a", "abc"}, 1));
+        assertEquals(10, proxy.sum(new long[][] {{1, 2}, {3, 4}}));
+    }
+
+    @Test
+    public void diamondInterface() {
+        DynamicServiceProxy<DiamondService> dynamicServiceProxy = new DynamicServiceProxy<>(DiamondService.class);
+        dynamicServiceProxy.bind(new DiamondService() {
+
+            @Override
+            public String getName() {
+                return "diamond";
+            }
+
+            @Override
+            public int getSize() {
+                return 3;
+            }
+        });
+
+        DiamondService proxy = dynamicServiceProxy.getProxy();
+        assertEquals("diamond", proxy.getName());
+        assertEquals(3, proxy.getSize());
+        assertEquals("diamond", ((LeftService) proxy).getName());
+        assertEquals("diamond", ((RightService) proxy).getName());
+    }
+
+    @Test
+    public void longAndDoubleParameters() {
+        DynamicServiceProxy<WideService> dynamicServiceProxy = new DynamicServiceProxy<>(WideService.class);
+        dynamicServiceProxy.bind(new WideService() {
+
+            @Override
+            public double scale(double value, long factor, float offset) {
+                return value * factor + offset;
+            }
+
+            @Override
+            public long sum(int first, long second, double third, long fourth) {
+                return first + second + (long) third + fourth;
+            }
+        });
+
+        WideService proxy = dynamicServiceProxy.getProxy();
+        assertEquals(Long.MAX_VALUE, proxy.sum(1, Long.MAX_VALUE - 7, 2.5, 4));
+        assertEquals(7.5, proxy.scale(2.5, 2, 2.5f), 0.0);
+    }
+
+    @Test
+    public void primitiveParameters() {
+        DynamicServiceProxy<PrimitiveService> dynamicServiceProxy = new DynamicServiceProxy<>(PrimitiveService.class);
+        dynamicServiceProxy.bind(new PrimitiveService() {
+
+            @Override
+            public int add(int first, int second) {
+                return first + second;
+            }
+
+            @Override
+            public char next(char value) {
+                return (char) (value + 1);
+            }
+
+            @Override
+            public boolean not(boolean value) {
+                return !value;
+            }
+
+            @Override
+            public short widen(byte value) {
+                return (short) (value * 2);
+            }
+        });
+
+        PrimitiveService proxy = dynamicServiceProxy.getProxy();
+        assertEquals(5, proxy.add(2, 3));
+        assertEquals('b', proxy.next('a'));
+        assertEquals(false, proxy.not(true));
+        assertEquals(-256, proxy.widen(Byte.MIN_VALUE));
+    }
+
+    @Test
+    public void rebindToNullAndBack() {
+        DynamicServiceProxy<PrimitiveService> dynamicServiceProxy = new DynamicServiceProxy<>(PrimitiveService.class);
+        PrimitiveService proxy = dynamicServiceProxy.getProxy();
+        assertUnavailable(proxy);
+
+        dynamicServiceProxy.bind(new AddingService(0));
+        assertEquals(5, proxy.add(2, 3));
+
+        dynamicServiceProxy.bind(null);
+        assertUnavailable(proxy);
+
+        dynamicServiceProxy.bind(new AddingService(10));
+        assertEquals(15, proxy.add(2, 3));
+    }
+
+    @Test
+    public void voidMethods() {
+        int[] counter = new int[1];
+        DynamicServiceProxy<VoidService> dynamicServiceProxy = new DynamicServiceProxy<>(VoidService.class);
+        dynamicServiceProxy.bind(new VoidService() {
+
+            @Override
+            public void increment(long amount) {
+                counter[0] += amount;
+            }
+
+            @Override
+            public void reset() {
+                counter[0] = 0;
+            }
+        });
+
+        VoidService proxy = dynamicServiceProxy.getProxy();
+        proxy.increment(3);
+        proxy.increment(4);
+        assertEquals(7, counter[0]);
+        proxy.reset();
+        assertEquals(0, counter[0]);
+
+        dynamicServiceProxy.bind(null);
+        try {
+            proxy.reset();
+            fail("The proxy of an unbound service must not return normally.");
+        } catch (ServiceUnavailableException e) {
+            assertTrue(e.getMessage().contains(VoidService.class.getName()));
+        }
+    }
+
+    public interface ArrayService {
+
+        int[] lengths(String[] values, int offset);
+
+        long sum(long[][] values);
+    }
+
+    public interface BaseService {
+
+        String getName();
+    }
+
+    public interface DiamondService extends LeftService, RightService {
+
+        int getSize();
+    }
+
+    public interface LeftService extends BaseService {
+
+        @Override
+        String getName();
+    }
+
+    public interface PrimitiveService {
+
+        int add(int first, int second);
+
+        char next(char value);
+
+        boolean not(boolean value);
+
+        short widen(byte value);
+    }
+
+    public interface RightService extends BaseService {
+
+        @Override
+        String getName();
+    }
+
+    public interface VoidService {
+
+        void increment(long amount);
+
+        void reset();
+    }
+
+    public interface WideService {
+
+        double scale(double value, long factor, float offset);
+
+        long sum(int first, long second, double third, long fourth);
+    }
+
+    private static class AddingService implements PrimitiveService {
+
+        private final int offset;
+
+        public AddingService(int offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public int add(int first, int second) {
+            return first + second + this.offset;
+        }
+
+        @Override
+        public char next(char value) {
+            return value;
+        }
+
+        @Override
+        public boolean not(boolean value) {
+            return value;
+        }
+
+        @Override
+        public short widen(byte value) {
+            return value;
+        }
+    }
+}
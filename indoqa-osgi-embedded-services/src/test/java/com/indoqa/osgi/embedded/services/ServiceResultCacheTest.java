@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Indoqa Software Design und Beratung GmbH (Indoqa) under
+ * one or more contributor license agreements. See the NOTICE file distributed
+ * with this work for additional information regarding copyright ownership.
+ * Indoqa licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indoqa.osgi.embedded.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+
+import com.indoqa.osgi.embedded.services.ServiceResultCache.EvictionPolicy;
+
+public class ServiceResultCacheTest {
+
+    private static final long BUNDLE_ID = 5;
+    private static final long SERVICE_ID = 7;
+
+    private final List<ServiceListener> serviceListeners = new ArrayList<>();
+    private final AtomicInteger bundleLookups = new AtomicInteger();
+    private final List<String> invocations = new ArrayList<>();
+
+    private BundleContext bundleContext;
+    private ServiceReference<?> reference;
+    private IntPredicate registered;
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, StubMethod stubMethod) {
+        return (T) Proxy.newProxyInstance(
+            ServiceResultCacheTest.class.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) -> stubMethod.invoke(method.getName(), args));
+    }
+
+    @Before
+    public void initialize() {
+        Bundle bundle = stub(Bundle.class, (name, args) -> {
+            switch (name) {
+                case "getBundleId":
+                    return BUNDLE_ID;
+                case "getSymbolicName":
+                    return "test-bundle";
+                case "getVersion":
+                    return Version.emptyVersion;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+
+        this.registered = lookup -> true;
+        this.reference = stub(ServiceReference.class, (name, args) -> {
+            switch (name) {
+                case "getBundle":
+                    return this.registered.test(this.bundleLookups.incrementAndGet()) ? bundle : null;
+                case "getProperty":
+                    return Constants.SERVICE_ID.equals(args[0]) ? SERVICE_ID : null;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+
+        this.bundleContext = stub(BundleContext.class, (name, args) -> {
+            if ("addServiceListener".equals(name)) {
+                this.serviceListeners.add((ServiceListener) args[0]);
+            }
+            return null;
+        });
+    }
+
+    @Test
+    public void eventsOfOtherServicesAreIgnored() {
+        ServiceResultCache resultCache = new ServiceResultCache(this.bundleContext);
+        resultCache.open();
+        LookupService lookupService = this.instrument(resultCache);
+        lookupService.lookup("a");
+
+        ServiceReference<?> otherReference = stub(ServiceReference.class, (name, args) -> {
+            if ("getProperty".equals(name) && Constants.SERVICE_ID.equals(args[0])) {
+                return SERVICE_ID + 1;
+            }
+            throw new UnsupportedOperationException(name);
+        });
+        this.fireServiceEvent(ServiceEvent.MODIFIED, otherReference);
+        this.fireServiceEvent(ServiceEvent.UNREGISTERING, otherReference);
+
+        assertEquals(0, resultCache.getInvalidationCount());
+        this.assertCached(lookupService, "a");
+
+        resultCache.close();
+    }
+
+    @Test
+    public void expiry() throws InterruptedException {
+        ServiceResultCache resultCache = new ServiceResultCache(this.bundleContext).setTimeToLive(50);
+        resultCache.open();
+        LookupService lookupService = this.instrument(resultCache);
+
+        lookupService.lookup("a");
+        lookupService.lookup("a");
+        assertEquals(1, this.invocations.size());
+
+        Thread.sleep(100);
+        lookupService.lookup("a");
+        assertEquals(2, this.invocations.size());
+        assertEquals(1, resultCache.getExpirationCount());
+        assertEquals(1, resultCache.size());
+
+        resultCache.close();
+    }
+
+    @Test
+    public void lfuEvictionOrder() {
+        ServiceResultCache resultCache = new ServiceResultCache(this.bundleContext)
+            .setEvictionPolicy(EvictionPolicy.LFU)
+            .setMaximumSize(3);
+        resultCache.open();
+        LookupService lookupService = this.instrument(resultCache);
+
+        lookupService.lookup("a");
+        lookupService.lookup("b");
+        lookupService.lookup("c");
+        lookupService.lookup("a");
+        lookupService.lookup("a");
+        lookupService.lookup("c");
+
+        // b is the least frequently used entry
+        lookupService.lookup("d");
+        assertEquals(1, resultCache.getEvictionCount());
+        this.assertCached(lookupService, "a", "c", "d");
+        this.assertNotCached(lookupService, "b");
+
+        resultCache.close();
+    }
+
+    @Test
+    public void lruEvictionOrder() {
+        ServiceResultCache resultCache = new ServiceResultCache(this.bundleContext).setMaximumSize(3);
+        resultCache.open();
+        LookupService lookupService = this.instrument(resultCache);
+
+        lookupService.lookup("a");
+        lookupService.lookup("b");
+        lookupService.lookup("c");
+        lookupService.lookup("a");
+
+        // b is the least recently used entry
+        lookupService.lookup("d");
+        assertEquals(1, resultCache.getEvictionCount());
+        this.assertCached(lookupService, "a", "c", "d");
+        this.assertNotCached(lookupService, "b");
+
+        resultCache.close();
+    }
+
+    @Test
+    public void modifiedServiceIsInvalidated() {
+        ServiceResultCache resultCache = new ServiceResultCache(this.bundleContext).setMaximumSize(1_000);
+        resultCache.open();
+        LookupService lookupService = this.instrument(resultCache);
+        for (int i = 0; i < 100; i++) {
+            lookupService.lookup(String.valueOf(i));
+        }
+
+        this.fireServiceEvent(ServiceEvent.MODIFIED, this.reference);
+        assertEquals(0, resultCache.size());
+        assertEquals(100, resultCache.getInvalidationCount());
+        this.assertNotCached(lookupService, "0");
+
+        resultCache.close();
+    }
+
+    @Test
+    public void segmentedCacheIsBounded() {
+        ServiceResultCache resultCache = new ServiceResultCache(this.bundleContext).setMaximumSize(1_000);
+        resultCache.open();
+        LookupService lookupService = this.instrument(resultCache);
+
+        for (int i = 0; i < 10_000; i++) {
+            lookupService.lookup(String.valueOf(i));
+        }
+        assertTrue(resultCache.size() <= 1_000);
+        assertEquals(10_000 - resultCache.size(), resultCache.getEvictionCount());
+
+        resultCache.invalidateAll();
+        assertEquals(0, resultCache.size());
+
+        resultCache.close();
+    }
+
+    @Test
+    public void unregisterAfterCaching() {
+        // the reference is looked up by the proxy, before and after caching the result
+        this.registered = lookup -> lookup < 3;
+
+        ServiceResultCache resultCache = new ServiceResultCache(this.bundleContext);
+        resultCache.open();
+        LookupService lookupService = this.instrument(resultCache);
+
+        lookupService.lookup("a");
+        assertEquals(0, resultCache.size());
+        assertEquals(1, resultCache.getInvalidationCount());
+
+        resultCache.close();
+    }
+
+    @Test
+    public void unregisterDuringInvocation() {
+        ServiceResultCache resultCache = new ServiceResultCache(this.bundleContext);
+        resultCache.open();
+        LookupService lookupService = this.instrument(resultCache, key -> {
+            this.registered = lookup -> false;
+            this.fireServiceEvent(ServiceEvent.UNREGISTERING, this.reference);
+        });
+
+        lookupService.lookup("a");
+        lookupService.lookup("a");
+        assertEquals(2, this.invocations.size());
+        assertEquals(0, resultCache.size());
+        assertEquals(0, resultCache.getHitCount());
+
+        resultCache.close();
+    }
+
+    private void assertCached(LookupService lookupService, String... keys) {
+        for (String key : keys) {
+            int invocationCount = this.invocations.size();
+            lookupService.lookup(key);
+            assertEquals("The result of '" + key + "' is not cached.", invocationCount, this.invocations.size());
+        }
+    }
+
+    private void assertNotCached(LookupService lookupService, String key) {
+        int invocationCount = this.invocations.size();
+        lookupService.lookup(key);
+        assertEquals("The result of '" + key + "' is cached.", invocationCount + 1, this.invocations.size());
+    }
+
+    private void fireServiceEvent(int type, ServiceReference<?> serviceReference) {
+        for (ServiceListener serviceListener : this.serviceListeners) {
+            serviceListener.serviceChanged(new ServiceEvent(type, serviceReference));
+        }
+    }
+
+    private LookupService instrument(ServiceResultCache resultCache) {
+        return this.instrument(resultCache, key -> {
+            // no side effect
+        });
+    }
+
+    private LookupService instrument(ServiceResultCache resultCache, Consumer<String> sideEffect) {
+        LookupService lookupService = key -> {
+            this.invocations.add(key);
+            sideEffect.accept(key);
+            return key.toUpperCase();
+        };
+        return resultCache.instrument(LookupService.class, this.reference, lookupService);
+    }
+
+    public interface LookupService {
+
+        @CacheableResult
+        String lookup(String key);
+    }
+
+    private interface StubMethod {
+
+        Object invoke(String name, Object[] args);
+    }
+}